@@ -17,12 +17,22 @@
  */
 package my.edu.clhs.containertester.web;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -30,56 +40,664 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
+ * Minimal WebDAV (class 1, without locking or properties) server, backed by
+ * an in-memory tree of collections and files. Suitable as a stand-in for a
+ * real DAV servlet when testing or load testing the SFTP connector.
+ * <p>
+ * Supports GET and HEAD (with single byte ranges and ETag/Last-Modified
+ * conditional requests), PUT, DELETE, MKCOL, OPTIONS and PROPFIND at depths
+ * 0, 1 and infinity. Each collection's members are held in a
+ * {@link ConcurrentHashMap}, and files are immutable, so requests never
+ * block one another.
+ * <p>
+ * Init parameters:
+ * <dl>
+ * <dt>latencyMillis</dt>
+ * <dd>Delay before handling each request, to simulate a slow backend.</dd>
+ * <dt>generatedFiles</dt>
+ * <dd>Comma separated file sizes, each with an optional K, M or G suffix
+ *     (e.g., "1K,1M,1G"). A file of each size is created under
+ *     /generated, with content that is generated as it is read rather than
+ *     held in memory.</dd>
+ * </dl>
+ *
  * @author Jack Leow
  */
 public class InMemoryFileSystemServlet extends HttpServlet {
     private static final long serialVersionUID = 1L;
     
-    private final Map<String,byte[]> fileSystem = new HashMap<String,byte[]>();
+    private static final String METHOD_PROPFIND = "PROPFIND";
+    private static final String METHOD_MKCOL = "MKCOL";
+    private static final int SC_MULTI_STATUS = 207;
+    private static final int BUFFER_SIZE = 65536;
+    private static final String GENERATED_PATH = "/generated";
+    private static final String DEFAULT_CONTENT_TYPE =
+        "application/octet-stream";
+    private static final long[] UNSATISFIABLE = new long[0];
+    
+    private static final ThreadLocal<DateFormat> RFC_1123 =
+        new ThreadLocal<DateFormat>() {
+            @Override
+            protected DateFormat initialValue() {
+                final DateFormat format = new SimpleDateFormat(
+                    "EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+                format.setTimeZone(TimeZone.getTimeZone("GMT"));
+                
+                return format;
+            }
+        };
+    
+    private static final AtomicLong versions = new AtomicLong();
+    
+    /**
+     * A file or collection. Resources are immutable (only the membership
+     * of collections changes), so a resource is replaced, rather than
+     * modified, by a PUT.
+     */
+    private static abstract class Resource {
+        final long lastModified;
+        final String etag;
+        
+        Resource(long length) {
+            // HTTP dates have a resolution of one second.
+            lastModified = System.currentTimeMillis() / 1000 * 1000;
+            etag = "\"" + Long.toHexString(length) + "-" +
+                Long.toHexString(lastModified) + "-" +
+                Long.toHexString(versions.incrementAndGet()) + "\"";
+        }
+    }
+    
+    private static class Collection extends Resource {
+        final ConcurrentMap<String,Resource> members =
+            new ConcurrentHashMap<String,Resource>();
+        
+        Collection() {
+            super(0);
+        }
+    }
+    
+    private static abstract class File extends Resource {
+        File(long length) {
+            super(length);
+        }
+        
+        abstract long length();
+        
+        abstract void write(OutputStream out, long offset, long count)
+            throws IOException;
+    }
+    
+    private static class StoredFile extends File {
+        private final byte[] content;
+        
+        StoredFile(byte[] content) {
+            super(content.length);
+            this.content = content;
+        }
+        
+        @Override
+        long length() {
+            return content.length;
+        }
+        
+        @Override
+        void write(OutputStream out, long offset, long count)
+                throws IOException {
+            out.write(content, (int)offset, (int)count);
+        }
+    }
+    
+    /**
+     * File with repeating content that is generated as it is read. The
+     * content repeats every 251 bytes, a prime, so that it does not align
+     * with any buffer size.
+     */
+    private static class GeneratedFile extends File {
+        private final long length;
+        
+        GeneratedFile(long length) {
+            super(length);
+            this.length = length;
+        }
+        
+        @Override
+        long length() {
+            return length;
+        }
+        
+        @Override
+        void write(OutputStream out, long offset, long count)
+                throws IOException {
+            final byte[] buf = new byte[(int)Math.min(BUFFER_SIZE, count)];
+            
+            while (count > 0) {
+                final int len = (int)Math.min(buf.length, count);
+                
+                for (int i = 0; i < len; i++) {
+                    buf[i] = (byte)((offset + i) % 251);
+                }
+                out.write(buf, 0, len);
+                offset += len;
+                count -= len;
+            }
+        }
+    }
+    
+    private final Collection root = new Collection();
+    private long latencyMillis;
     
     @Override
-    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
-            throws ServletException, IOException {
+    public void init() throws ServletException {
+        final String latency = getInitParameter("latencyMillis");
+        final String generatedFiles = getInitParameter("generatedFiles");
+        
+        try {
+            if (latency != null) {
+                latencyMillis = Long.parseLong(latency.trim());
+            }
+            if (generatedFiles != null) {
+                final Collection generated = new Collection();
+                
+                for (String size : generatedFiles.split(",")) {
+                    size = size.trim();
+                    if (size.length() > 0) {
+                        generated.members.put(
+                            size + ".bin", new GeneratedFile(parseSize(size)));
+                    }
+                }
+                root.members.put(GENERATED_PATH.substring(1), generated);
+            }
+        } catch (NumberFormatException e) {
+            throw new ServletException("Invalid init parameter", e);
+        }
+    }
+    
+    private static long parseSize(String size) {
+        final char unit = Character.toUpperCase(size.charAt(size.length() - 1));
+        final int shift = unit == 'K' ? 10 : unit == 'M' ? 20 : unit == 'G' ?
+            30 : 0;
+        
+        return Long.parseLong(shift == 0 ?
+            size : size.substring(0, size.length() - 1)) << shift;
+    }
+    
+    /**
+     * The request path, without any trailing slash (except for the root).
+     */
+    private static String path(HttpServletRequest req) {
         final String pathInfo = req.getPathInfo();
         
-        if (fileSystem.containsKey(pathInfo)) {
-            resp.getOutputStream().write(fileSystem.get(pathInfo));
+        if (pathInfo == null || pathInfo.length() == 0) {
+            return "/";
+        } else if (pathInfo.length() > 1 && pathInfo.endsWith("/")) {
+            return pathInfo.substring(0, pathInfo.length() - 1);
+        } else {
+            return pathInfo;
+        }
+    }
+    
+    private static String name(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+    
+    private Resource lookup(String path) {
+        Resource resource = root;
+        
+        for (String name : path.split("/")) {
+            if (name.length() == 0) continue;
+            if (!(resource instanceof Collection)) return null;
+            resource = ((Collection)resource).members.get(name);
+            if (resource == null) return null;
+        }
+        
+        return resource;
+    }
+    
+    /**
+     * The collection that would contain the resource at the given path, or
+     * {@code null} if there is no such collection.
+     */
+    private Collection parent(String path) {
+        final Resource parent = lookup(path.substring(0, path.lastIndexOf('/')));
+        
+        return parent instanceof Collection ? (Collection)parent : null;
+    }
+    
+    private static boolean matches(String header, String etag, boolean weak) {
+        for (String candidate : header.split(",")) {
+            candidate = candidate.trim();
+            if (weak && candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if ("*".equals(candidate) || candidate.equals(etag)) return true;
+        }
+        
+        return false;
+    }
+    
+    private static long dateHeader(HttpServletRequest req, String name) {
+        try {
+            return req.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+    
+    /**
+     * Evaluates If-Match, If-None-Match and If-Modified-Since.
+     *
+     * @param resource the current resource, {@code null} if there is none.
+     * @param safe whether the request is a GET or HEAD.
+     * @return the status to respond with, or 0 if the request should
+     *         proceed.
+     */
+    private static int failedPrecondition(
+            HttpServletRequest req, Resource resource, boolean safe) {
+        final String ifMatch = req.getHeader("If-Match");
+        final String ifNoneMatch = req.getHeader("If-None-Match");
+        
+        if (ifMatch != null &&
+                (resource == null || !matches(ifMatch, resource.etag, false))) {
+            return HttpServletResponse.SC_PRECONDITION_FAILED;
+        }
+        if (ifNoneMatch != null) {
+            if (resource != null && matches(ifNoneMatch, resource.etag, true)) {
+                return safe ?
+                    HttpServletResponse.SC_NOT_MODIFIED :
+                    HttpServletResponse.SC_PRECONDITION_FAILED;
+            }
+        } else if (safe && resource != null) {
+            final long ifModifiedSince = dateHeader(req, "If-Modified-Since");
+            
+            if (ifModifiedSince >= 0 &&
+                    resource.lastModified <= ifModifiedSince) {
+                return HttpServletResponse.SC_NOT_MODIFIED;
+            }
+        }
+        
+        return 0;
+    }
+    
+    /**
+     * Parses a Range header for a single byte range. Multiple ranges are not
+     * supported, and (as with syntactically invalid ranges) are ignored.
+     *
+     * @return the first and last byte positions, UNSATISFIABLE, or
+     *         {@code null} to ignore the header.
+     */
+    private static long[] parseRange(String range, long length) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            return null;
+        }
+        final String spec = range.substring("bytes=".length());
+        final int dash = spec.indexOf('-');
+        if (dash < 0) return null;
+        final String first = spec.substring(0, dash).trim();
+        final String last = spec.substring(dash + 1).trim();
+        
+        try {
+            if (first.length() == 0) {
+                final long suffixLength = Long.parseLong(last);
+                
+                if (suffixLength <= 0 || length == 0) return UNSATISFIABLE;
+                return new long[] {
+                    Math.max(0, length - suffixLength), length - 1
+                };
+            } else {
+                final long start = Long.parseLong(first);
+                final long end =
+                    last.length() == 0 ? length - 1 : Long.parseLong(last);
+                
+                if (start < 0 || end < start) return null;
+                if (start >= length) return UNSATISFIABLE;
+                return new long[] {start, Math.min(end, length - 1)};
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+    
+    private static boolean ifRangeMatches(
+            HttpServletRequest req, Resource resource) {
+        final String ifRange = req.getHeader("If-Range");
+        
+        if (ifRange == null) {
+            return true;
+        } else if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.trim().equals(resource.etag);
         } else {
+            return dateHeader(req, "If-Range") == resource.lastModified;
+        }
+    }
+    
+    @Override
+    protected void service(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        final String method = req.getMethod();
+        
+        if (METHOD_PROPFIND.equals(method)) {
+            doPropfind(req, resp);
+        } else if (METHOD_MKCOL.equals(method)) {
+            doMkcol(req, resp);
+        } else {
+            super.service(req, resp);
+        }
+    }
+    
+    @Override
+    protected void doOptions(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+        resp.setHeader("DAV", "1");
+        resp.setHeader("MS-Author-Via", "DAV");
+        resp.setHeader("Allow",
+            "OPTIONS, GET, HEAD, PUT, DELETE, PROPFIND, MKCOL");
+    }
+    
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+        serve(req, resp, true);
+    }
+    
+    /**
+     * Overridden so that HEAD does not generate (and discard) the content
+     * of large generated files.
+     */
+    @Override
+    protected void doHead(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+        serve(req, resp, false);
+    }
+    
+    private void serve(
+            HttpServletRequest req, HttpServletResponse resp, boolean content)
+            throws IOException {
+        final Resource resource = lookup(path(req));
+        
+        if (resource == null) {
             resp.sendError(HttpServletResponse.SC_NOT_FOUND, "File Not Found");
+            return;
+        }
+        resp.setDateHeader("Last-Modified", resource.lastModified);
+        resp.setHeader("ETag", resource.etag);
+        final int failed = failedPrecondition(req, resource, true);
+        if (failed != 0) {
+            resp.setStatus(failed);
+            return;
         }
+        if (resource instanceof Collection) {
+            final StringBuilder listing = new StringBuilder();
+            
+            for (Map.Entry<String,Resource> member :
+                    ((Collection)resource).members.entrySet()) {
+                listing.append(member.getKey());
+                if (member.getValue() instanceof Collection) {
+                    listing.append('/');
+                }
+                listing.append('\n');
+            }
+            final byte[] bytes = listing.toString().getBytes("UTF-8");
+            resp.setContentType("text/plain; charset=UTF-8");
+            resp.setContentLength(bytes.length);
+            if (content) resp.getOutputStream().write(bytes);
+            return;
+        }
+        final File file = (File)resource;
+        final long length = file.length();
+        final String contentType =
+            getServletContext().getMimeType(name(path(req)));
+        long start = 0;
+        long end = length - 1;
+        
+        resp.setHeader("Accept-Ranges", "bytes");
+        resp.setContentType(
+            contentType != null ? contentType : DEFAULT_CONTENT_TYPE);
+        final String range = req.getHeader("Range");
+        if (range != null && ifRangeMatches(req, resource)) {
+            final long[] bounds = parseRange(range, length);
+            
+            if (bounds == UNSATISFIABLE) {
+                resp.setHeader("Content-Range", "bytes */" + length);
+                resp.sendError(
+                    HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            } else if (bounds != null) {
+                start = bounds[0];
+                end = bounds[1];
+                resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                resp.setHeader("Content-Range",
+                    "bytes " + start + "-" + end + "/" + length);
+            }
+        }
+        // setContentLength(int) cannot describe files over 2GB.
+        resp.setHeader("Content-Length", Long.toString(end - start + 1));
+        if (content) file.write(resp.getOutputStream(), start, end - start + 1);
+    }
+    
+    /**
+     * Reads the request body in full, into an array of exactly the
+     * Content-Length when it is known.
+     */
+    private static byte[] readContent(HttpServletRequest req)
+            throws IOException {
+        final InputStream in = req.getInputStream();
+        final int contentLength = req.getContentLength();
+        byte[] buf = new byte[contentLength >= 0 ? contentLength : BUFFER_SIZE];
+        int length = 0;
+        
+        for (int read = 0; read > -1;) {
+            if (length == buf.length) {
+                if (contentLength >= 0) break;
+                final byte[] grown = new byte[buf.length * 2];
+                System.arraycopy(buf, 0, grown, 0, length);
+                buf = grown;
+            }
+            read = in.read(buf, length, buf.length - length);
+            if (read > 0) length += read;
+        }
+        if (contentLength >= 0 && length < contentLength) {
+            throw new IOException("Request body truncated");
+        }
+        if (length < buf.length) {
+            final byte[] trimmed = new byte[length];
+            System.arraycopy(buf, 0, trimmed, 0, length);
+            buf = trimmed;
+        }
+        
+        return buf;
     }
     
     @Override
     protected void doPut(HttpServletRequest req, HttpServletResponse resp)
             throws ServletException, IOException {
-        final InputStream fromUser =
-            new BufferedInputStream(req.getInputStream());
-        final ByteArrayOutputStream toFile = new ByteArrayOutputStream();
+        final String path = path(req);
+        final Collection parent = parent(path);
         
-        try {
-            final byte[] buf = new byte[4096];
+        if ("/".equals(path)) {
+            resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+            return;
+        }
+        if (parent == null) {
+            resp.sendError(
+                HttpServletResponse.SC_CONFLICT, "Parent Collection Not Found");
+            return;
+        }
+        final String name = name(path);
+        final File file = new StoredFile(readContent(req));
+        
+        // Compare-and-set, so that concurrent writers cannot overwrite a
+        // collection, or a file that no longer matches If-Match.
+        for (;;) {
+            final Resource existing = parent.members.get(name);
             
-            for (int read = fromUser.read(buf);
-                    read > -1;
-                    read = fromUser.read(buf)) {
-                toFile.write(buf, 0, read);
+            if (existing instanceof Collection) {
+                resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED,
+                    "Cannot PUT to a Collection");
+                return;
+            }
+            final int failed = failedPrecondition(req, existing, false);
+            if (failed != 0) {
+                resp.sendError(failed);
+                return;
+            }
+            if (existing == null) {
+                if (parent.members.putIfAbsent(name, file) == null) {
+                    resp.setStatus(HttpServletResponse.SC_CREATED);
+                    break;
+                }
+            } else if (parent.members.replace(name, existing, file)) {
+                resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+                break;
             }
-            fileSystem.put(req.getPathInfo(), toFile.toByteArray());
-        } finally {
-            toFile.close();
-            fromUser.close();
         }
+        resp.setHeader("ETag", file.etag);
     }
     
+    /**
+     * Deletes a file, or a collection along with all its members.
+     */
     @Override
     protected void doDelete(HttpServletRequest req, HttpServletResponse resp)
             throws ServletException, IOException {
-        final String pathInfo = req.getPathInfo();
+        final String path = path(req);
+        final Collection parent = parent(path);
+        
+        if ("/".equals(path)) {
+            resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        final String name = name(path);
+        final Resource existing =
+            parent != null ? parent.members.get(name) : null;
         
-        if (fileSystem.containsKey(pathInfo)) {
-            fileSystem.remove(pathInfo);
+        if (existing == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND, "File Not Found");
+            return;
+        }
+        final int failed = failedPrecondition(req, existing, false);
+        if (failed != 0) {
+            resp.sendError(failed);
+        } else if (parent.members.remove(name, existing)) {
+            resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
         } else {
+            // Replaced or deleted concurrently.
+            resp.sendError(HttpServletResponse.SC_PRECONDITION_FAILED);
+        }
+    }
+    
+    protected void doMkcol(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+        final String path = path(req);
+        final Collection parent = parent(path);
+        
+        if (req.getContentLength() > 0 ||
+                req.getHeader("Transfer-Encoding") != null) {
+            resp.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE);
+        } else if ("/".equals(path)) {
+            resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+        } else if (parent == null) {
+            resp.sendError(
+                HttpServletResponse.SC_CONFLICT, "Parent Collection Not Found");
+        } else if (parent.members.putIfAbsent(
+                name(path), new Collection()) != null) {
+            resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED,
+                "Resource Already Exists");
+        } else {
+            resp.setStatus(HttpServletResponse.SC_CREATED);
+        }
+    }
+    
+    /**
+     * Responds with the live properties of a resource, and of its members to
+     * the requested Depth. The request body is ignored, all properties are
+     * always returned (as for DAV:allprop).
+     */
+    protected void doPropfind(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+        final String path = path(req);
+        final Resource resource = lookup(path);
+        
+        if (resource == null) {
             resp.sendError(HttpServletResponse.SC_NOT_FOUND, "File Not Found");
+            return;
+        }
+        final String depthHeader = req.getHeader("Depth");
+        final int depth = "0".equals(depthHeader) ? 0 :
+            "1".equals(depthHeader) ? 1 : Integer.MAX_VALUE;
+        // The context path is not decoded, unlike the servlet path.
+        final StringBuilder href = new StringBuilder(
+            req.getContextPath() + encode(req.getServletPath()));
+        if (!"/".equals(path)) href.append(encode(path));
+        
+        resp.setStatus(SC_MULTI_STATUS);
+        resp.setContentType("text/xml; charset=UTF-8");
+        final Writer out = new BufferedWriter(new OutputStreamWriter(
+            resp.getOutputStream(), "UTF-8"), BUFFER_SIZE);
+        out.write("<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n" +
+            "<D:multistatus xmlns:D=\"DAV:\">");
+        writeResponses(out, href, name(path), resource, depth);
+        out.write("</D:multistatus>");
+        out.flush();
+    }
+    
+    private void writeResponses(Writer out, StringBuilder href, String name,
+            Resource resource, int depth) throws IOException {
+        final boolean collection = resource instanceof Collection;
+        
+        out.write("<D:response><D:href>");
+        out.write(href.toString());
+        if (collection) out.write('/');
+        out.write("</D:href><D:propstat><D:prop><D:displayname>");
+        out.write(escape(name));
+        out.write("</D:displayname><D:getlastmodified>");
+        out.write(RFC_1123.get().format(new Date(resource.lastModified)));
+        out.write("</D:getlastmodified><D:getetag>");
+        out.write(resource.etag);
+        out.write("</D:getetag>");
+        if (collection) {
+            out.write("<D:resourcetype><D:collection/></D:resourcetype>");
+        } else {
+            final String contentType = getServletContext().getMimeType(name);
+            
+            out.write("<D:resourcetype/><D:getcontentlength>");
+            out.write(Long.toString(((File)resource).length()));
+            out.write("</D:getcontentlength><D:getcontenttype>");
+            out.write(contentType != null ?
+                contentType : DEFAULT_CONTENT_TYPE);
+            out.write("</D:getcontenttype>");
+        }
+        out.write("</D:prop><D:status>HTTP/1.1 200 OK</D:status>" +
+            "</D:propstat></D:response>");
+        if (collection && depth > 0) {
+            final int hrefLength = href.length();
+            
+            for (Map.Entry<String,Resource> member :
+                    ((Collection)resource).members.entrySet()) {
+                href.append('/').append(encode(member.getKey()));
+                writeResponses(out, href, member.getKey(), member.getValue(),
+                    depth == Integer.MAX_VALUE ? depth : depth - 1);
+                href.setLength(hrefLength);
+            }
         }
     }
-}
\ No newline at end of file
+    
+    /**
+     * Percent-encodes a path, leaving its slashes intact.
+     */
+    private static String encode(String path) throws IOException {
+        return URLEncoder.encode(path, "UTF-8").
+            replace("+", "%20").replace("%2F", "/");
+    }
+    
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").
+            replace(">", "&gt;");
+    }
+}
@@ -0,0 +1,462 @@
+/*
+ * BudgetCheck.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.tomcat.coyote.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+
+import org.apache.sshd.ClientSession;
+import org.apache.sshd.SshClient;
+
+/**
+ * Checks the connector's allocation and thread usage against budgets,
+ * and exits with a non-zero status when any is exceeded, so that
+ * regressions are caught before a release.
+ *
+ * Budgets checked:
+ * <ul>
+ * <li>bytes allocated per stat, per readdir entry, and per MB transferred
+ *     by each of SFTP get and put, and SCP get and put.</li>
+ * <li>additional live threads per concurrent transfer.</li>
+ * <li>threads left behind (or stuck in the connector) after all sessions
+ *     close, which must be none.</li>
+ * </ul>
+ * Allocation is measured with the HotSpot per-thread allocation counters,
+ * and includes the in-process client's allocation along with the
+ * server's. Every step is also subject to a timeout, so that a hang (e.g.,
+ * a transfer blocked on a pipe forever) fails the check rather than
+ * stalling it.
+ *
+ * Configured with system properties (budgets are upper bounds):
+ * <dl>
+ * <dt>budget.iterations</dt>
+ * <dd>number of stats measured, and ten times the number of readdirs
+ *     (default: 2000).</dd>
+ * <dt>budget.dirEntries</dt>
+ * <dd>number of entries in the directory read (default: 100).</dd>
+ * <dt>budget.fileSizeMb</dt>
+ * <dd>size of the file transferred (default: 16).</dd>
+ * <dt>budget.concurrency</dt>
+ * <dd>number of concurrent transfers (default: 8).</dd>
+ * <dt>budget.timeoutSeconds</dt>
+ * <dd>time allowed for each step (default: 120).</dd>
+ * <dt>budget.statBytes</dt>
+ * <dd>bytes allocated per stat (default: 320K).</dd>
+ * <dt>budget.readdirEntryBytes</dt>
+ * <dd>bytes allocated per directory entry read (default: 48K).</dd>
+ * <dt>budget.sftpGetBytesPerMb, budget.sftpPutBytesPerMb,
+ *     budget.scpGetBytesPerMb, budget.scpPutBytesPerMb</dt>
+ * <dd>bytes allocated per MB transferred (defaults: 160M, 32M, 8M and
+ *     24M). SFTP downloads are by far the most expensive, as each read
+ *     allocates a buffer of the size requested, but returns no more than
+ *     the download pipe holds.</dd>
+ * <dt>budget.threadsPerTransfer</dt>
+ * <dd>additional live threads per concurrent transfer (default: 1).</dd>
+ * <dt>budget.pooledThreads</dt>
+ * <dd>regular expression matching names of pooled threads, which may
+ *     remain idle after sessions close
+ *     (default: .*-exec-\d+|NioProcessor-\d+).</dd>
+ * </dl>
+ *
+ * @author Jack Leow
+ */
+public class BudgetCheck {
+    private static final String DIRECTORY = "/budget";
+    private static final String FILE = DIRECTORY + "/transfer.bin";
+    private static final String UPLOAD = DIRECTORY + "/upload.bin";
+    private static final int CHUNK_SIZE = 32768;
+    private static final int MAX_OUTSTANDING_WRITES = 16;
+    private static final int WARMUP_ITERATIONS = 500;
+    private static final long LEAK_GRACE_MILLIS = 10000;
+
+    /**
+     * Bytes allocated by all threads, other than the meter's. A thread's
+     * counter is lost when the thread dies, so counters are polled, and
+     * the last value seen is kept for dead threads. A short-lived thread's
+     * allocation after its last poll is not counted.
+     */
+    private static class AllocationMeter extends Thread {
+        private final ThreadMXBean threads =
+            ManagementFactory.getThreadMXBean();
+        private final Map<Long,Long> allocated = new HashMap<Long,Long>();
+        private final Method getThreadAllocatedBytes;
+
+        /**
+         * The counters are HotSpot extensions (com.sun.management), which
+         * are not visible when compiling against Java 6's API.
+         */
+        AllocationMeter() throws Exception {
+            super("budget-allocation-meter");
+            setDaemon(true);
+            final Class<?> hotSpotThreadMXBean =
+                Class.forName("com.sun.management.ThreadMXBean");
+            hotSpotThreadMXBean.getMethod(
+                "setThreadAllocatedMemoryEnabled", boolean.class).
+                invoke(threads, true);
+            getThreadAllocatedBytes = hotSpotThreadMXBean.getMethod(
+                "getThreadAllocatedBytes", long[].class);
+        }
+
+        private synchronized void poll() {
+            final long[] ids = threads.getAllThreadIds();
+            final long[] bytes;
+            try {
+                bytes = (long[])getThreadAllocatedBytes.invoke(threads, ids);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] != getId() && bytes[i] >= 0) {
+                    allocated.put(ids[i], bytes[i]);
+                }
+            }
+        }
+
+        synchronized long allocated() {
+            poll();
+            long total = 0;
+            for (long bytes : allocated.values()) total += bytes;
+            return total;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                poll();
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private final int iterations =
+        Integer.getInteger("budget.iterations", 2000);
+    private final int dirEntries =
+        Integer.getInteger("budget.dirEntries", 100);
+    private final long fileSize =
+        Long.getLong("budget.fileSizeMb", 16) << 20;
+    private final int concurrency =
+        Integer.getInteger("budget.concurrency", 8);
+    private final long timeoutSeconds =
+        Long.getLong("budget.timeoutSeconds", 120);
+    private final Pattern pooledThreads = Pattern.compile(System.getProperty(
+        "budget.pooledThreads", ".*-exec-\\d+|NioProcessor-\\d+"));
+
+    private final ThreadMXBean threads =
+        ManagementFactory.getThreadMXBean();
+    private final AllocationMeter meter;
+    private final ThreadPoolExecutor workers = new ThreadPoolExecutor(
+        concurrency + 1, concurrency + 1, 0, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            // @Override - Interface
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "budget-worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    private final StringBuilder report = new StringBuilder(String.format(
+        "%-28s %14s %14s%n", "budget", "actual", "limit"));
+    private final List<String> failures = new ArrayList<String>();
+
+    BudgetCheck() throws Exception {
+        meter = new AllocationMeter();
+    }
+
+    private void check(String name, double actual, double limit) {
+        final boolean exceeded = actual > limit;
+        report.append(String.format("%-28s %14.1f %14.1f%s%n",
+            name, actual, limit, exceeded ? "  EXCEEDED" : ""));
+        if (exceeded) failures.add(name);
+    }
+
+    private static double budget(String name, double defaultValue) {
+        final String value = System.getProperty("budget." + name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    /**
+     * Runs a step, failing it if it does not complete in time.
+     */
+    private <T> T within(String step, Callable<T> task) throws Exception {
+        final Future<T> result = workers.submit(task);
+        try {
+            return result.get(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            result.cancel(true);
+            throw new IllegalStateException(
+                step + " did not complete in " + timeoutSeconds + "s:\n" +
+                connectorThreads(), e);
+        }
+    }
+
+    /**
+     * Measures the bytes allocated per unit of work, by a step.
+     */
+    private double allocationPer(String step, double units, Callable<?> task)
+            throws Exception {
+        final long before = meter.allocated();
+        within(step, task);
+        return (meter.allocated() - before) / units;
+    }
+
+    private static boolean inConnector(ThreadInfo thread) {
+        for (StackTraceElement frame : thread.getStackTrace()) {
+            final String className = frame.getClassName();
+            if (className.startsWith("my.edu.clhs.tomcat.coyote.") &&
+                    !className.startsWith(
+                        "my.edu.clhs.tomcat.coyote.benchmark.") ||
+                    className.startsWith("java.io.Piped")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stack traces of threads running connector code, for diagnosing hangs.
+     */
+    static String connectorThreads() {
+        final StringBuilder dump = new StringBuilder();
+        for (ThreadInfo thread : ManagementFactory.getThreadMXBean().
+                dumpAllThreads(false, false)) {
+            if (inConnector(thread)) {
+                dump.append('"').append(thread.getThreadName()).
+                    append("\" ").append(thread.getThreadState()).append('\n');
+                for (StackTraceElement frame : thread.getStackTrace()) {
+                    dump.append("\tat ").append(frame).append('\n');
+                }
+            }
+        }
+        return dump.toString();
+    }
+
+    /**
+     * Threads started since the baseline that are still alive, and are
+     * either not pooled, or still running connector code.
+     */
+    private List<String> leakedThreads(Set<Long> baseline) {
+        final List<String> leaked = new ArrayList<String>();
+        for (ThreadInfo thread : threads.dumpAllThreads(false, false)) {
+            if (!baseline.contains(thread.getThreadId()) &&
+                    (!pooledThreads.matcher(thread.getThreadName()).matches() ||
+                    inConnector(thread))) {
+                leaked.add(thread.getThreadName());
+            }
+        }
+        return leaked;
+    }
+
+    private Set<Long> liveThreadIds() {
+        final Set<Long> ids = new HashSet<Long>();
+        for (long id : threads.getAllThreadIds()) ids.add(id);
+        return ids;
+    }
+
+    void run(final SshClient client, final int port) throws Exception {
+        final ClientSession session =
+            TransportBenchmark.connect(client, port, "anonymous");
+        final SftpClient sftp = new SftpClient(session);
+        final ScpClient scp = new ScpClient(session);
+        final String entry = DIRECTORY + "/entry0.txt";
+
+        within("setup", new Callable<Void>() {
+            // @Override - Interface
+            public Void call() throws Exception {
+                sftp.mkdir(DIRECTORY);
+                for (int i = 0; i < dirEntries; i++) {
+                    sftp.put(
+                        DIRECTORY + "/entry" + i + ".txt",
+                        new TransportBenchmark.GeneratedInputStream(1024),
+                        CHUNK_SIZE, MAX_OUTSTANDING_WRITES);
+                }
+                sftp.put(
+                    FILE, new TransportBenchmark.GeneratedInputStream(fileSize),
+                    CHUNK_SIZE, MAX_OUTSTANDING_WRITES);
+                return null;
+            }
+        });
+        within("warmup", new Callable<Void>() {
+            // @Override - Interface
+            public Void call() throws Exception {
+                for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                    sftp.stat(entry);
+                    if (i % 10 == 0) sftp.list(DIRECTORY);
+                }
+                sftp.get(FILE, new TransportBenchmark.NullOutputStream(),
+                    CHUNK_SIZE);
+                scp.get(FILE, new TransportBenchmark.NullOutputStream());
+                return null;
+            }
+        });
+
+        check("stat (bytes)", allocationPer("stat", iterations,
+            new Callable<Void>() {
+                // @Override - Interface
+                public Void call() throws Exception {
+                    for (int i = 0; i < iterations; i++) sftp.stat(entry);
+                    return null;
+                }
+            }), budget("statBytes", 320 * 1024));
+        final int readdirs = Math.max(1, iterations / 10);
+        check("readdir entry (bytes)", allocationPer(
+            "readdir", (double)readdirs * dirEntries,
+            new Callable<Void>() {
+                // @Override - Interface
+                public Void call() throws Exception {
+                    for (int i = 0; i < readdirs; i++) sftp.list(DIRECTORY);
+                    return null;
+                }
+            }), budget("readdirEntryBytes", 48 * 1024));
+
+        final double megabytes = fileSize / (1024.0 * 1024);
+        check("sftp get MB (bytes)", allocationPer("sftp get", megabytes,
+            new Callable<Long>() {
+                // @Override - Interface
+                public Long call() throws Exception {
+                    return sftp.get(
+                        FILE, new TransportBenchmark.NullOutputStream(),
+                        CHUNK_SIZE);
+                }
+            }), budget("sftpGetBytesPerMb", 160 * 1024 * 1024));
+        check("sftp put MB (bytes)", allocationPer("sftp put", megabytes,
+            new Callable<Long>() {
+                // @Override - Interface
+                public Long call() throws Exception {
+                    return sftp.put(UPLOAD,
+                        new TransportBenchmark.GeneratedInputStream(fileSize),
+                        CHUNK_SIZE, MAX_OUTSTANDING_WRITES);
+                }
+            }), budget("sftpPutBytesPerMb", 32 * 1024 * 1024));
+        check("scp get MB (bytes)", allocationPer("scp get", megabytes,
+            new Callable<Long>() {
+                // @Override - Interface
+                public Long call() throws Exception {
+                    return scp.get(
+                        FILE, new TransportBenchmark.NullOutputStream());
+                }
+            }), budget("scpGetBytesPerMb", 8 * 1024 * 1024));
+        check("scp put MB (bytes)", allocationPer("scp put", megabytes,
+            new Callable<Long>() {
+                // @Override - Interface
+                public Long call() throws Exception {
+                    return scp.put(UPLOAD,
+                        new TransportBenchmark.GeneratedInputStream(fileSize),
+                        fileSize);
+                }
+            }), budget("scpPutBytesPerMb", 24 * 1024 * 1024));
+        sftp.close();
+        session.close(false).await();
+
+        // Sessions, and the workers running the transfers, are created
+        // before the baseline is taken, so that only the connector's
+        // threads are counted.
+        final List<ClientSession> sessions = new ArrayList<ClientSession>();
+        final List<SftpClient> clients = new ArrayList<SftpClient>();
+        for (int i = 0; i < concurrency; i++) {
+            final ClientSession concurrent =
+                TransportBenchmark.connect(client, port, "anonymous");
+            sessions.add(concurrent);
+            clients.add(new SftpClient(concurrent));
+        }
+        workers.prestartAllCoreThreads();
+        final Set<Long> baseline = liveThreadIds();
+        final int baselineCount = threads.getThreadCount();
+
+        threads.resetPeakThreadCount();
+        final List<Future<Long>> transfers = new ArrayList<Future<Long>>();
+        for (final SftpClient concurrent : clients) {
+            transfers.add(workers.submit(new Callable<Long>() {
+                // @Override - Interface
+                public Long call() throws Exception {
+                    return concurrent.get(
+                        FILE, new TransportBenchmark.NullOutputStream(),
+                        CHUNK_SIZE);
+                }
+            }));
+        }
+        within("concurrent transfers", new Callable<Void>() {
+            // @Override - Interface
+            public Void call() throws Exception {
+                for (Future<Long> transfer : transfers) transfer.get();
+                return null;
+            }
+        });
+        check("threads per transfer",
+            (threads.getPeakThreadCount() - baselineCount) /
+                (double)concurrency,
+            budget("threadsPerTransfer", 1));
+
+        for (int i = 0; i < concurrency; i++) {
+            clients.get(i).close();
+            sessions.get(i).close(false).await();
+        }
+        final long deadline = System.currentTimeMillis() + LEAK_GRACE_MILLIS;
+        List<String> leaked;
+        while (!(leaked = leakedThreads(baseline)).isEmpty() &&
+                System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        check("leaked threads", leaked.size(), 0);
+        if (!leaked.isEmpty()) {
+            report.append("leaked: ").append(leaked).append('\n').
+                append(connectorThreads());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final BudgetCheck check = new BudgetCheck();
+        final EmbeddedSftpServer server =
+            new EmbeddedSftpServer(new HashMap<String,String>());
+        server.start();
+        final SshClient client = SshClient.setUpDefaultClient();
+        client.start();
+        check.meter.start();
+        try {
+            check.run(client, server.getPort());
+        } finally {
+            client.stop();
+            server.stop();
+        }
+        System.out.print(check.report);
+        if (!check.failures.isEmpty()) {
+            System.out.println("budgets exceeded: " + check.failures);
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+}
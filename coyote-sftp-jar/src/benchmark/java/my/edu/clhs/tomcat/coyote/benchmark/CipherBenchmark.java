@@ -0,0 +1,212 @@
+/*
+ * CipherBenchmark.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.tomcat.coyote.benchmark;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.sshd.ClientSession;
+import org.apache.sshd.SshClient;
+import org.apache.sshd.SshServer;
+import org.apache.sshd.common.NamedFactory;
+
+/**
+ * Measures, over loopback, the handshake latency of each key exchange
+ * algorithm, and the SCP throughput of each combination of cipher and
+ * MAC (the connector's kexAlgorithms, ciphers and macs attributes), to
+ * choose the algorithms offered on a given machine.
+ *
+ * Each combination is the only one offered by the server, so that the
+ * client has to use it.
+ *
+ * Configured with system properties:
+ * <dl>
+ * <dt>benchmark.fileSizeMb</dt>
+ * <dd>size of the file transferred (default: 32).</dd>
+ * <dt>benchmark.ciphers, benchmark.macs, benchmark.kexAlgorithms</dt>
+ * <dd>comma separated algorithms (default: all SSHD supports here).</dd>
+ * <dt>benchmark.handshakes</dt>
+ * <dd>number of sessions opened per key exchange algorithm
+ *     (default: 20).</dd>
+ * <dt>benchmark.runs</dt>
+ * <dd>number of times each transfer is measured, the best run is
+ *     reported (default: 3).</dd>
+ * </dl>
+ *
+ * @author Jack Leow
+ */
+public class CipherBenchmark {
+    private static final int MAX_CONNECT_ATTEMPTS = 3;
+
+    private static <T> String[] names(
+            String property, List<NamedFactory<T>> supported) {
+        return System.getProperty(
+            property, NamedFactory.Utils.getNames(supported)).split(",");
+    }
+
+    /**
+     * Connects, retrying failed key exchanges: newer JVMs reject the DER
+     * encoding of some of SSHD's DSA host key signatures (those with
+     * redundant leading zeros, roughly one in a hundred).
+     */
+    private static ClientSession connect(SshClient client, int port)
+            throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return TransportBenchmark.connect(client, port, "anonymous");
+            } catch (Exception e) {
+                // e.g., IllegalStateException: Session is closed
+                if (attempt == MAX_CONNECT_ATTEMPTS) throw e;
+            }
+        }
+    }
+
+    private static double mbPerSecond(long bytes, long nanos) {
+        return bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+    }
+
+    /**
+     * @return the average and fastest times, in nanoseconds, to connect
+     *         and authenticate.
+     */
+    private static long[] handshake(String kexAlgorithm, int handshakes)
+            throws Exception {
+        final Map<String,String> attrs = new HashMap<String,String>();
+        attrs.put("kexAlgorithms", kexAlgorithm);
+        final EmbeddedSftpServer server = new EmbeddedSftpServer(attrs);
+        server.start();
+        final SshClient client = SshClient.setUpDefaultClient();
+        client.start();
+        try {
+            // Not measured: class loading, JIT and host key generation
+            connect(client, server.getPort()).close(false).await();
+            long total = 0;
+            long fastest = Long.MAX_VALUE;
+            for (int i = 0; i < handshakes; ) {
+                final long start = System.nanoTime();
+                final ClientSession session;
+                try {
+                    session = TransportBenchmark.connect(
+                        client, server.getPort(), "anonymous");
+                } catch (Exception e) {
+                    // See connect(), failed handshakes are not counted
+                    continue;
+                }
+                final long nanos = System.nanoTime() - start;
+                ++i;
+                session.close(false).await();
+                total += nanos;
+                fastest = Math.min(fastest, nanos);
+            }
+            return new long[] {total / handshakes, fastest};
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+
+    /**
+     * @return the upload and download throughput, in MB/s.
+     */
+    private static double[] transfer(
+            String cipher, String mac, long fileSize, int runs)
+            throws Exception {
+        final Map<String,String> attrs = new HashMap<String,String>();
+        attrs.put("ciphers", cipher);
+        attrs.put("macs", mac);
+        final EmbeddedSftpServer server = new EmbeddedSftpServer(attrs);
+        server.start();
+        final SshClient client = SshClient.setUpDefaultClient();
+        client.start();
+        try {
+            final ClientSession session = connect(client, server.getPort());
+            final ScpClient scp = new ScpClient(session);
+            long uploadNanos = Long.MAX_VALUE;
+            long downloadNanos = Long.MAX_VALUE;
+            for (int run = 0; run < runs; run++) {
+                long start = System.nanoTime();
+                final long uploaded = scp.put(
+                    "/benchmark.bin",
+                    new TransportBenchmark.GeneratedInputStream(fileSize),
+                    fileSize);
+                uploadNanos = Math.min(uploadNanos, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                final long downloaded = scp.get(
+                    "/benchmark.bin",
+                    new TransportBenchmark.NullOutputStream());
+                downloadNanos =
+                    Math.min(downloadNanos, System.nanoTime() - start);
+                if (uploaded != fileSize || downloaded != fileSize) {
+                    throw new IOException(
+                        "transferred " + uploaded + "/" + downloaded +
+                        " bytes, expected " + fileSize);
+                }
+            }
+            session.close(false).await();
+
+            return new double[] {
+                mbPerSecond(fileSize, uploadNanos),
+                mbPerSecond(fileSize, downloadNanos)
+            };
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final long fileSize = Long.getLong("benchmark.fileSizeMb", 32) << 20;
+        final int runs = Integer.getInteger("benchmark.runs", 3);
+        final int handshakes = Integer.getInteger("benchmark.handshakes", 20);
+        final SshServer supported = SshServer.setUpDefaultServer();
+
+        final StringBuilder report = new StringBuilder(String.format(
+            "%-24s %16s %16s%n", "kex", "handshake ms", "fastest ms"));
+        for (String kex : names(
+                "benchmark.kexAlgorithms",
+                supported.getKeyExchangeFactories())) {
+            final long[] latency = handshake(kex.trim(), handshakes);
+            report.append(String.format(
+                "%-24s %16.1f %16.1f%n",
+                kex.trim(), latency[0] / 1e6, latency[1] / 1e6));
+        }
+        report.append(String.format(
+            "%n%-14s %-12s %14s %14s%n",
+            "cipher", "mac", "upload MB/s", "download MB/s"));
+        final String[] ciphers =
+            names("benchmark.ciphers", supported.getCipherFactories());
+        final String[] macs =
+            names("benchmark.macs", supported.getMacFactories());
+        // Not reported, so that the first combination is not measured
+        // before the JIT compiler has warmed up
+        transfer(ciphers[0].trim(), macs[0].trim(), fileSize, runs);
+        for (String cipher : ciphers) {
+            for (String mac : macs) {
+                final double[] throughput =
+                    transfer(cipher.trim(), mac.trim(), fileSize, runs);
+                report.append(String.format(
+                    "%-14s %-12s %14.1f %14.1f%n",
+                    cipher.trim(), mac.trim(), throughput[0], throughput[1]));
+            }
+        }
+        System.out.print(report);
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * CompressionBenchmark.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.tomcat.coyote.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import my.edu.clhs.sshd.server.LeveledCompressionFactory;
+
+import org.apache.sshd.ClientSession;
+import org.apache.sshd.SshClient;
+import org.apache.sshd.common.Compression;
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.common.compression.CompressionDelayedZlib;
+import org.apache.sshd.common.compression.CompressionNone;
+import org.apache.sshd.common.compression.CompressionZlib;
+import org.apache.sshd.common.session.AbstractSession;
+import org.apache.sshd.common.util.Buffer;
+
+/**
+ * Measures what SSH compression (the connector's compression and
+ * compressionLevel attributes) costs in CPU time, and saves in bytes
+ * sent, for text (JSON) and binary (random) payloads.
+ *
+ * For each payload and level, the payload is deflated on the benchmark
+ * thread, as the server would, to measure the CPU time of compression
+ * alone. It is then downloaded over loopback with SCP, and the bytes
+ * received by the client (after encryption) counted.
+ *
+ * Configured with system properties:
+ * <dl>
+ * <dt>benchmark.fileSizeMb</dt>
+ * <dd>size of the payloads (default: 32).</dd>
+ * <dt>benchmark.compressionLevels</dt>
+ * <dd>comma separated zlib levels, 0 for no compression
+ *     (default: 0,1,6,9).</dd>
+ * </dl>
+ *
+ * @author Jack Leow
+ */
+public class CompressionBenchmark {
+    /**
+     * Largest SSH packet payload, the unit compressed by SSHD.
+     */
+    private static final int PACKET_SIZE = 32768;
+
+    /**
+     * JSON records, repeated every megabyte (well beyond the 32KB zlib
+     * window, so repetition is not what is being compressed).
+     */
+    static class JsonInputStream extends InputStream {
+        private static final String[] WORDS = {
+            "alpha", "bravo", "charlie", "delta", "echo", "foxtrot",
+            "golf", "hotel", "india", "juliet", "kilo", "lima"
+        };
+        private final byte[] block;
+        private long remaining;
+        private int pos = 0;
+
+        JsonInputStream(long size) {
+            final Random random = new Random(size);
+            final StringBuilder json = new StringBuilder(1 << 20);
+            for (int id = 0; json.length() < 1 << 20; id++) {
+                json.append("{\"id\":").append(id).
+                    append(",\"name\":\"").
+                    append(WORDS[random.nextInt(WORDS.length)]).append(' ').
+                    append(WORDS[random.nextInt(WORDS.length)]).
+                    append("\",\"score\":").append(random.nextInt(100000)).
+                    append(",\"active\":").append(random.nextBoolean()).
+                    append(",\"tags\":[\"").
+                    append(WORDS[random.nextInt(WORDS.length)]).
+                    append("\"]}\n");
+            }
+            block = json.substring(0, 1 << 20).getBytes();
+            remaining = size;
+        }
+
+        @Override
+        public int read() {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (remaining == 0) return -1;
+            final int count = (int)Math.min(
+                Math.min(len, remaining), block.length - pos);
+            System.arraycopy(block, pos, b, off, count);
+            pos = (pos + count) % block.length;
+            remaining -= count;
+            return count;
+        }
+    }
+
+    private static InputStream payload(String type, long size) {
+        return type.equals("text") ?
+            new JsonInputStream(size) :
+            new TransportBenchmark.GeneratedInputStream(size);
+    }
+
+    private static int[] intList(String property, String defaultValue) {
+        final String[] values =
+            System.getProperty(property, defaultValue).split(",");
+        final int[] ints = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            ints[i] = Integer.parseInt(values[i].trim());
+        }
+        return ints;
+    }
+
+    /**
+     * Deflates the payload packet by packet on this thread.
+     *
+     * @return the CPU nanoseconds taken.
+     */
+    private static long deflate(String type, long size, int level)
+            throws IOException {
+        final Compression compression = new LeveledCompressionFactory(
+            new CompressionZlib.Factory(), level).create();
+        compression.init(Compression.Type.Deflater, -1);
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final InputStream in = payload(type, size);
+        final byte[] packet = new byte[PACKET_SIZE];
+        final Buffer buffer = new Buffer(PACKET_SIZE * 2);
+        final long start = threads.getCurrentThreadCpuTime();
+        for (int len; (len = in.read(packet, 0, packet.length)) > 0; ) {
+            buffer.clear();
+            buffer.putRawBytes(packet, 0, len);
+            compression.compress(buffer);
+        }
+        return threads.getCurrentThreadCpuTime() - start;
+    }
+
+    /**
+     * @return the download time in nanoseconds, and the bytes received.
+     */
+    private static long[] download(String type, long size, int level)
+            throws Exception {
+        final Map<String,String> attrs = new HashMap<String,String>();
+        if (level > 0) {
+            attrs.put("compression", "true");
+            attrs.put("compressionLevel", Integer.toString(level));
+        }
+        final EmbeddedSftpServer server = new EmbeddedSftpServer(attrs);
+        server.start();
+        final SshClient client = SshClient.setUpDefaultClient();
+        if (level > 0) {
+            final List<NamedFactory<Compression>> compressionFactories =
+                new ArrayList<NamedFactory<Compression>>();
+            compressionFactories.add(new CompressionDelayedZlib.Factory());
+            compressionFactories.add(new CompressionZlib.Factory());
+            compressionFactories.add(new CompressionNone.Factory());
+            client.setCompressionFactories(compressionFactories);
+        }
+        client.start();
+        try {
+            final ClientSession session = TransportBenchmark.connect(
+                client, server.getPort(), "anonymous");
+            final ScpClient scp = new ScpClient(session);
+            scp.put("/benchmark." + type, payload(type, size), size);
+
+            final long bytesBefore =
+                ((AbstractSession)session).getIoSession().getReadBytes();
+            final long start = System.nanoTime();
+            final long downloaded = scp.get(
+                "/benchmark." + type,
+                new TransportBenchmark.NullOutputStream());
+            final long nanos = System.nanoTime() - start;
+            final long received =
+                ((AbstractSession)session).getIoSession().getReadBytes() -
+                bytesBefore;
+            if (downloaded != size) {
+                throw new IOException(
+                    "downloaded " + downloaded + " bytes, expected " + size);
+            }
+            session.close(false).await();
+
+            return new long[] {nanos, received};
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final long size = Long.getLong("benchmark.fileSizeMb", 32) << 20;
+        final int[] levels =
+            intList("benchmark.compressionLevels", "0,1,6,9");
+        final double mb = size / (1024.0 * 1024.0);
+
+        final StringBuilder report = new StringBuilder(String.format(
+            "%8s %6s %12s %8s %16s %14s%n", "payload", "level",
+            "sent MB", "ratio", "deflate CPU ms/MB", "download MB/s"));
+        for (String type : new String[] {"text", "binary"}) {
+            for (int level : levels) {
+                final long deflateNanos =
+                    level > 0 ? deflate(type, size, level) : 0;
+                final long[] downloaded = download(type, size, level);
+                report.append(String.format(
+                    "%8s %6s %12.1f %8.2f %16.2f %14.1f%n",
+                    type, level > 0 ? Integer.toString(level) : "none",
+                    downloaded[1] / (1024.0 * 1024.0),
+                    (double)size / downloaded[1],
+                    deflateNanos / 1e6 / mb,
+                    mb / (downloaded[0] / 1e9)));
+            }
+        }
+        System.out.print(report);
+    }
+}
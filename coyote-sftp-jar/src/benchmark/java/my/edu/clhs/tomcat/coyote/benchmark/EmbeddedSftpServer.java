@@ -0,0 +1,129 @@
+/*
+ * EmbeddedSftpServer.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.tomcat.coyote.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import javax.servlet.Servlet;
+
+import my.edu.clhs.tomcat.coyote.SftpProtocol;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.realm.NullRealm;
+import org.apache.catalina.servlets.WebdavServlet;
+import org.apache.catalina.startup.Tomcat;
+
+/**
+ * An embedded Tomcat, with only an SFTP connector, serving a single
+ * servlet (by default, a writable {@link WebdavServlet} over a temporary
+ * directory).
+ *
+ * @author Jack Leow
+ */
+public class EmbeddedSftpServer {
+    private final File baseDir;
+    private final Tomcat tomcat = new Tomcat();
+    private final Connector connector;
+
+    /**
+     * @param connectorAttributes SFTP connector attributes, as they would
+     *        be specified in server.xml.
+     */
+    public EmbeddedSftpServer(Map<String,String> connectorAttributes)
+            throws IOException {
+        this(connectorAttributes, null);
+    }
+
+    /**
+     * @param connectorAttributes SFTP connector attributes, as they would
+     *        be specified in server.xml.
+     * @param servlet the servlet to map to "/*", or null for WebDAV.
+     */
+    public EmbeddedSftpServer(
+            Map<String,String> connectorAttributes, Servlet servlet)
+            throws IOException {
+        baseDir = File.createTempFile("sftp-benchmark", "");
+        if (!baseDir.delete() || !new File(baseDir, "conf").mkdirs()) {
+            throw new IOException("unable to create " + baseDir);
+        }
+        final File docBase = new File(baseDir, "webdav");
+        if (!docBase.mkdir()) {
+            throw new IOException("unable to create " + docBase);
+        }
+        tomcat.setBaseDir(baseDir.getAbsolutePath());
+
+        connector = new Connector(SftpProtocol.class.getName());
+        connector.setPort(0);
+        connector.setProperty("host", "127.0.0.1");
+        for (Map.Entry<String,String> attr : connectorAttributes.entrySet()) {
+            connector.setProperty(attr.getKey(), attr.getValue());
+        }
+        tomcat.getService().addConnector(connector);
+        tomcat.setConnector(connector);
+        tomcat.getEngine().setRealm(new NullRealm());
+
+        final Context context =
+            tomcat.addContext("", docBase.getAbsolutePath());
+        final Wrapper wrapper;
+        if (servlet == null) {
+            wrapper = Tomcat.addServlet(context, "webdav", new WebdavServlet());
+            wrapper.addInitParameter("readonly", "false");
+            wrapper.addInitParameter("listings", "true");
+        } else {
+            wrapper = Tomcat.addServlet(context, "servlet", servlet);
+        }
+        context.addServletMapping("/*", wrapper.getName());
+    }
+
+    public void start() throws LifecycleException {
+        tomcat.start();
+    }
+
+    public void stop() throws LifecycleException {
+        try {
+            tomcat.stop();
+            tomcat.destroy();
+        } finally {
+            delete(baseDir);
+        }
+    }
+
+    private static void delete(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) delete(child);
+        }
+        file.delete();
+    }
+
+    public SftpProtocol getProtocol() {
+        return (SftpProtocol)connector.getProtocolHandler();
+    }
+
+    /**
+     * @return the port the server is listening on.
+     */
+    public int getPort() {
+        return getProtocol().getPort();
+    }
+}
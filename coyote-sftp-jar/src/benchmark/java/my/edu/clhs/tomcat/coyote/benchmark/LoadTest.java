@@ -0,0 +1,408 @@
+/*
+ * LoadTest.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.tomcat.coyote.benchmark;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.Servlet;
+
+import my.edu.clhs.tomcat.coyote.LatencyHistogram;
+
+import org.apache.sshd.ClientSession;
+import org.apache.sshd.SshClient;
+
+/**
+ * Drives concurrent SFTP and SCP clients against an embedded Tomcat,
+ * and reports throughput and latency percentiles for each operation,
+ * along with the server JVM's thread and heap usage.
+ *
+ * Clients and server run in the same JVM, over loopback, so the tool
+ * runs offline on a single machine. Each client has its own SSH session,
+ * and repeatedly picks an operation at random according to the mix.
+ *
+ * Configured with system properties:
+ * <dl>
+ * <dt>loadtest.clients</dt>
+ * <dd>number of concurrent clients (default: 16).</dd>
+ * <dt>loadtest.warmupSeconds</dt>
+ * <dd>duration before measurements start (default: 10).</dd>
+ * <dt>loadtest.durationSeconds</dt>
+ * <dd>duration of measurements (default: 60).</dd>
+ * <dt>loadtest.mix</dt>
+ * <dd>comma separated operation weights, from ls, stat, get, put,
+ *     scpGet and scpPut (default: ls=20,stat=40,get=20,put=10,scpGet=5,scpPut=5).</dd>
+ * <dt>loadtest.files</dt>
+ * <dd>number of files in the directory listed and downloaded
+ *     (default: 100).</dd>
+ * <dt>loadtest.fileSizeKb</dt>
+ * <dd>size of files downloaded and uploaded (default: 64).</dd>
+ * <dt>loadtest.servlet</dt>
+ * <dd>class name of the servlet to deploy (default: Tomcat's
+ *     WebdavServlet).</dd>
+ * <dt>loadtest.connector.*</dt>
+ * <dd>SFTP connector attributes, e.g., -Dloadtest.connector.maxThreads=50.</dd>
+ * </dl>
+ *
+ * @author Jack Leow
+ */
+public class LoadTest {
+    private static final String DIRECTORY = "/loadtest";
+    private static final String UPLOADS = DIRECTORY + "/uploads";
+    private static final int CHUNK_SIZE = 32768;
+    private static final int MAX_OUTSTANDING_WRITES = 16;
+
+    /**
+     * An operation in the mix, and its measurements.
+     */
+    private abstract static class Operation {
+        final String name;
+        final int weight;
+        final LatencyHistogram latency;
+        final AtomicLong errors = new AtomicLong();
+
+        Operation(String name, int weight) {
+            this.name = name;
+            this.weight = weight;
+            this.latency = new LatencyHistogram(name);
+        }
+
+        abstract void run(Client client, Random random) throws IOException;
+    }
+
+    /**
+     * A client with its own SSH session.
+     */
+    private static class Client {
+        final int id;
+        final ClientSession session;
+        final SftpClient sftp;
+        final ScpClient scp;
+
+        Client(int id, ClientSession session) throws Exception {
+            this.id = id;
+            this.session = session;
+            this.sftp = new SftpClient(session);
+            this.scp = new ScpClient(session);
+        }
+
+        void close() {
+            sftp.close();
+            session.close(false).awaitUninterruptibly();
+        }
+    }
+
+    private final int files;
+    private final long fileSize;
+    private final List<Operation> operations;
+    private final int totalWeight;
+
+    LoadTest(Map<String,Integer> mix, int files, long fileSize) {
+        this.files = files;
+        this.fileSize = fileSize;
+        final List<Operation> operations = new ArrayList<Operation>();
+        int totalWeight = 0;
+        for (Map.Entry<String,Integer> entry : mix.entrySet()) {
+            if (entry.getValue() > 0) {
+                operations.add(operation(entry.getKey(), entry.getValue()));
+                totalWeight += entry.getValue();
+            }
+        }
+        if (totalWeight == 0) {
+            throw new IllegalArgumentException("empty operation mix");
+        }
+        this.operations = Collections.unmodifiableList(operations);
+        this.totalWeight = totalWeight;
+    }
+
+    private String randomFile(Random random) {
+        return DIRECTORY + "/file" + random.nextInt(files) + ".bin";
+    }
+
+    private Operation operation(String name, int weight) {
+        if ("ls".equals(name)) {
+            return new Operation(name, weight) {
+                void run(Client client, Random random) throws IOException {
+                    client.sftp.list(DIRECTORY);
+                }
+            };
+        } else if ("stat".equals(name)) {
+            return new Operation(name, weight) {
+                void run(Client client, Random random) throws IOException {
+                    client.sftp.stat(randomFile(random));
+                }
+            };
+        } else if ("get".equals(name)) {
+            return new Operation(name, weight) {
+                void run(Client client, Random random) throws IOException {
+                    client.sftp.get(
+                        randomFile(random),
+                        new TransportBenchmark.NullOutputStream(), CHUNK_SIZE);
+                }
+            };
+        } else if ("put".equals(name)) {
+            return new Operation(name, weight) {
+                void run(Client client, Random random) throws IOException {
+                    client.sftp.put(
+                        UPLOADS + "/sftp" + client.id + ".bin",
+                        new TransportBenchmark.GeneratedInputStream(fileSize),
+                        CHUNK_SIZE, MAX_OUTSTANDING_WRITES);
+                }
+            };
+        } else if ("scpGet".equals(name)) {
+            return new Operation(name, weight) {
+                void run(Client client, Random random) throws IOException {
+                    client.scp.get(
+                        randomFile(random),
+                        new TransportBenchmark.NullOutputStream());
+                }
+            };
+        } else if ("scpPut".equals(name)) {
+            return new Operation(name, weight) {
+                void run(Client client, Random random) throws IOException {
+                    client.scp.put(
+                        UPLOADS + "/scp" + client.id + ".bin",
+                        new TransportBenchmark.GeneratedInputStream(fileSize),
+                        fileSize);
+                }
+            };
+        }
+        throw new IllegalArgumentException("unknown operation " + name);
+    }
+
+    private Operation pick(Random random) {
+        int weight = random.nextInt(totalWeight);
+        for (Operation operation : operations) {
+            weight -= operation.weight;
+            if (weight < 0) return operation;
+        }
+        throw new IllegalStateException();
+    }
+
+    /**
+     * Creates the files that are listed and downloaded.
+     */
+    void populate(ClientSession session) throws Exception {
+        final SftpClient sftp = new SftpClient(session);
+        try {
+            sftp.mkdir(DIRECTORY);
+            sftp.mkdir(UPLOADS);
+            for (int i = 0; i < files; i++) {
+                sftp.put(
+                    DIRECTORY + "/file" + i + ".bin",
+                    new TransportBenchmark.GeneratedInputStream(fileSize),
+                    CHUNK_SIZE, MAX_OUTSTANDING_WRITES);
+            }
+        } finally {
+            sftp.close();
+        }
+    }
+
+    /**
+     * Server JVM resource usage, sampled while the test runs.
+     */
+    private static class ResourceSampler extends Thread {
+        private final MemoryMXBean memory =
+            ManagementFactory.getMemoryMXBean();
+        private final ThreadMXBean threads =
+            ManagementFactory.getThreadMXBean();
+        private volatile boolean running = true;
+        private long maxHeapUsed;
+        private long totalHeapUsed;
+        private int samples;
+
+        ResourceSampler() {
+            super("loadtest-sampler");
+            setDaemon(true);
+            threads.resetPeakThreadCount();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                final long heapUsed = memory.getHeapMemoryUsage().getUsed();
+                synchronized (this) {
+                    maxHeapUsed = Math.max(maxHeapUsed, heapUsed);
+                    totalHeapUsed += heapUsed;
+                    samples++;
+                }
+                try {
+                    Thread.sleep(250);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        synchronized String report() {
+            running = false;
+            return String.format(
+                "threads: live=%d peak=%d%n" +
+                "heap: mean=%.1fMB max=%.1fMB%n",
+                threads.getThreadCount(), threads.getPeakThreadCount(),
+                samples == 0 ? 0.0 : totalHeapUsed / (1024.0 * 1024) / samples,
+                maxHeapUsed / (1024.0 * 1024));
+        }
+    }
+
+    /**
+     * Runs the clients until the end of the measurement period.
+     */
+    String run(final List<Client> clients, long warmupNanos, long measureNanos)
+            throws InterruptedException {
+        final long start = System.nanoTime();
+        final long measureStart = start + warmupNanos;
+        final long end = measureStart + measureNanos;
+        final CountDownLatch finished = new CountDownLatch(clients.size());
+        final AtomicLong bytes = new AtomicLong();
+        for (final Client client : clients) {
+            new Thread("loadtest-client-" + client.id) {
+                @Override
+                public void run() {
+                    final Random random = new Random(client.id);
+                    try {
+                        long now;
+                        while ((now = System.nanoTime()) < end) {
+                            final Operation operation = pick(random);
+                            final boolean measured = now >= measureStart;
+                            try {
+                                operation.run(client, random);
+                                if (measured) {
+                                    operation.latency.record(
+                                        System.nanoTime() - now);
+                                    if (!"ls".equals(operation.name) &&
+                                            !"stat".equals(operation.name)) {
+                                        bytes.addAndGet(fileSize);
+                                    }
+                                }
+                            } catch (IOException e) {
+                                if (measured) {
+                                    operation.errors.incrementAndGet();
+                                }
+                            }
+                        }
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }.start();
+        }
+        Thread.sleep(Math.max(0, (measureStart - System.nanoTime()) / 1000000));
+        final ResourceSampler sampler = new ResourceSampler();
+        sampler.start();
+        finished.await();
+        final double seconds = measureNanos / 1e9;
+
+        final StringBuilder report = new StringBuilder(String.format(
+            "%-8s %10s %10s %10s %10s %10s %10s %8s%n",
+            "op", "count", "ops/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms",
+            "errors"));
+        long count = 0;
+        for (Operation operation : operations) {
+            final LatencyHistogram latency = operation.latency;
+            count += latency.getCount();
+            report.append(String.format(
+                "%-8s %10d %10.1f %10.2f %10.2f %10.2f %10.2f %8d%n",
+                operation.name, latency.getCount(),
+                latency.getCount() / seconds, latency.getP50(),
+                latency.getP99(), latency.getP999(), latency.getMax(),
+                operation.errors.get()));
+        }
+        report.append(String.format(
+            "total: %.1f ops/s, %.1f MB/s transferred%n",
+            count / seconds, bytes.get() / (1024.0 * 1024) / seconds));
+        report.append(sampler.report());
+        return report.toString();
+    }
+
+    private static Map<String,Integer> mix(String mix) {
+        final Map<String,Integer> weights =
+            new LinkedHashMap<String,Integer>();
+        for (String entry : mix.split(",")) {
+            final String[] weight = entry.trim().split("=");
+            weights.put(weight[0].trim(), Integer.parseInt(weight[1].trim()));
+        }
+        return weights;
+    }
+
+    private static Map<String,String> connectorAttributes() {
+        final Map<String,String> attrs = new HashMap<String,String>();
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("loadtest.connector.")) {
+                attrs.put(
+                    name.substring("loadtest.connector.".length()),
+                    System.getProperty(name));
+            }
+        }
+        return attrs;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int clientCount = Integer.getInteger("loadtest.clients", 16);
+        final long warmupSeconds = Long.getLong("loadtest.warmupSeconds", 10);
+        final long durationSeconds =
+            Long.getLong("loadtest.durationSeconds", 60);
+        final LoadTest loadTest = new LoadTest(
+            mix(System.getProperty(
+                "loadtest.mix",
+                "ls=20,stat=40,get=20,put=10,scpGet=5,scpPut=5")),
+            Integer.getInteger("loadtest.files", 100),
+            Long.getLong("loadtest.fileSizeKb", 64) << 10);
+        final String servletClass = System.getProperty("loadtest.servlet");
+
+        final EmbeddedSftpServer server = new EmbeddedSftpServer(
+            connectorAttributes(),
+            servletClass == null ? null :
+                (Servlet)Class.forName(servletClass).newInstance());
+        server.start();
+        final SshClient sshClient = SshClient.setUpDefaultClient();
+        sshClient.start();
+        final List<Client> clients = new ArrayList<Client>();
+        try {
+            final ClientSession setup = TransportBenchmark.connect(
+                sshClient, server.getPort(), "anonymous");
+            loadTest.populate(setup);
+            setup.close(false).await();
+            for (int i = 0; i < clientCount; i++) {
+                clients.add(new Client(i, TransportBenchmark.connect(
+                    sshClient, server.getPort(), "anonymous")));
+            }
+            System.out.printf(
+                "%d clients, %ds warmup, %ds measured%n",
+                clientCount, warmupSeconds, durationSeconds);
+            System.out.print(loadTest.run(
+                clients, warmupSeconds * 1000000000L,
+                durationSeconds * 1000000000L));
+        } finally {
+            for (Client client : clients) client.close();
+            sshClient.stop();
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * ScpBenchmark.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.tomcat.coyote.benchmark;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.sshd.ClientSession;
+import org.apache.sshd.SshClient;
+
+/**
+ * Measures SCP upload and download throughput over loopback, across
+ * transfer buffer sizes (the connector's transferBufferSize attribute).
+ *
+ * Configured with system properties:
+ * <dl>
+ * <dt>benchmark.fileSizeMb</dt>
+ * <dd>size of the file transferred (default: 64).</dd>
+ * <dt>benchmark.transferBufferSizes</dt>
+ * <dd>comma separated buffer sizes
+ *     (default: 8192,32768,65536,262144,1048576).</dd>
+ * <dt>benchmark.runs</dt>
+ * <dd>number of times each transfer is measured, the best run is
+ *     reported (default: 3).</dd>
+ * </dl>
+ *
+ * @author Jack Leow
+ */
+public class ScpBenchmark {
+    private static int[] intList(String property, String defaultValue) {
+        final String[] values =
+            System.getProperty(property, defaultValue).split(",");
+        final int[] ints = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            ints[i] = Integer.parseInt(values[i].trim());
+        }
+        return ints;
+    }
+
+    private static double mbPerSecond(long bytes, long nanos) {
+        return bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+    }
+
+    private static double[] measure(int bufferSize, long fileSize, int runs)
+            throws Exception {
+        final Map<String,String> attrs = new HashMap<String,String>();
+        attrs.put("transferBufferSize", Integer.toString(bufferSize));
+        final EmbeddedSftpServer server = new EmbeddedSftpServer(attrs);
+        server.start();
+        final SshClient client = SshClient.setUpDefaultClient();
+        client.start();
+        try {
+            final ClientSession session = TransportBenchmark.connect(
+                client, server.getPort(), "anonymous");
+            final ScpClient scp = new ScpClient(session);
+            long uploadNanos = Long.MAX_VALUE;
+            long downloadNanos = Long.MAX_VALUE;
+            for (int run = 0; run < runs; run++) {
+                long start = System.nanoTime();
+                final long uploaded = scp.put(
+                    "/benchmark.bin",
+                    new TransportBenchmark.GeneratedInputStream(fileSize),
+                    fileSize);
+                uploadNanos = Math.min(uploadNanos, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                final long downloaded = scp.get(
+                    "/benchmark.bin",
+                    new TransportBenchmark.NullOutputStream());
+                downloadNanos =
+                    Math.min(downloadNanos, System.nanoTime() - start);
+                if (uploaded != fileSize || downloaded != fileSize) {
+                    throw new IOException(
+                        "transferred " + uploaded + "/" + downloaded +
+                        " bytes, expected " + fileSize);
+                }
+            }
+            session.close(false).await();
+
+            return new double[] {
+                mbPerSecond(fileSize, uploadNanos),
+                mbPerSecond(fileSize, downloadNanos)
+            };
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final long fileSize = Long.getLong("benchmark.fileSizeMb", 64) << 20;
+        final int runs = Integer.getInteger("benchmark.runs", 3);
+        final int[] bufferSizes = intList(
+            "benchmark.transferBufferSizes",
+            "8192,32768,65536,262144,1048576");
+
+        final StringBuilder report = new StringBuilder(String.format(
+            "%12s %14s %14s%n", "buffer", "upload MB/s", "download MB/s"));
+        for (int bufferSize : bufferSizes) {
+            final double[] throughput = measure(bufferSize, fileSize, runs);
+            report.append(String.format(
+                "%12d %14.1f %14.1f%n",
+                bufferSize, throughput[0], throughput[1]));
+        }
+        System.out.print(report);
+    }
+}
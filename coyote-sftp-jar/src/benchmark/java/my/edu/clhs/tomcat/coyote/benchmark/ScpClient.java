@@ -0,0 +1,198 @@
+/*
+ * ScpClient.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.tomcat.coyote.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+import org.apache.sshd.ClientChannel;
+import org.apache.sshd.ClientSession;
+import org.apache.sshd.client.channel.ChannelExec;
+
+/**
+ * Minimal SCP client, just enough to copy single files to and from the
+ * SFTP connector's scp command in benchmarks.
+ *
+ * @author Jack Leow
+ */
+public class ScpClient {
+    private static final int PIPE_SIZE = 4 * 1024 * 1024;
+    private static final long CLOSE_TIMEOUT = 30000;
+
+    private final ClientSession session;
+    private volatile Scp running;
+
+    public ScpClient(ClientSession session) {
+        this.session = session;
+    }
+
+    /**
+     * A running scp command, with its input and output connected.
+     */
+    private class Scp {
+        final ChannelExec channel;
+        final OutputStream in;
+        final InputStream out;
+        final OutputStream outSink;
+
+        Scp(String command) throws IOException {
+            try {
+                channel = session.createExecChannel(command);
+                final PipedOutputStream in = new PipedOutputStream();
+                channel.setIn(new PipedInputStream(in, PIPE_SIZE));
+                final PipedInputStream out = new PipedInputStream(PIPE_SIZE);
+                outSink = new PipedOutputStream(out);
+                channel.setOut(outSink);
+                channel.setErr(new ByteArrayOutputStream());
+                channel.open().await();
+                this.in = in;
+                this.out = out;
+                running = this;
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException("unable to run " + command, e);
+            }
+        }
+
+        void ack() throws IOException {
+            in.write(0);
+            in.flush();
+        }
+
+        void readAck() throws IOException {
+            final int c = out.read();
+            if (c != 0) {
+                throw new IOException(
+                    "scp failed" + (c > 0 ? ": " + readLine() : ""));
+            }
+        }
+
+        String readLine() throws IOException {
+            final StringBuilder line = new StringBuilder();
+            for (int c; (c = out.read()) != '\n';) {
+                if (c == -1) throw new IOException("scp channel closed");
+                line.append((char)c);
+            }
+            return line.toString();
+        }
+
+        /**
+         * Waits for the command to exit, and close its channel. Data sent
+         * after the server closes the channel is fatal to the session, so
+         * the client does not close the channel itself.
+         *
+         * @param eof whether to signal end of input first (the sink only
+         *        exits then).
+         */
+        void close(boolean eof) throws IOException {
+            running = null;
+            if (eof) in.close();
+            if ((channel.waitFor(ClientChannel.CLOSED, CLOSE_TIMEOUT) &
+                    ClientChannel.CLOSED) == 0) {
+                channel.close(true);
+                throw new IOException("timed out waiting for scp to exit");
+            }
+        }
+    }
+
+    /**
+     * Closes the running command's pipes, after the session is closed
+     * abruptly (see {@link SftpClient#abort()}).
+     */
+    public void abort() {
+        final Scp scp = running;
+        if (scp != null) {
+            try {
+                scp.in.close();
+                scp.outSink.close();
+            } catch (IOException e) {
+                // ignored, the session is gone regardless
+            }
+        }
+    }
+
+    /**
+     * Uploads a file, with scp in sink mode (scp -t).
+     *
+     * @return the number of bytes uploaded.
+     */
+    public long put(String path, InputStream data, long length)
+            throws IOException {
+        final Scp scp = new Scp("scp -t " + path);
+        try {
+            scp.readAck();
+            scp.in.write(("C0644 " + length + " " +
+                path.substring(path.lastIndexOf('/') + 1) + "\n").
+                getBytes("UTF-8"));
+            scp.in.flush();
+            scp.readAck();
+            final byte[] buffer = new byte[32768];
+            long remaining = length;
+            while (remaining > 0) {
+                final int len = data.read(
+                    buffer, 0, (int)Math.min(buffer.length, remaining));
+                if (len < 0) throw new IOException("end of data reached");
+                scp.in.write(buffer, 0, len);
+                remaining -= len;
+            }
+            scp.ack();
+            scp.readAck();
+        } finally {
+            scp.close(true);
+        }
+        return length;
+    }
+
+    /**
+     * Downloads a file, with scp in source mode (scp -f).
+     *
+     * @return the number of bytes downloaded.
+     */
+    public long get(String path, OutputStream data) throws IOException {
+        final Scp scp = new Scp("scp -f " + path);
+        try {
+            final int type = scp.out.read();
+            final String header = scp.readLine();
+            if (type != 'C') {
+                throw new IOException("scp failed: " + header);
+            }
+            // e.g., "0644 1024 file.txt"
+            final long length = Long.parseLong(header.split(" ")[1]);
+            scp.ack();
+            final byte[] buffer = new byte[32768];
+            long remaining = length;
+            while (remaining > 0) {
+                final int len = scp.out.read(
+                    buffer, 0, (int)Math.min(buffer.length, remaining));
+                if (len < 0) throw new IOException("scp channel closed");
+                data.write(buffer, 0, len);
+                remaining -= len;
+            }
+            scp.readAck();
+            scp.ack();
+            return length;
+        } finally {
+            scp.close(false);
+        }
+    }
+}
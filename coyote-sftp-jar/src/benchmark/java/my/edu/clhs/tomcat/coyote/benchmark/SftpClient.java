@@ -0,0 +1,445 @@
+/*
+ * SftpClient.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.tomcat.coyote.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.sshd.ClientSession;
+import org.apache.sshd.client.channel.ChannelSubsystem;
+import org.apache.sshd.common.util.Buffer;
+
+/**
+ * Minimal SFTP (version 3) client, just enough to drive the SFTP
+ * connector in benchmarks. SSHD 0.8 does not come with one.
+ *
+ * Instances are not thread-safe.
+ *
+ * @author Jack Leow
+ */
+public class SftpClient {
+    static final int SSH_FXP_INIT = 1;
+    static final int SSH_FXP_VERSION = 2;
+    static final int SSH_FXP_OPEN = 3;
+    static final int SSH_FXP_CLOSE = 4;
+    static final int SSH_FXP_READ = 5;
+    static final int SSH_FXP_WRITE = 6;
+    static final int SSH_FXP_OPENDIR = 11;
+    static final int SSH_FXP_READDIR = 12;
+    static final int SSH_FXP_REMOVE = 13;
+    static final int SSH_FXP_MKDIR = 14;
+    static final int SSH_FXP_RMDIR = 15;
+    static final int SSH_FXP_STAT = 17;
+    static final int SSH_FXP_RENAME = 18;
+    static final int SSH_FXP_STATUS = 101;
+    static final int SSH_FXP_HANDLE = 102;
+    static final int SSH_FXP_DATA = 103;
+    static final int SSH_FXP_NAME = 104;
+    static final int SSH_FXP_ATTRS = 105;
+    static final int SSH_FXP_EXTENDED = 200;
+    static final int SSH_FXP_EXTENDED_REPLY = 201;
+
+    static final int SSH_FX_OK = 0;
+    static final int SSH_FX_EOF = 1;
+
+    static final int SSH_FXF_READ = 1;
+    static final int SSH_FXF_WRITE = 2;
+    static final int SSH_FXF_CREAT = 8;
+    static final int SSH_FXF_TRUNC = 16;
+
+    static final int SSH_FILEXFER_ATTR_SIZE = 1;
+    static final int SSH_FILEXFER_ATTR_UIDGID = 2;
+    static final int SSH_FILEXFER_ATTR_PERMISSIONS = 4;
+    static final int SSH_FILEXFER_ATTR_ACMODTIME = 8;
+    static final int SSH_FILEXFER_ATTR_EXTENDED = 0x80000000;
+
+    private static final int S_IFDIR = 0040000;
+    private static final int PIPE_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * File attributes, as returned by STAT and READDIR.
+     */
+    public static class Attributes {
+        public final long size;
+        public final int permissions;
+        public final long lastModified;
+
+        Attributes(Buffer buffer) {
+            final int flags = buffer.getInt();
+            size = (flags & SSH_FILEXFER_ATTR_SIZE) != 0 ? buffer.getLong() : -1;
+            if ((flags & SSH_FILEXFER_ATTR_UIDGID) != 0) {
+                buffer.getInt();
+                buffer.getInt();
+            }
+            permissions = (flags & SSH_FILEXFER_ATTR_PERMISSIONS) != 0 ?
+                buffer.getInt() : 0;
+            if ((flags & SSH_FILEXFER_ATTR_ACMODTIME) != 0) {
+                buffer.getInt();
+                lastModified = buffer.getUInt() * 1000;
+            } else {
+                lastModified = -1;
+            }
+            if ((flags & SSH_FILEXFER_ATTR_EXTENDED) != 0) {
+                for (int count = buffer.getInt(); count > 0; count--) {
+                    buffer.getString();
+                    buffer.getString();
+                }
+            }
+        }
+
+        public boolean isDirectory() {
+            return (permissions & S_IFDIR) != 0;
+        }
+    }
+
+    /**
+     * An SSH_FXP_STATUS response other than SSH_FX_OK.
+     */
+    public static class SftpException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        SftpException(int status, String message) {
+            super(message + " (status " + status + ")");
+            this.status = status;
+        }
+
+        public int getStatus() { return status; }
+    }
+
+    private final ChannelSubsystem channel;
+    private final OutputStream requests;
+    private final DataInputStream responses;
+    private final PipedOutputStream responseSink;
+    private final Map<String,String> extensions;
+    private int nextId = 1;
+
+    public SftpClient(ClientSession session) throws Exception {
+        channel = session.createSubsystemChannel("sftp");
+        final PipedOutputStream requests = new PipedOutputStream();
+        channel.setIn(new PipedInputStream(requests, PIPE_SIZE));
+        final PipedInputStream responses = new PipedInputStream(PIPE_SIZE);
+        responseSink = new PipedOutputStream(responses);
+        channel.setOut(responseSink);
+        channel.setErr(new ByteArrayOutputStream());
+        channel.open().await();
+        this.requests = requests;
+        this.responses = new DataInputStream(responses);
+
+        final Buffer init = new Buffer();
+        init.putByte((byte)SSH_FXP_INIT);
+        init.putInt(3);
+        write(init);
+        final Buffer version = read();
+        if (version.getByte() != SSH_FXP_VERSION) {
+            throw new IOException("unexpected response to SSH_FXP_INIT");
+        }
+        version.getInt();
+        final Map<String,String> extensions = new HashMap<String,String>();
+        while (version.available() > 0) {
+            extensions.put(version.getString(), version.getString());
+        }
+        this.extensions = Collections.unmodifiableMap(extensions);
+    }
+
+    /**
+     * @return the extensions advertised by the server in SSH_FXP_VERSION.
+     */
+    public Map<String,String> getExtensions() { return extensions; }
+
+    public void close() {
+        channel.close(false).awaitUninterruptibly();
+    }
+
+    /**
+     * Closes the channel's pipes, after its session is closed abruptly.
+     * Neither the channel's input pump thread, nor any thread waiting for
+     * a response, would otherwise ever finish. (This is not part of a
+     * normal close, as the pump would then send EOF on a closed channel.)
+     */
+    public void abort() {
+        try {
+            requests.close();
+            responseSink.close();
+        } catch (IOException e) {
+            // ignored, the session is gone regardless
+        }
+    }
+
+    private void write(Buffer packet) throws IOException {
+        final byte[] length = {
+            (byte)(packet.available() >>> 24), (byte)(packet.available() >>> 16),
+            (byte)(packet.available() >>> 8), (byte)packet.available()
+        };
+        requests.write(length);
+        requests.write(packet.array(), packet.rpos(), packet.available());
+        requests.flush();
+    }
+
+    private Buffer read() throws IOException {
+        final int length;
+        try {
+            length = responses.readInt();
+        } catch (EOFException e) {
+            throw new IOException("SFTP channel closed");
+        }
+        final byte[] packet = new byte[length];
+        responses.readFully(packet);
+        return new Buffer(packet);
+    }
+
+    private Buffer request(int type) {
+        final Buffer buffer = new Buffer();
+        buffer.putByte((byte)type);
+        buffer.putInt(nextId++);
+        return buffer;
+    }
+
+    /**
+     * Reads the response to the given request id, leaving the buffer
+     * positioned after the id.
+     */
+    private Buffer response(int id, int expectedType) throws IOException {
+        final Buffer response = read();
+        final int type = response.getByte();
+        final int responseId = response.getInt();
+        if (responseId != id) {
+            throw new IOException(
+                "expected response to " + id + ", got " + responseId);
+        }
+        if (type == SSH_FXP_STATUS) {
+            final int status = response.getInt();
+            if (status != SSH_FX_OK || expectedType != SSH_FXP_STATUS) {
+                throw new SftpException(status, response.getString());
+            }
+        } else if (type != expectedType) {
+            throw new IOException("unexpected response type " + type);
+        }
+        return response;
+    }
+
+    private static int id(Buffer request) {
+        final int rpos = request.rpos();
+        request.getByte();
+        final int id = request.getInt();
+        request.rpos(rpos);
+        return id;
+    }
+
+    private Buffer call(Buffer request, int expectedType) throws IOException {
+        write(request);
+        return response(id(request), expectedType);
+    }
+
+    private String open(String path, int pflags) throws IOException {
+        final Buffer open = request(SSH_FXP_OPEN);
+        open.putString(path);
+        open.putInt(pflags);
+        open.putInt(0);
+        return call(open, SSH_FXP_HANDLE).getString();
+    }
+
+    private void closeHandle(String handle) throws IOException {
+        final Buffer close = request(SSH_FXP_CLOSE);
+        close.putString(handle);
+        call(close, SSH_FXP_STATUS);
+    }
+
+    public Attributes stat(String path) throws IOException {
+        final Buffer stat = request(SSH_FXP_STAT);
+        stat.putString(path);
+        return new Attributes(call(stat, SSH_FXP_ATTRS));
+    }
+
+    /**
+     * @return the names in the directory, excluding "." and "..".
+     */
+    public List<String> list(String path) throws IOException {
+        final Buffer opendir = request(SSH_FXP_OPENDIR);
+        opendir.putString(path);
+        final String handle = call(opendir, SSH_FXP_HANDLE).getString();
+        final List<String> names = new ArrayList<String>();
+        try {
+            while (true) {
+                final Buffer readdir = request(SSH_FXP_READDIR);
+                readdir.putString(handle);
+                final Buffer name;
+                try {
+                    name = call(readdir, SSH_FXP_NAME);
+                } catch (SftpException e) {
+                    if (e.getStatus() == SSH_FX_EOF) break;
+                    throw e;
+                }
+                for (int count = name.getInt(); count > 0; count--) {
+                    final String filename = name.getString();
+                    name.getString(); // longname
+                    new Attributes(name);
+                    if (!".".equals(filename) && !"..".equals(filename)) {
+                        names.add(filename);
+                    }
+                }
+            }
+        } finally {
+            closeHandle(handle);
+        }
+        return names;
+    }
+
+    public void mkdir(String path) throws IOException {
+        final Buffer mkdir = request(SSH_FXP_MKDIR);
+        mkdir.putString(path);
+        mkdir.putInt(0);
+        call(mkdir, SSH_FXP_STATUS);
+    }
+
+    public void rmdir(String path) throws IOException {
+        final Buffer rmdir = request(SSH_FXP_RMDIR);
+        rmdir.putString(path);
+        call(rmdir, SSH_FXP_STATUS);
+    }
+
+    public void remove(String path) throws IOException {
+        final Buffer remove = request(SSH_FXP_REMOVE);
+        remove.putString(path);
+        call(remove, SSH_FXP_STATUS);
+    }
+
+    public void rename(String oldPath, String newPath) throws IOException {
+        final Buffer rename = request(SSH_FXP_RENAME);
+        rename.putString(oldPath);
+        rename.putString(newPath);
+        call(rename, SSH_FXP_STATUS);
+    }
+
+    /**
+     * Sends an SSH_FXP_EXTENDED request.
+     *
+     * @param request the extension name.
+     * @param data the request specific data.
+     * @return the SSH_FXP_EXTENDED_REPLY data, or null if the server
+     *         replied with SSH_FX_OK.
+     */
+    public Buffer extended(String request, Buffer data) throws IOException {
+        final Buffer extended = request(SSH_FXP_EXTENDED);
+        extended.putString(request);
+        if (data != null) extended.putBuffer(data);
+        write(extended);
+        final Buffer response = read();
+        final int type = response.getByte() & 0xff;
+        response.getInt();
+        if (type == SSH_FXP_STATUS) {
+            final int status = response.getInt();
+            if (status != SSH_FX_OK) {
+                throw new SftpException(status, response.getString());
+            }
+            return null;
+        } else if (type != SSH_FXP_EXTENDED_REPLY) {
+            throw new IOException("unexpected response type " + type);
+        }
+        return response;
+    }
+
+    /**
+     * Uploads a file, keeping up to maxOutstanding writes in flight.
+     *
+     * @return the number of bytes uploaded.
+     */
+    public long put(
+            String path, InputStream in, int chunkSize, int maxOutstanding)
+            throws IOException {
+        final String handle =
+            open(path, SSH_FXF_WRITE | SSH_FXF_CREAT | SSH_FXF_TRUNC);
+        final LinkedList<Integer> outstanding = new LinkedList<Integer>();
+        final byte[] chunk = new byte[chunkSize];
+        long offset = 0;
+        try {
+            for (int len; (len = read(in, chunk)) > 0; offset += len) {
+                final Buffer write = request(SSH_FXP_WRITE);
+                write.putString(handle);
+                write.putLong(offset);
+                write.putBytes(chunk, 0, len);
+                this.write(write);
+                outstanding.add(id(write));
+                if (outstanding.size() >= maxOutstanding) {
+                    response(outstanding.removeFirst(), SSH_FXP_STATUS);
+                }
+            }
+            while (!outstanding.isEmpty()) {
+                response(outstanding.removeFirst(), SSH_FXP_STATUS);
+            }
+        } finally {
+            closeHandle(handle);
+        }
+        return offset;
+    }
+
+    private static int read(InputStream in, byte[] chunk) throws IOException {
+        int total = 0;
+        for (int len; total < chunk.length &&
+                (len = in.read(chunk, total, chunk.length - total)) > 0;) {
+            total += len;
+        }
+        return total;
+    }
+
+    /**
+     * Downloads a file. Reads are issued one at a time, since SFTP
+     * servers may return fewer bytes than requested.
+     *
+     * @return the number of bytes downloaded.
+     */
+    public long get(String path, OutputStream out, int chunkSize)
+            throws IOException {
+        final String handle = open(path, SSH_FXF_READ);
+        long offset = 0;
+        try {
+            while (true) {
+                final Buffer read = request(SSH_FXP_READ);
+                read.putString(handle);
+                read.putLong(offset);
+                read.putInt(chunkSize);
+                final Buffer data;
+                try {
+                    data = call(read, SSH_FXP_DATA);
+                } catch (SftpException e) {
+                    if (e.getStatus() == SSH_FX_EOF) break;
+                    throw e;
+                }
+                final int len = data.getInt();
+                out.write(data.array(), data.rpos(), len);
+                offset += len;
+            }
+        } finally {
+            closeHandle(handle);
+        }
+        return offset;
+    }
+}
@@ -0,0 +1,412 @@
+/*
+ * SoakTest.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.tomcat.coyote.benchmark;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import my.edu.clhs.tomcat.coyote.SftpStatistics;
+
+import org.apache.sshd.ClientSession;
+import org.apache.sshd.SshClient;
+
+/**
+ * Opens and closes many SSH sessions against an embedded Tomcat, aborting
+ * some of them in the middle of transfers, while sampling the JVM's heap
+ * (after GC), live threads and open file descriptors. Exits with a
+ * non-zero status if usage grows beyond the allowance after warmup, if
+ * sessions or file handles are left open on the server once every client
+ * has gone, or if the clients stop making progress.
+ *
+ * Configured with system properties:
+ * <dl>
+ * <dt>soak.sessions</dt>
+ * <dd>number of SSH sessions opened, in total (default: 5000).</dd>
+ * <dt>soak.warmupSessions</dt>
+ * <dd>number of sessions before the baseline sample (default: 500).</dd>
+ * <dt>soak.clients</dt>
+ * <dd>number of concurrent clients (default: 8).</dd>
+ * <dt>soak.abortPercent</dt>
+ * <dd>percentage of transfers aborted, by closing the session abruptly
+ *     part way through (default: 20).</dd>
+ * <dt>soak.fileSizeKb</dt>
+ * <dd>size of files downloaded and uploaded (default: 256).</dd>
+ * <dt>soak.sampleEvery</dt>
+ * <dd>number of sessions between samples (default: 250).</dd>
+ * <dt>soak.stallSeconds</dt>
+ * <dd>time without any session completing, after which the test fails
+ *     (default: 60).</dd>
+ * <dt>soak.heapGrowthMb, soak.threadGrowth, soak.fdGrowth</dt>
+ * <dd>allowed growth over the baseline of heap used after GC, live
+ *     threads and open file descriptors (defaults: 32, 4 and 16).</dd>
+ * </dl>
+ *
+ * @author Jack Leow
+ */
+public class SoakTest {
+    private static final String DIRECTORY = "/soak";
+    private static final int CHUNK_SIZE = 32768;
+    private static final int MAX_OUTSTANDING_WRITES = 16;
+    private static final int FILES = 10;
+    private static final long DRAIN_MILLIS = 10000;
+
+    /**
+     * Aborts a session, by closing it abruptly in the middle of a transfer.
+     * The transfer, and the session's remaining operations, then fail.
+     */
+    private static class Abort {
+        private final ClientSession session;
+        private final SftpClient sftp;
+        private final ScpClient scp;
+        private volatile boolean aborted;
+
+        Abort(ClientSession session, SftpClient sftp, ScpClient scp) {
+            this.session = session;
+            this.sftp = sftp;
+            this.scp = scp;
+        }
+
+        IOException abort() {
+            aborted = true;
+            session.close(true);
+            sftp.abort();
+            scp.abort();
+            return new IOException("session aborted");
+        }
+    }
+
+    /**
+     * Aborts the session once a number of bytes are written to it.
+     */
+    private static class AbortingOutputStream extends OutputStream {
+        private final Abort abort;
+        private long remaining;
+
+        AbortingOutputStream(Abort abort, long abortAfter) {
+            this.abort = abort;
+            this.remaining = abortAfter;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            remaining -= len;
+            if (remaining < 0) throw abort.abort();
+        }
+    }
+
+    /**
+     * Aborts the session once a number of bytes are read from it.
+     */
+    private static class AbortingInputStream extends FilterInputStream {
+        private final Abort abort;
+        private long remaining;
+
+        AbortingInputStream(Abort abort, InputStream in, long abortAfter) {
+            super(in);
+            this.abort = abort;
+            this.remaining = abortAfter;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining < 0) throw abort.abort();
+            final int read = super.read(b, off, len);
+            remaining -= read;
+            return read;
+        }
+    }
+
+    /**
+     * Heap used after GC, live threads and open file descriptors.
+     */
+    private static class Sample {
+        private static final MemoryMXBean memory =
+            ManagementFactory.getMemoryMXBean();
+        private static final ThreadMXBean threads =
+            ManagementFactory.getThreadMXBean();
+        private static final OperatingSystemMXBean os =
+            ManagementFactory.getOperatingSystemMXBean();
+
+        final int sessions;
+        final long heapUsed;
+        final int liveThreads;
+        final long openFds;
+
+        Sample(int sessions) throws InterruptedException {
+            for (int i = 0; i < 3; i++) {
+                System.gc();
+                Thread.sleep(50);
+            }
+            this.sessions = sessions;
+            this.heapUsed = memory.getHeapMemoryUsage().getUsed();
+            this.liveThreads = threads.getThreadCount();
+            this.openFds = openFileDescriptors();
+        }
+
+        /**
+         * The open file descriptor count is a HotSpot extension
+         * (com.sun.management), only available on UNIX-like systems.
+         *
+         * @return the count, or -1 if it is unavailable.
+         */
+        private static long openFileDescriptors() {
+            try {
+                return (Long)Class.forName(
+                    "com.sun.management.UnixOperatingSystemMXBean").
+                    getMethod("getOpenFileDescriptorCount").invoke(os);
+            } catch (Exception e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%10d %12.1f %10d %10d",
+                sessions, heapUsed / (1024.0 * 1024), liveThreads, openFds);
+        }
+    }
+
+    private final int sessions = Integer.getInteger("soak.sessions", 5000);
+    private final int warmupSessions =
+        Integer.getInteger("soak.warmupSessions", 500);
+    private final int clients = Integer.getInteger("soak.clients", 8);
+    private final int abortPercent =
+        Integer.getInteger("soak.abortPercent", 20);
+    private final long fileSize = Long.getLong("soak.fileSizeKb", 256) << 10;
+    private final int sampleEvery =
+        Integer.getInteger("soak.sampleEvery", 250);
+    private final long stallMillis =
+        Long.getLong("soak.stallSeconds", 60) * 1000;
+
+    private final AtomicInteger started = new AtomicInteger();
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicLong aborted = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final List<String> failures = new ArrayList<String>();
+
+    private static String file(Random random) {
+        return DIRECTORY + "/file" + random.nextInt(FILES) + ".bin";
+    }
+
+    /**
+     * Opens a session, runs a few operations on it and closes it, unless
+     * a transfer is aborted, in which case the session is closed abruptly.
+     */
+    private void session(SshClient client, int port, int id, Random random)
+            throws Exception {
+        final ClientSession session =
+            TransportBenchmark.connect(client, port, "anonymous");
+        try {
+            final SftpClient sftp = new SftpClient(session);
+            final ScpClient scp = new ScpClient(session);
+            final Abort abort = new Abort(session, sftp, scp);
+            try {
+                for (int ops = 1 + random.nextInt(4); ops > 0; ops--) {
+                    final boolean aborting =
+                        random.nextInt(100) < abortPercent;
+                    final long abortAfter =
+                        (long)(random.nextDouble() * fileSize);
+                    final OutputStream download = aborting ?
+                        new AbortingOutputStream(abort, abortAfter) :
+                        new TransportBenchmark.NullOutputStream();
+                    InputStream upload =
+                        new TransportBenchmark.GeneratedInputStream(fileSize);
+                    if (aborting) {
+                        upload =
+                            new AbortingInputStream(abort, upload, abortAfter);
+                    }
+                    final String uploadPath =
+                        DIRECTORY + "/uploads/" + id + ".bin";
+                    switch (random.nextInt(6)) {
+                    case 0:
+                        sftp.list(DIRECTORY);
+                        break;
+                    case 1:
+                        sftp.stat(file(random));
+                        break;
+                    case 2:
+                        sftp.get(file(random), download, CHUNK_SIZE);
+                        break;
+                    case 3:
+                        sftp.put(uploadPath, upload,
+                            CHUNK_SIZE, MAX_OUTSTANDING_WRITES);
+                        break;
+                    case 4:
+                        scp.get(file(random), download);
+                        break;
+                    default:
+                        scp.put(uploadPath, upload, fileSize);
+                        break;
+                    }
+                }
+                sftp.close();
+                session.close(false).await();
+            } catch (IOException e) {
+                // Operations on an aborted session fail, one way or another.
+                if (!abort.aborted) throw e;
+                aborted.incrementAndGet();
+            }
+        } finally {
+            session.close(true);
+        }
+    }
+
+    private void populate(SshClient client, int port) throws Exception {
+        final ClientSession session =
+            TransportBenchmark.connect(client, port, "anonymous");
+        final SftpClient sftp = new SftpClient(session);
+        sftp.mkdir(DIRECTORY);
+        sftp.mkdir(DIRECTORY + "/uploads");
+        for (int i = 0; i < FILES; i++) {
+            sftp.put(
+                DIRECTORY + "/file" + i + ".bin",
+                new TransportBenchmark.GeneratedInputStream(fileSize),
+                CHUNK_SIZE, MAX_OUTSTANDING_WRITES);
+        }
+        sftp.close();
+        session.close(false).await();
+    }
+
+    private void check(String name, double growth, double allowance) {
+        if (growth > allowance) {
+            failures.add(String.format(
+                "%s grew by %.1f (allowed: %.1f)", name, growth, allowance));
+        }
+    }
+
+    String run(final SshClient client, final int port, SftpStatistics stats)
+            throws Exception {
+        populate(client, port);
+        final CountDownLatch finished = new CountDownLatch(clients);
+        for (int i = 0; i < clients; i++) {
+            final Random random = new Random(i);
+            new Thread("soak-client-" + i) {
+                @Override
+                public void run() {
+                    try {
+                        for (int id; (id = started.incrementAndGet()) <=
+                                sessions;) {
+                            try {
+                                session(client, port, id, random);
+                            } catch (Exception e) {
+                                errors.incrementAndGet();
+                            }
+                            completed.incrementAndGet();
+                        }
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        final StringBuilder report = new StringBuilder(String.format(
+            "%10s %12s %10s %10s%n",
+            "sessions", "heap MB", "threads", "open fds"));
+        Sample baseline = null;
+        int lastCompleted = 0;
+        long lastProgress = System.currentTimeMillis();
+        int nextSample = Math.min(warmupSessions, sessions);
+        while (finished.getCount() > 0) {
+            Thread.sleep(100);
+            final int done = completed.get();
+            if (done != lastCompleted) {
+                lastCompleted = done;
+                lastProgress = System.currentTimeMillis();
+            } else if (System.currentTimeMillis() - lastProgress >
+                    stallMillis) {
+                failures.add("no session completed in " +
+                    stallMillis / 1000 + "s:\n" +
+                    BudgetCheck.connectorThreads());
+                return report.toString();
+            }
+            if (done >= nextSample) {
+                final Sample sample = new Sample(done);
+                if (baseline == null) baseline = sample;
+                report.append(sample).append('\n');
+                nextSample += sampleEvery;
+            }
+        }
+
+        // Every client has gone, so the server should have nothing open.
+        final long drained = System.currentTimeMillis() + DRAIN_MILLIS;
+        while ((stats.getActiveSessions() > 0 || stats.getOpenHandles() > 0) &&
+                System.currentTimeMillis() < drained) {
+            Thread.sleep(100);
+        }
+        final Sample last = new Sample(completed.get());
+        report.append(last).append(" (idle)\n");
+        report.append(String.format(
+            "%d sessions, %d aborted, %d errors%n",
+            completed.get(), aborted.get(), errors.get()));
+        if (baseline == null) baseline = last;
+        check("heap used (MB)", (last.heapUsed - baseline.heapUsed) /
+            (1024.0 * 1024), Long.getLong("soak.heapGrowthMb", 32));
+        check("live threads", last.liveThreads - baseline.liveThreads,
+            Integer.getInteger("soak.threadGrowth", 4));
+        if (last.openFds >= 0) {
+            check("open file descriptors", last.openFds - baseline.openFds,
+                Integer.getInteger("soak.fdGrowth", 16));
+        }
+        check("server sessions open", stats.getActiveSessions(), 0);
+        check("server file handles open", stats.getOpenHandles(), 0);
+
+        return report.toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        final SoakTest soakTest = new SoakTest();
+        final EmbeddedSftpServer server =
+            new EmbeddedSftpServer(new HashMap<String,String>());
+        server.start();
+        final SshClient client = SshClient.setUpDefaultClient();
+        client.start();
+        try {
+            System.out.print(soakTest.run(
+                client, server.getPort(), server.getProtocol().getStatistics()));
+        } finally {
+            client.stop();
+            server.stop();
+        }
+        if (!soakTest.failures.isEmpty()) {
+            for (String failure : soakTest.failures) {
+                System.out.println("FAILED: " + failure);
+            }
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * TransportBenchmark.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.tomcat.coyote.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.sshd.ClientSession;
+import org.apache.sshd.SshClient;
+import org.apache.sshd.client.future.ConnectFuture;
+import org.apache.sshd.common.FactoryManager;
+
+/**
+ * Measures SFTP upload and download throughput over loopback, across
+ * combinations of SSH channel window sizes and socket buffer sizes.
+ *
+ * Configured with system properties:
+ * <dl>
+ * <dt>benchmark.fileSizeMb</dt>
+ * <dd>size of the file transferred (default: 64).</dd>
+ * <dt>benchmark.windowSizes</dt>
+ * <dd>comma separated channel window sizes (default: 262144,2097152,8388608).</dd>
+ * <dt>benchmark.bufferSizes</dt>
+ * <dd>comma separated socket buffer sizes, -1 being the system default
+ *     (default: -1,65536,1048576).</dd>
+ * <dt>benchmark.nioWorkers</dt>
+ * <dd>number of NIO workers (default: SSHD's default).</dd>
+ * </dl>
+ *
+ * @author Jack Leow
+ */
+public class TransportBenchmark {
+    private static final int CHUNK_SIZE = 32768;
+    private static final int MAX_OUTSTANDING_WRITES = 16;
+
+    /**
+     * Generates size bytes of incompressible data, without holding all
+     * of it in memory.
+     */
+    static class GeneratedInputStream extends InputStream {
+        private final byte[] block = new byte[64 * 1024];
+        private long remaining;
+
+        GeneratedInputStream(long size) {
+            new Random(size).nextBytes(block);
+            remaining = size;
+        }
+
+        @Override
+        public int read() {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (remaining == 0) return -1;
+            final int pos = (int)(remaining % block.length);
+            final int count = (int)Math.min(
+                Math.min(len, remaining), block.length - pos);
+            System.arraycopy(block, pos, b, off, count);
+            remaining -= count;
+            return count;
+        }
+    }
+
+    /**
+     * Discards everything written to it.
+     */
+    static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {}
+
+        @Override
+        public void write(byte[] b, int off, int len) {}
+    }
+
+    static ClientSession connect(SshClient client, int port, String username)
+            throws Exception {
+        final ConnectFuture connected =
+            client.connect("127.0.0.1", port).await();
+        final ClientSession session = connected.getSession();
+        if (!session.authPassword(username, "").await().isSuccess()) {
+            throw new IOException("authentication failed for " + username);
+        }
+        return session;
+    }
+
+    private static int[] intList(String property, String defaultValue) {
+        final String[] values =
+            System.getProperty(property, defaultValue).split(",");
+        final int[] ints = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            ints[i] = Integer.parseInt(values[i].trim());
+        }
+        return ints;
+    }
+
+    private static double mbPerSecond(long bytes, long nanos) {
+        return bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+    }
+
+    private static double[] measure(
+            int windowSize, int bufferSize, long fileSize) throws Exception {
+        final Map<String,String> attrs = new HashMap<String,String>();
+        attrs.put("windowSize", Integer.toString(windowSize));
+        attrs.put("rxBufSize", Integer.toString(bufferSize));
+        attrs.put("txBufSize", Integer.toString(bufferSize));
+        if (System.getProperty("benchmark.nioWorkers") != null) {
+            attrs.put("nioWorkers", System.getProperty("benchmark.nioWorkers"));
+        }
+        final EmbeddedSftpServer server = new EmbeddedSftpServer(attrs);
+        server.start();
+        final SshClient client = SshClient.setUpDefaultClient();
+        client.getProperties().put(
+            FactoryManager.WINDOW_SIZE, Integer.toString(windowSize));
+        client.start();
+        try {
+            final ClientSession session =
+                connect(client, server.getPort(), "anonymous");
+            final SftpClient sftp = new SftpClient(session);
+
+            long start = System.nanoTime();
+            final long uploaded = sftp.put(
+                "/benchmark.bin", new GeneratedInputStream(fileSize),
+                CHUNK_SIZE, MAX_OUTSTANDING_WRITES);
+            final long uploadNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            final long downloaded =
+                sftp.get("/benchmark.bin", new NullOutputStream(), CHUNK_SIZE);
+            final long downloadNanos = System.nanoTime() - start;
+            if (uploaded != fileSize || downloaded != fileSize) {
+                throw new IOException(
+                    "transferred " + uploaded + "/" + downloaded +
+                    " bytes, expected " + fileSize);
+            }
+            sftp.close();
+            session.close(false).await();
+
+            return new double[] {
+                mbPerSecond(uploaded, uploadNanos),
+                mbPerSecond(downloaded, downloadNanos)
+            };
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final long fileSize = Long.getLong("benchmark.fileSizeMb", 64) << 20;
+        final int[] windowSizes =
+            intList("benchmark.windowSizes", "262144,2097152,8388608");
+        final int[] bufferSizes =
+            intList("benchmark.bufferSizes", "-1,65536,1048576");
+
+        final StringBuilder report = new StringBuilder(String.format(
+            "%12s %12s %14s %14s%n",
+            "window", "socket buf", "upload MB/s", "download MB/s"));
+        for (int windowSize : windowSizes) {
+            for (int bufferSize : bufferSizes) {
+                final double[] throughput =
+                    measure(windowSize, bufferSize, fileSize);
+                report.append(String.format(
+                    "%12d %12s %14.1f %14.1f%n",
+                    windowSize,
+                    bufferSize < 0 ? "default" : Integer.toString(bufferSize),
+                    throughput[0], throughput[1]));
+            }
+        }
+        System.out.print(report);
+    }
+}
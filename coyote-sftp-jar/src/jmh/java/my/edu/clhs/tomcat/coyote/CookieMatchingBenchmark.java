@@ -0,0 +1,75 @@
+/*
+ * CookieMatchingBenchmark.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.tomcat.coyote;
+
+import java.net.HttpCookie;
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Matching of a session's cookies to a request path, done for every
+ * servlet request made on behalf of an SSH session.
+ *
+ * @author Jack Leow
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CookieMatchingBenchmark {
+    /**
+     * Cookies held by the session. Up to 5 apply to the deepest path,
+     * the rest are for unrelated paths.
+     */
+    @Param({"1", "10", "100"})
+    public int cookies;
+
+    @Param({"/", "/a/b/c/d/file.txt"})
+    public String path;
+
+    private Set<HttpCookie> cookiesByPath;
+
+    @Setup
+    public void setUp() {
+        cookiesByPath =
+            new TreeSet<HttpCookie>(SftpProtocol.COOKIE_PATH_ORDER);
+        final String[] paths = {"/", "/a/", "/a/b/", "/a/b/c/", "/a/b/c/d/"};
+        for (int i = 0; i < cookies; i++) {
+            final HttpCookie cookie =
+                new HttpCookie("cookie" + i, "value" + i);
+            // Paths must be distinct, since cookies are ordered by path
+            cookie.setPath(i < paths.length ? paths[i] : "/x/" + i + "/");
+            cookiesByPath.add(cookie);
+        }
+    }
+
+    @Benchmark
+    public Collection<HttpCookie> matchCookies() {
+        return SftpProtocol.matchCookies(cookiesByPath, path);
+    }
+}
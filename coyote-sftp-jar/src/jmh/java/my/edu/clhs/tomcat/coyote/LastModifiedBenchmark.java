@@ -0,0 +1,97 @@
+/*
+ * LastModifiedBenchmark.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.tomcat.coyote;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Parsing of Last-Modified and DAV:getlastmodified dates, done for every
+ * stat and directory entry.
+ *
+ * @author Jack Leow
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LastModifiedBenchmark {
+    /**
+     * RFC1123 (the fast path), ISO8601 (Artifactory) and RFC1123 in a
+     * time zone other than GMT (parsed with a SimpleDateFormat).
+     */
+    @Param({
+        "Tue, 15 Jan 2013 21:47:38 GMT",
+        "2013-01-15T21:47:38Z",
+        "Tue, 15 Jan 2013 16:47:38 EST"
+    })
+    public String lastModified;
+
+    private SftpServletFileSystemView fileSystemView;
+    /** More distinct dates than HttpDateParser caches. */
+    private final String[] distinctDates = new String[1024];
+    private int next;
+
+    @Setup
+    public void setUp() {
+        fileSystemView = new SftpServletFileSystemView(
+            null, null, new UriDecoder("UTF-8"));
+        for (int i = 0; i < distinctDates.length; i++) {
+            distinctDates[i] = lastModified.
+                replace(":38", String.format(":%02d", i % 60)).
+                replace("15", String.format("%02d", 1 + i / 60));
+        }
+    }
+
+    /**
+     * A new file is created for every invocation, since the parsed date
+     * is memoized.
+     */
+    @Benchmark
+    public long getLastModified() {
+        return new DefaultServletResourceSshFile(
+            fileSystemView, "/file.txt", false, lastModified, 1024).
+            getLastModified();
+    }
+
+    /**
+     * Parses the same date repeatedly, as for a directory whose entries
+     * share a timestamp (served from HttpDateParser's cache).
+     */
+    @Benchmark
+    public long parseDate() {
+        return HttpDateParser.parse(lastModified);
+    }
+
+    /**
+     * Parses dates that are rarely in HttpDateParser's cache.
+     */
+    @Benchmark
+    public long parseDistinctDates() {
+        final String date = distinctDates[next];
+        next = (next + 1) & (distinctDates.length - 1);
+        return HttpDateParser.parse(date);
+    }
+}
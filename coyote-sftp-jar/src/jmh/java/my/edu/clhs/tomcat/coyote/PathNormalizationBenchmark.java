@@ -0,0 +1,63 @@
+/*
+ * PathNormalizationBenchmark.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.tomcat.coyote;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Path normalization, done for every stat and directory entry: once by
+ * {@link SftpServletFileSystemView#getFile(String)}, and again when the
+ * {@link AbstractServletResourceSshFile} is created.
+ *
+ * @author Jack Leow
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PathNormalizationBenchmark {
+    @Param({"/", "/file.txt", "/a/b/../c/./d/file.txt"})
+    public String path;
+
+    private SftpServletFileSystemView fileSystemView;
+
+    @Setup
+    public void setUp() {
+        fileSystemView = new SftpServletFileSystemView(
+            null, null, new UriDecoder("UTF-8"));
+    }
+
+    @Benchmark
+    public String absolutePath() {
+        return SftpServletFileSystemView.absolutePath(path);
+    }
+
+    @Benchmark
+    public String createFile() {
+        return new DefaultServletResourceSshFile(
+            fileSystemView, path, false, null, 1024).getAbsolutePath();
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * PipeBenchmark.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.tomcat.coyote;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import my.edu.clhs.sshd.server.BufferPool;
+import my.edu.clhs.sshd.server.ChunkPipe;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Hands a response body from the servlet's thread to the SFTP
+ * subsystem's, as {@link SftpServletFileSystemView#getFileInputStream}
+ * does, using a {@link PipedInputStream} with its default 1KB buffer, a
+ * {@link PipedInputStream} with a larger buffer, a queue of chunks, and
+ * a {@link ChunkPipe} of pooled buffers (which the view now uses).
+ *
+ * Each invocation transfers 16MB, written in the servlet container's
+ * 8KB chunks and read with the given buffer size.
+ *
+ * @author Jack Leow
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PipeBenchmark {
+    private static final int TRANSFER_SIZE = 16 << 20;
+    private static final int WRITE_SIZE = 8192;
+    private static final byte[] END = new byte[0];
+
+    /** Size of the SFTP READ requests (OpenSSH requests 32KB). */
+    @Param({"1024", "32768"})
+    public int readSize;
+
+    private final byte[] chunk = new byte[WRITE_SIZE];
+    private final BufferPool pool = new BufferPool(65536, 16);
+    private ExecutorService writer;
+
+    @Setup
+    public void setUp() {
+        writer = Executors.newSingleThreadExecutor();
+    }
+
+    @TearDown
+    public void tearDown() {
+        writer.shutdownNow();
+    }
+
+    private long pipe(int pipeSize) throws Exception {
+        final PipedInputStream in = new PipedInputStream(pipeSize);
+        final OutputStream out = new PipedOutputStream(in);
+        final Future<?> written = writer.submit(new Callable<Void>() {
+            public Void call() throws IOException {
+                for (int i = 0; i < TRANSFER_SIZE / WRITE_SIZE; i++) {
+                    out.write(chunk, 0, WRITE_SIZE);
+                }
+                out.close();
+                return null;
+            }
+        });
+        final long read = drain(in);
+        written.get();
+        return read;
+    }
+
+    private long drain(InputStream in) throws IOException {
+        final byte[] buffer = new byte[readSize];
+        long total = 0;
+        for (int len; (len = in.read(buffer)) != -1;) total += len;
+        return total;
+    }
+
+    @Benchmark
+    public long pipedStream1K() throws Exception {
+        return pipe(1024);
+    }
+
+    @Benchmark
+    public long pipedStream64K() throws Exception {
+        return pipe(65536);
+    }
+
+    /**
+     * Hands over copies of each chunk written, through a bounded queue.
+     */
+    @Benchmark
+    public long chunkQueue() throws Exception {
+        final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(8);
+        final Future<?> written = writer.submit(new Callable<Void>() {
+            public Void call() throws InterruptedException {
+                for (int i = 0; i < TRANSFER_SIZE / WRITE_SIZE; i++) {
+                    queue.put(chunk.clone());
+                }
+                queue.put(END);
+                return null;
+            }
+        });
+        long total = 0;
+        byte[] current = null;
+        int position = 0;
+        final byte[] buffer = new byte[readSize];
+        while (true) {
+            if (current == null || position == current.length) {
+                current = queue.take();
+                position = 0;
+                if (current == END) break;
+            }
+            final int len = Math.min(buffer.length, current.length - position);
+            System.arraycopy(current, position, buffer, 0, len);
+            position += len;
+            total += len;
+        }
+        written.get();
+        return total;
+    }
+
+    @Benchmark
+    public long chunkPipe() throws Exception {
+        final ChunkPipe pipe = new ChunkPipe(pool, 4);
+        final OutputStream out = pipe.getSink();
+        final Future<?> written = writer.submit(new Callable<Void>() {
+            public Void call() throws IOException {
+                for (int i = 0; i < TRANSFER_SIZE / WRITE_SIZE; i++) {
+                    out.write(chunk, 0, WRITE_SIZE);
+                }
+                out.close();
+                return null;
+            }
+        });
+        final InputStream in = pipe.getSource();
+        final long read = drain(in);
+        in.close();
+        written.get();
+        return read;
+    }
+}
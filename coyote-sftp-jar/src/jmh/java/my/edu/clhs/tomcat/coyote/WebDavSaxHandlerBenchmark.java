@@ -0,0 +1,93 @@
+/*
+ * WebDavSaxHandlerBenchmark.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.tomcat.coyote;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.sshd.server.SshFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Parses DAV:multistatus responses, as returned by Tomcat's WebdavServlet
+ * for a PROPFIND of a directory, into {@link SshFile}s.
+ *
+ * @author Jack Leow
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class WebDavSaxHandlerBenchmark {
+    private static final String DIRECTORY = "/benchmark";
+
+    @Param({"1", "100", "100000"})
+    public int entries;
+
+    private SftpServletFileSystemView fileSystemView;
+    private byte[] multiStatusXml;
+
+    static byte[] multiStatusXml(String directory, int entries)
+            throws Exception {
+        final StringBuilder xml = new StringBuilder(
+            "<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n" +
+            "<D:multistatus xmlns:D=\"DAV:\">");
+        for (int i = 0; i < entries; i++) {
+            final boolean collection = i % 10 == 0;
+            xml.append("<D:response><D:href>").
+                append(directory).append("/entr%C3%A9e-").append(i).
+                append(collection ? "/" : ".txt").
+                append("</D:href><D:propstat><D:prop>").
+                append("<D:displayname>entry ").append(i).
+                append("</D:displayname>").
+                append("<D:getlastmodified>").
+                append("Tue, 15 Jan 2013 21:47:38 GMT").
+                append("</D:getlastmodified>");
+            if (collection) {
+                xml.append("<D:resourcetype><D:collection/></D:resourcetype>");
+            } else {
+                xml.append("<D:resourcetype/>").
+                    append("<D:getcontentlength>").append(i * 1024L).
+                    append("</D:getcontentlength>");
+            }
+            xml.append("</D:prop><D:status>HTTP/1.1 200 OK</D:status>").
+                append("</D:propstat></D:response>");
+        }
+        return xml.append("</D:multistatus>").toString().getBytes("UTF-8");
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        fileSystemView = new SftpServletFileSystemView(
+            null, null, new UriDecoder("UTF-8"));
+        multiStatusXml = multiStatusXml(DIRECTORY, entries);
+    }
+
+    @Benchmark
+    public List<? extends SshFile> parse() throws DavProcessingException {
+        return fileSystemView.xmlToFiles(
+            DIRECTORY, new ByteArrayInputStream(multiStatusXml), DIRECTORY);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * BlockDigest.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.sshd.server;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Digests a range of a file in fixed size blocks, as required by the
+ * check-file extensions (from draft-ietf-secsh-filexfer). The file's
+ * contents are fed to it as they are read, bytes beyond the range are
+ * ignored.
+ *
+ * @author Jack Leow
+ */
+public class BlockDigest {
+    private final MessageDigest digest;
+    private final int blockSize;
+    private final ByteArrayOutputStream digests = new ByteArrayOutputStream();
+    private long remaining;
+    private long blockRemaining;
+
+    /**
+     * @param algorithm the {@link MessageDigest} algorithm.
+     * @param length the length of the range, 0 for the rest of the file.
+     * @param blockSize the size of the blocks digested separately, 0 to
+     *        digest the range as a whole.
+     * @throws IllegalArgumentException if the algorithm is unavailable.
+     */
+    public BlockDigest(String algorithm, long length, int blockSize) {
+        try {
+            digest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException(e);
+        }
+        this.blockSize = blockSize;
+        remaining = length > 0 ? length : Long.MAX_VALUE;
+        blockRemaining = blockSize > 0 ? blockSize : Long.MAX_VALUE;
+    }
+
+    public void update(byte[] bytes, int offset, int length) {
+        length = (int)Math.min(length, remaining);
+        remaining -= length;
+        while (length > 0) {
+            final int blockLength = (int)Math.min(length, blockRemaining);
+            digest.update(bytes, offset, blockLength);
+            offset += blockLength;
+            length -= blockLength;
+            blockRemaining -= blockLength;
+            if (blockRemaining == 0) {
+                final byte[] blockDigest = digest.digest();
+                digests.write(blockDigest, 0, blockDigest.length);
+                blockRemaining = blockSize;
+            }
+        }
+    }
+
+    public int getDigestLength() {
+        return digest.getDigestLength();
+    }
+
+    /**
+     * @return whether the whole range has been digested.
+     */
+    public boolean isComplete() {
+        return remaining == 0;
+    }
+
+    /**
+     * @return the digests of each block, concatenated. When digesting a
+     *         range as a whole, its digest (even if it is empty).
+     */
+    public byte[] finish() {
+        if (blockSize == 0 || blockRemaining != blockSize) {
+            final byte[] blockDigest = digest.digest();
+            digests.write(blockDigest, 0, blockDigest.length);
+        }
+        return digests.toByteArray();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * BufferPool.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.sshd.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of same sized byte arrays, shared by concurrent transfers so that
+ * large transfer buffers are not allocated (and collected) per file.
+ * Buffers are allocated when the pool is empty, and dropped when it is
+ * full, taking from the pool never blocks.
+ *
+ * @author Jack Leow
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<byte[]> pooled =
+        new ConcurrentLinkedQueue<byte[]>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * @param bufferSize the size of the buffers.
+     * @param maxPooled the number of buffers kept for reuse.
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException(
+                "Invalid buffer size: " + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return a pooled buffer, or a new one if none are pooled.
+     */
+    public byte[] take() {
+        final byte[] buffer = pooled.poll();
+        if (buffer == null) return new byte[bufferSize];
+        size.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool, it must no longer be used.
+     */
+    public void give(byte[] buffer) {
+        if (buffer == null || buffer.length != bufferSize) return;
+        if (size.incrementAndGet() > maxPooled) {
+            size.decrementAndGet();
+            return;
+        }
+        pooled.offer(buffer);
+    }
+}
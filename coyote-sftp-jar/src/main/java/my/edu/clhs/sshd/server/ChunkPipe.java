@@ -0,0 +1,294 @@
+/*
+ * ChunkPipe.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.sshd.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Hands a stream of data from one thread to another, in place of a
+ * {@link java.io.PipedOutputStream}/{@link java.io.PipedInputStream}
+ * pair. Data is passed in whole buffers taken from a {@link BufferPool}:
+ * written bytes are collected in the sink's current buffer, which is only
+ * handed over once full, flushed or closed. A writer that fills pooled
+ * buffers itself hands them over without copying them
+ * ({@link Sink#handOff(byte[], int)}), as can a reader that consumes
+ * whole buffers ({@link Source#nextChunk()}).
+ *
+ * Closing the source fails the sink's pending and later writes, so that
+ * a writer is never left blocked on a reader that has gone away.
+ *
+ * @author Jack Leow
+ */
+public class ChunkPipe {
+    private final BufferPool pool;
+    private final byte[][] buffers;
+    private final int[] lengths;
+    private int head = 0;
+    private int count = 0;
+    private boolean sinkClosed = false;
+    private boolean sourceClosed = false;
+
+    private final Sink sink = new Sink();
+    private final Source source = new Source();
+
+    /**
+     * @param pool the pool buffers are taken from, and returned to.
+     * @param capacity the number of buffers handed over, but not yet
+     *        read, before the writer blocks.
+     */
+    public ChunkPipe(BufferPool pool, int capacity) {
+        this.pool = pool;
+        buffers = new byte[capacity][];
+        lengths = new int[capacity];
+    }
+
+    public BufferPool getPool() {
+        return pool;
+    }
+
+    public Sink getSink() {
+        return sink;
+    }
+
+    public Source getSource() {
+        return source;
+    }
+
+    private synchronized void put(byte[] buffer, int length)
+            throws IOException {
+        try {
+            while (count == buffers.length && !sourceClosed) wait();
+        } catch (InterruptedException e) {
+            pool.give(buffer);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if (sourceClosed || sinkClosed) {
+            pool.give(buffer);
+            throw new IOException("Pipe closed");
+        }
+        final int tail = (head + count) % buffers.length;
+        buffers[tail] = buffer;
+        lengths[tail] = length;
+        ++count;
+        notifyAll();
+    }
+
+    private synchronized int take(Source source) throws IOException {
+        try {
+            while (count == 0 && !sinkClosed && !sourceClosed) wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if (sourceClosed) throw new IOException("Pipe closed");
+        if (count == 0) return -1;
+        source.chunk = buffers[head];
+        final int length = lengths[head];
+        buffers[head] = null;
+        head = (head + 1) % buffers.length;
+        --count;
+        notifyAll();
+        return length;
+    }
+
+    private synchronized void closeSink() {
+        sinkClosed = true;
+        notifyAll();
+    }
+
+    private synchronized void closeSource() {
+        sourceClosed = true;
+        for (; count > 0; --count) {
+            pool.give(buffers[head]);
+            buffers[head] = null;
+            head = (head + 1) % buffers.length;
+        }
+        notifyAll();
+    }
+
+    /**
+     * The writing end of the pipe, used by a single thread.
+     */
+    public class Sink extends OutputStream {
+        private byte[] current;
+        private int filled = 0;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        /**
+         * Copies the bytes into the current pooled buffer, handing it over
+         * whenever it is full.
+         */
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (current == null) current = pool.take();
+                final int length = Math.min(len, current.length - filled);
+                System.arraycopy(b, off, current, filled, length);
+                filled += length;
+                off += length;
+                len -= length;
+                if (filled == current.length) handOffCurrent();
+            }
+        }
+
+        private void handOffCurrent() throws IOException {
+            final byte[] buffer = current;
+            final int length = filled;
+            current = null;
+            filled = 0;
+            put(buffer, length);
+        }
+
+        /**
+         * Hands the current buffer over, if anything has been written to
+         * it.
+         */
+        @Override
+        public void flush() throws IOException {
+            if (filled > 0) handOffCurrent();
+        }
+
+        /**
+         * Hands a buffer over to the reader without copying it, after
+         * the current buffer. The buffer belongs to the pipe from then on
+         * (even if this fails).
+         *
+         * @param buffer a buffer from the pipe's pool.
+         * @param length the number of bytes in the buffer.
+         */
+        public void handOff(byte[] buffer, int length) throws IOException {
+            try {
+                flush();
+            } catch (IOException e) {
+                pool.give(buffer);
+                throw e;
+            }
+            if (length > 0) {
+                put(buffer, length);
+            } else {
+                pool.give(buffer);
+            }
+        }
+
+        /**
+         * Hands the current buffer over, and signals the end of the data,
+         * once the reader has read what was handed over.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                if (current != null) {
+                    pool.give(current);
+                    current = null;
+                }
+                closeSink();
+            }
+        }
+    }
+
+    /**
+     * The reading end of the pipe, used by a single thread.
+     */
+    public class Source extends InputStream {
+        private byte[] chunk;
+        private int position = 0;
+        private int limit = 0;
+
+        /**
+         * Waits for the next chunk of data, returning the current one to
+         * the pool.
+         *
+         * @return the length of the chunk (in {@link #chunk()}), -1 at
+         *         the end of the data.
+         */
+        public int nextChunk() throws IOException {
+            if (chunk != null) {
+                pool.give(chunk);
+                chunk = null;
+            }
+            final int length = take(this);
+            position = 0;
+            limit = Math.max(length, 0);
+            return length;
+        }
+
+        /**
+         * @return the current chunk, it is only valid until the next call
+         *         to {@link #nextChunk()} (or to the read methods).
+         */
+        public byte[] chunk() {
+            return chunk;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (position == limit && nextChunk() < 0) return -1;
+            final int length = Math.min(len, limit - position);
+            System.arraycopy(chunk, position, b, off, length);
+            position += length;
+            return length;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            while (skipped < n) {
+                if (position == limit && nextChunk() < 0) break;
+                final int length = (int)Math.min(n - skipped, limit - position);
+                position += length;
+                skipped += length;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return limit - position;
+        }
+
+        /**
+         * Returns all buffers to the pool, and fails further writes.
+         */
+        @Override
+        public void close() {
+            closeSource();
+            if (chunk != null) {
+                pool.give(chunk);
+                chunk = null;
+            }
+            position = limit = 0;
+        }
+    }
+}
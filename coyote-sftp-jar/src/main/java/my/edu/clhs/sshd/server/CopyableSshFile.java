@@ -0,0 +1,37 @@
+/*
+ * CopyableSshFile.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.sshd.server;
+
+import org.apache.sshd.server.SshFile;
+
+/**
+ * {@link SshFile} that can be copied where it is stored, without its
+ * contents passing through the SSH server.
+ *
+ * @author Jack Leow
+ */
+public interface CopyableSshFile extends SshFile {
+    /**
+     * @param destination the file to copy to.
+     * @param recursive whether the contents of a directory are copied,
+     *        or only the directory itself.
+     * @param overwrite whether an existing destination is replaced.
+     * @return whether the file was copied.
+     */
+    boolean copy(SshFile destination, boolean recursive, boolean overwrite);
+}
@@ -0,0 +1,42 @@
+/*
+ * DigestibleSshFile.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.sshd.server;
+
+import java.io.IOException;
+
+import org.apache.sshd.server.SshFile;
+
+/**
+ * {@link SshFile} that can be digested where it is stored, without its
+ * contents passing through the SSH server.
+ *
+ * @author Jack Leow
+ */
+public interface DigestibleSshFile extends SshFile {
+    /**
+     * @param algorithm the {@link java.security.MessageDigest} algorithm,
+     *        e.g., "SHA-256".
+     * @param offset the start of the range digested.
+     * @param length the length of the range, 0 for the rest of the file.
+     * @param blockSize the size of the blocks digested separately, 0 to
+     *        digest the range as a whole.
+     * @return the digests of each block, concatenated.
+     */
+    byte[] digest(String algorithm, long offset, long length, int blockSize)
+        throws IOException;
+}
@@ -0,0 +1,41 @@
+/*
+ * DispatchingFileSystemView.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.sshd.server;
+
+import java.io.IOException;
+
+import org.apache.sshd.server.FileSystemView;
+
+/**
+ * {@link FileSystemView} that runs long operations on files (e.g., the
+ * cp and rm commands) on its own threads, subject to the same limits as
+ * its transfers, rather than on threads of their own.
+ *
+ * @author Jack Leow
+ */
+public interface DispatchingFileSystemView extends FileSystemView {
+    /**
+     * Starts running a task in the background, which may wait for the
+     * task to be scheduled.
+     *
+     * @param name describes the task, e.g., its command line.
+     * @param task the task, which may make (blocking) use of this view.
+     * @throws IOException if the task could not be scheduled.
+     */
+    void dispatch(String name, Runnable task) throws IOException;
+}
@@ -0,0 +1,39 @@
+/*
+ * LengthAwareSshFile.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.sshd.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.sshd.server.SshFile;
+
+/**
+ * {@link SshFile} that can make use of the length of its contents, when
+ * it is known before they are written (as it is with SCP uploads).
+ *
+ * @author Jack Leow
+ */
+public interface LengthAwareSshFile extends SshFile {
+    /**
+     * @param offset the offset to start writing at.
+     * @param length the number of bytes that will be written.
+     * @return a stream to write the contents to.
+     */
+    OutputStream createOutputStream(long offset, long length)
+        throws IOException;
+}
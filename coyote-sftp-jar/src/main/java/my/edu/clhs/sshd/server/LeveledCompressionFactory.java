@@ -0,0 +1,89 @@
+/*
+ * LeveledCompressionFactory.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.sshd.server;
+
+import java.io.IOException;
+
+import org.apache.sshd.common.Compression;
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.common.util.Buffer;
+
+/**
+ * Compression factory that sets the compression level of another
+ * factory's compressions, as SSHD always deflates at zlib's default
+ * level (6), e.g.:
+ *
+ * <pre>
+ * new LeveledCompressionFactory(new CompressionZlib.Factory(), 1)
+ * </pre>
+ *
+ * Lower levels trade bytes sent for the server's CPU time. The level
+ * only applies to the data compressed here, data sent by clients is
+ * compressed at their own level.
+ *
+ * @author Jack Leow
+ */
+public class LeveledCompressionFactory implements NamedFactory<Compression> {
+    private final NamedFactory<Compression> factory;
+    private final int level;
+
+    /**
+     * @param level 1 (fastest) to 9 (smallest), or -1 for zlib's default.
+     */
+    public LeveledCompressionFactory(
+            NamedFactory<Compression> factory, int level) {
+        if (level != -1 && (level < 1 || level > 9)) {
+            throw new IllegalArgumentException(
+                "compression level must be between 1 and 9, or -1");
+        }
+        this.factory = factory;
+        this.level = level;
+    }
+
+    // @Override - NamedFactory
+    public String getName() {
+        return factory.getName();
+    }
+
+    // @Override - NamedFactory
+    public Compression create() {
+        final Compression compression = factory.create();
+        return new Compression() {
+            // @Override - Compression
+            public boolean isDelayed() {
+                return compression.isDelayed();
+            }
+
+            // @Override - Compression
+            public void init(Type type, int defaultLevel) {
+                compression.init(
+                    type, type == Type.Deflater ? level : defaultLevel);
+            }
+
+            // @Override - Compression
+            public void compress(Buffer buffer) throws IOException {
+                compression.compress(buffer);
+            }
+
+            // @Override - Compression
+            public void uncompress(Buffer from, Buffer to) throws IOException {
+                compression.uncompress(from, to);
+            }
+        };
+    }
+}
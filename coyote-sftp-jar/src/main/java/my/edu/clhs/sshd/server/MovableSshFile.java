@@ -0,0 +1,36 @@
+/*
+ * MovableSshFile.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.sshd.server;
+
+import org.apache.sshd.server.SshFile;
+
+/**
+ * {@link SshFile} that can be moved either replacing an existing
+ * destination or failing if there is one, in a single operation, rather
+ * than by checking beforehand (which races with other clients).
+ *
+ * @author Jack Leow
+ */
+public interface MovableSshFile extends SshFile {
+    /**
+     * @param destination the file to move to.
+     * @param overwrite whether an existing destination is replaced.
+     * @return whether the file was moved.
+     */
+    boolean move(SshFile destination, boolean overwrite);
+}
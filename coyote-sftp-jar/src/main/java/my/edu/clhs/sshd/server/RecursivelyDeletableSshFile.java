@@ -0,0 +1,41 @@
+/*
+ * RecursivelyDeletableSshFile.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.sshd.server;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.sshd.server.SshFile;
+
+/**
+ * {@link SshFile} that can be deleted along with everything under it in
+ * a single operation where it is stored, instead of one file at a time.
+ *
+ * @author Jack Leow
+ */
+public interface RecursivelyDeletableSshFile extends SshFile {
+    /**
+     * Deletes this file, and if it is a directory, all of its contents.
+     *
+     * @return the paths that could not be deleted (e.g., because they are
+     *         locked), with the reason for each, empty if the whole tree
+     *         was deleted.
+     * @throws IOException if nothing was deleted.
+     */
+    Map<String,String> deleteTree() throws IOException;
+}
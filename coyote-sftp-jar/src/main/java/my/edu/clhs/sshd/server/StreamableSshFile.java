@@ -0,0 +1,40 @@
+/*
+ * StreamableSshFile.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.sshd.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.sshd.server.SshFile;
+
+/**
+ * {@link SshFile} whose contents can be written straight to a stream
+ * (e.g., an SCP channel) by whatever produces them, rather than being
+ * read through an {@link java.io.InputStream}.
+ *
+ * @author Jack Leow
+ */
+public interface StreamableSshFile extends SshFile {
+    /**
+     * Writes the file's contents to out, returning once all of it has
+     * been written.
+     *
+     * @return the number of bytes written.
+     */
+    long transferTo(OutputStream out) throws IOException;
+}
@@ -0,0 +1,46 @@
+/*
+ * UploadingFileSystemView.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.sshd.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Future;
+
+import org.apache.sshd.server.FileSystemView;
+
+/**
+ * {@link FileSystemView} that can store files in the background, from
+ * contents that have already been received (e.g., spooled), so that
+ * several files may be stored at once.
+ *
+ * @author Jack Leow
+ */
+public interface UploadingFileSystemView extends FileSystemView {
+    /**
+     * Starts storing a file, which may wait for the upload to be
+     * scheduled.
+     *
+     * @param path the path of the file.
+     * @param contents the file's contents, closed once they are stored.
+     * @param length the length of the contents.
+     * @return completes once the file has been stored, or fails (with an
+     *         {@link IOException} cause) if it could not be.
+     */
+    Future<?> upload(String path, InputStream contents, long length)
+        throws IOException;
+}
@@ -0,0 +1,260 @@
+/*
+ * ServletCopyCommand.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.sshd.server.command;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import my.edu.clhs.sshd.server.CopyableSshFile;
+import my.edu.clhs.sshd.server.DispatchingFileSystemView;
+
+import org.apache.sshd.server.Command;
+import org.apache.sshd.server.Environment;
+import org.apache.sshd.server.ExitCallback;
+import org.apache.sshd.server.FileSystemAware;
+import org.apache.sshd.server.FileSystemView;
+import org.apache.sshd.server.SshFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cp command, that copies {@link CopyableSshFile}s where they are
+ * stored, so that their contents are not transferred over SSH, e.g.:
+ *
+ * <pre>
+ * ssh -p 2222 user@host cp -r /releases/1.0 /releases/1.0-backup
+ * </pre>
+ *
+ * Supports the -r (or -R) and -n options of POSIX cp, existing files are
+ * otherwise replaced (as with -f).
+ *
+ * @author Jack Leow
+ */
+public class ServletCopyCommand
+        implements Command, Runnable, FileSystemAware {
+    private static final Logger log =
+        LoggerFactory.getLogger(ServletCopyCommand.class);
+
+    private final String name;
+    private boolean recursive = false;
+    private boolean overwrite = true;
+    private final List<String> operands = new ArrayList<String>();
+    private IOException error;
+
+    private FileSystemView root;
+    private OutputStream err;
+    private ExitCallback callback;
+
+    /**
+     * @param args the command's arguments, including the command name.
+     */
+    public ServletCopyCommand(String[] args) {
+        name = Arrays.asList(args).toString();
+        boolean options = true;
+        for (int i = 1; i < args.length; i++) {
+            final String arg = args[i];
+            if (options && arg.equals("--")) {
+                options = false;
+            } else if (options && arg.length() > 1 && arg.charAt(0) == '-') {
+                for (int j = 1; j < arg.length(); j++) {
+                    switch (arg.charAt(j)) {
+                    case 'r':
+                    case 'R':
+                        recursive = true;
+                        break;
+                    case 'n':
+                        overwrite = false;
+                        break;
+                    case 'f':
+                        overwrite = true;
+                        break;
+                    default:
+                        error = new IOException(
+                            "cp: invalid option -- '" + arg.charAt(j) + "'");
+                    }
+                }
+            } else {
+                operands.add(arg);
+            }
+        }
+        if (error == null && operands.size() < 2) {
+            error = new IOException(
+                "usage: cp [-r] [-n] source_file... target");
+        }
+    }
+
+    /**
+     * Splits a command line into its arguments, separated by whitespace
+     * unless quoted (with single or double quotes) or escaped (with a
+     * backslash), as the shell would.
+     */
+    static String[] splitArguments(String command) {
+        final List<String> args = new ArrayList<String>();
+        final StringBuilder arg = new StringBuilder();
+        boolean inArg = false;
+        char quote = 0;
+        for (int i = 0; i < command.length(); i++) {
+            final char c = command.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                } else if (c == '\\' && quote == '"' &&
+                        i + 1 < command.length()) {
+                    arg.append(command.charAt(++i));
+                } else {
+                    arg.append(c);
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+                inArg = true;
+            } else if (c == '\\' && i + 1 < command.length()) {
+                arg.append(command.charAt(++i));
+                inArg = true;
+            } else if (Character.isWhitespace(c)) {
+                if (inArg) {
+                    args.add(arg.toString());
+                    arg.setLength(0);
+                    inArg = false;
+                }
+            } else {
+                arg.append(c);
+                inArg = true;
+            }
+        }
+        if (inArg) args.add(arg.toString());
+
+        return args.toArray(new String[args.size()]);
+    }
+
+    // @Override - FileSystemAware
+    public void setFileSystemView(FileSystemView view) {
+        root = view;
+    }
+
+    // @Override - Command
+    public void setInputStream(InputStream in) {
+        // not used
+    }
+
+    // @Override - Command
+    public void setOutputStream(OutputStream out) {
+        // not used
+    }
+
+    // @Override - Command
+    public void setErrorStream(OutputStream err) {
+        this.err = err;
+    }
+
+    // @Override - Command
+    public void setExitCallback(ExitCallback callback) {
+        this.callback = callback;
+    }
+
+    // @Override - Command
+    public void start(Environment env) throws IOException {
+        // Copies are made with (blocking) servlet requests, on the
+        // view's threads where it has them, as its transfers are
+        if (error != null) {
+            run();
+        } else if (root instanceof DispatchingFileSystemView) {
+            try {
+                ((DispatchingFileSystemView)root).dispatch(name, this);
+            } catch (IOException e) {
+                error = new IOException("cp: " + e.getMessage(), e);
+                run();
+            }
+        } else {
+            new Thread(this, "ServletCopyCommand: " + name).start();
+        }
+    }
+
+    // @Override - Command
+    public void destroy() {
+        // do nothing
+    }
+
+    // @Override - Runnable
+    public void run() {
+        int exitValue = 0;
+        try {
+            if (error != null) throw error;
+
+            final int last = operands.size() - 1;
+            final List<String> sources = operands.subList(0, last);
+            final SshFile target = root.getFile(operands.get(last));
+            final boolean intoDirectory =
+                target.doesExist() && target.isDirectory();
+            if (!intoDirectory && sources.size() > 1) {
+                throw new IOException(
+                    "cp: target '" + target + "' is not a directory");
+            }
+            for (String sourcePath : sources) {
+                final SshFile source = root.getFile(sourcePath);
+                final String problem;
+                if (!source.doesExist()) {
+                    problem = "cannot stat '" + sourcePath +
+                        "': No such file or directory";
+                } else if (source.isDirectory() && !recursive) {
+                    problem = "-r not specified; omitting directory '" +
+                        sourcePath + "'";
+                } else if (!(source instanceof CopyableSshFile)) {
+                    problem = "cannot copy '" + sourcePath +
+                        "': Operation not supported";
+                } else {
+                    final SshFile destination = intoDirectory ?
+                        root.getFile(target, source.getName()) : target;
+                    if (!overwrite && destination.doesExist()) {
+                        problem = null;
+                    } else if (!((CopyableSshFile)source).copy(
+                            destination, recursive, overwrite)) {
+                        problem = "cannot copy '" + sourcePath + "' to '" +
+                            destination + "'";
+                    } else {
+                        problem = null;
+                    }
+                }
+                if (problem != null) {
+                    exitValue = 1;
+                    err.write(("cp: " + problem + "\n").getBytes("UTF-8"));
+                }
+            }
+        } catch (IOException e) {
+            exitValue = 1;
+            try {
+                err.write((e.getMessage() + "\n").getBytes("UTF-8"));
+            } catch (IOException e2) {
+                // the channel is gone
+            }
+        } catch (RuntimeException e) {
+            log.warn("Error in cp command", e);
+            exitValue = 1;
+        } finally {
+            try {
+                err.flush();
+            } catch (IOException e) {
+                // the channel is gone
+            }
+            if (callback != null) callback.onExit(exitValue);
+        }
+    }
+}
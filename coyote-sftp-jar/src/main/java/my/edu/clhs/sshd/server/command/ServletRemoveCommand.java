@@ -0,0 +1,225 @@
+/*
+ * ServletRemoveCommand.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.sshd.server.command;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import my.edu.clhs.sshd.server.DispatchingFileSystemView;
+import my.edu.clhs.sshd.server.RecursivelyDeletableSshFile;
+
+import org.apache.sshd.server.Command;
+import org.apache.sshd.server.Environment;
+import org.apache.sshd.server.ExitCallback;
+import org.apache.sshd.server.FileSystemAware;
+import org.apache.sshd.server.FileSystemView;
+import org.apache.sshd.server.SshFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An rm command, that removes {@link RecursivelyDeletableSshFile}
+ * directories with everything in them in a single operation where they
+ * are stored, rather than one file at a time as SFTP clients do, e.g.:
+ *
+ * <pre>
+ * ssh -p 2222 user@host rm -r /releases/0.9
+ * </pre>
+ *
+ * Files that are not directories are deleted on their own, as with
+ * SFTP.
+ *
+ * Supports the -r (or -R) and -f options of POSIX rm. Every file that
+ * could not be removed is reported, with the reason given by the
+ * server.
+ *
+ * @author Jack Leow
+ */
+public class ServletRemoveCommand
+        implements Command, Runnable, FileSystemAware {
+    private static final Logger log =
+        LoggerFactory.getLogger(ServletRemoveCommand.class);
+
+    private final String name;
+    private boolean recursive = false;
+    private boolean force = false;
+    private final List<String> operands = new ArrayList<String>();
+    private IOException error;
+
+    private FileSystemView root;
+    private OutputStream err;
+    private ExitCallback callback;
+
+    /**
+     * @param args the command's arguments, including the command name.
+     */
+    public ServletRemoveCommand(String[] args) {
+        name = Arrays.asList(args).toString();
+        boolean options = true;
+        for (int i = 1; i < args.length; i++) {
+            final String arg = args[i];
+            if (options && arg.equals("--")) {
+                options = false;
+            } else if (options && arg.length() > 1 && arg.charAt(0) == '-') {
+                for (int j = 1; j < arg.length(); j++) {
+                    switch (arg.charAt(j)) {
+                    case 'r':
+                    case 'R':
+                        recursive = true;
+                        break;
+                    case 'f':
+                        force = true;
+                        break;
+                    default:
+                        error = new IOException(
+                            "rm: invalid option -- '" + arg.charAt(j) + "'");
+                    }
+                }
+            } else {
+                operands.add(arg);
+            }
+        }
+        if (error == null && operands.isEmpty() && !force) {
+            error = new IOException("usage: rm [-f] [-r] file...");
+        }
+    }
+
+    // @Override - FileSystemAware
+    public void setFileSystemView(FileSystemView view) {
+        root = view;
+    }
+
+    // @Override - Command
+    public void setInputStream(InputStream in) {
+        // not used
+    }
+
+    // @Override - Command
+    public void setOutputStream(OutputStream out) {
+        // not used
+    }
+
+    // @Override - Command
+    public void setErrorStream(OutputStream err) {
+        this.err = err;
+    }
+
+    // @Override - Command
+    public void setExitCallback(ExitCallback callback) {
+        this.callback = callback;
+    }
+
+    // @Override - Command
+    public void start(Environment env) throws IOException {
+        // Removals are made with (blocking) servlet requests, on the
+        // view's threads where it has them, as its transfers are
+        if (error != null) {
+            run();
+        } else if (root instanceof DispatchingFileSystemView) {
+            try {
+                ((DispatchingFileSystemView)root).dispatch(name, this);
+            } catch (IOException e) {
+                error = new IOException("rm: " + e.getMessage(), e);
+                run();
+            }
+        } else {
+            new Thread(this, "ServletRemoveCommand: " + name).start();
+        }
+    }
+
+    // @Override - Command
+    public void destroy() {
+        // do nothing
+    }
+
+    private void problem(String problem) throws IOException {
+        err.write(("rm: " + problem + "\n").getBytes("UTF-8"));
+    }
+
+    /**
+     * @return whether the whole file (or tree) was removed.
+     */
+    private boolean remove(String path) throws IOException {
+        final SshFile file = root.getFile(path);
+        if (!file.doesExist()) {
+            if (force) return true;
+            problem(
+                "cannot remove '" + path + "': No such file or directory");
+            return false;
+        } else if (file.isDirectory() && !recursive) {
+            problem("cannot remove '" + path + "': Is a directory");
+            return false;
+        } else if (!file.isDirectory()) {
+            if (!file.delete()) {
+                problem("cannot remove '" + path + "': Permission denied");
+                return false;
+            }
+            return true;
+        } else if (file instanceof RecursivelyDeletableSshFile) {
+            final Map<String,String> failures;
+            try {
+                failures = ((RecursivelyDeletableSshFile)file).deleteTree();
+            } catch (IOException e) {
+                problem("cannot remove '" + path + "': " + e.getMessage());
+                return false;
+            }
+            for (Map.Entry<String,String> failure : failures.entrySet()) {
+                problem(
+                    "cannot remove '" + failure.getKey() + "': " +
+                    failure.getValue());
+            }
+            return failures.isEmpty();
+        }
+        problem("cannot remove '" + path + "': Operation not supported");
+        return false;
+    }
+
+    // @Override - Runnable
+    public void run() {
+        int exitValue = 0;
+        try {
+            if (error != null) throw error;
+
+            for (String path : operands) {
+                if (!remove(path)) exitValue = 1;
+            }
+        } catch (IOException e) {
+            exitValue = 1;
+            try {
+                err.write((e.getMessage() + "\n").getBytes("UTF-8"));
+            } catch (IOException e2) {
+                // the channel is gone
+            }
+        } catch (RuntimeException e) {
+            log.warn("Error in rm command", e);
+            exitValue = 1;
+        } finally {
+            try {
+                err.flush();
+            } catch (IOException e) {
+                // the channel is gone
+            }
+            if (callback != null) callback.onExit(exitValue);
+        }
+    }
+}
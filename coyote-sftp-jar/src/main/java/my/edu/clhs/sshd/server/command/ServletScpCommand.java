@@ -18,12 +18,26 @@
  */
 package my.edu.clhs.sshd.server.command;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
+import my.edu.clhs.sshd.server.BufferPool;
+import my.edu.clhs.sshd.server.ChunkPipe;
+import my.edu.clhs.sshd.server.LengthAwareSshFile;
+import my.edu.clhs.sshd.server.StreamableSshFile;
+import my.edu.clhs.sshd.server.UploadingFileSystemView;
 import my.edu.clhs.tomcat.coyote.WebDAVServletResourceSshFile;
 
 import org.apache.sshd.server.Command;
@@ -35,12 +49,46 @@ import org.apache.sshd.server.command.ScpCommand;
 
 /**
  * {@link ScpCommand} subclass that will attempt file writes even under
- * non-existent directories.
+ * non-existent directories, and copies files through pooled buffers.
+ * 
+ * Recursive uploads (scp -r) may be pipelined: each file is acknowledged
+ * as soon as it has been received (into memory, or a temporary file if
+ * large), and stored in the background, with up to parallelUploads
+ * being stored at once. The final acknowledgement waits for all of them,
+ * and reports those that failed.
  * 
  * @author Jack Leow
  */
 public class ServletScpCommand extends ScpCommand {
+    private static final int DEFAULT_BUFFER_SIZE = 65536;
+    /**
+     * Largest file spooled to memory when pipelining uploads.
+     */
+    private static final int MAX_MEMORY_SPOOL_SIZE = 1024 * 1024;
+    /**
+     * Maximum number of failed uploads described in the final error.
+     */
+    private static final int MAX_REPORTED_ERRORS = 10;
+    
     public static class Factory implements CommandFactory {
+        private final BufferPool bufferPool;
+        private final int parallelUploads;
+        
+        public Factory() {
+            this(new BufferPool(DEFAULT_BUFFER_SIZE, 16), 1);
+        }
+        
+        /**
+         * @param bufferPool the pool the commands' copy buffers are taken
+         *        from.
+         * @param parallelUploads the number of files of a recursive
+         *        upload stored at once, 1 to store them one at a time.
+         */
+        public Factory(BufferPool bufferPool, int parallelUploads) {
+            this.bufferPool = bufferPool;
+            this.parallelUploads = parallelUploads;
+        }
+        
         private String concatenateWithSpace(String[] args, int from) {
             StringBuilder sb = new StringBuilder();
         
@@ -81,8 +129,17 @@ public class ServletScpCommand extends ScpCommand {
          * @throws IllegalArgumentException
          */
         public Command createCommand(final String command) {
+            if (command.trim().startsWith("cp ")) {
+                return new ServletCopyCommand(
+                    ServletCopyCommand.splitArguments(command));
+            }
+            if (command.trim().startsWith("rm ")) {
+                return new ServletRemoveCommand(
+                    ServletCopyCommand.splitArguments(command));
+            }
             try {
-                return new ServletScpCommand(splitCommandString(command));
+                return new ServletScpCommand(
+                    splitCommandString(command), bufferPool, parallelUploads);
             } catch (IllegalArgumentException iae) {
                 return new Command() {
                     private ExitCallback exitCallback;
@@ -120,8 +177,246 @@ public class ServletScpCommand extends ScpCommand {
         }
     }
     
+    private final BufferPool bufferPool;
+    private final int parallelUploads;
+    private final LinkedList<Future<?>> uploads = new LinkedList<Future<?>>();
+    private final List<String> uploadErrors = new ArrayList<String>();
+    private int depth = 0;
+    
     public ServletScpCommand(String[] args) {
+        this(args, new BufferPool(DEFAULT_BUFFER_SIZE, 1), 1);
+    }
+    
+    public ServletScpCommand(
+            String[] args, BufferPool bufferPool, int parallelUploads) {
         super(args);
+        this.bufferPool = bufferPool;
+        this.parallelUploads = parallelUploads;
+    }
+    
+    /**
+     * A spooled file, deleted once it has been read.
+     */
+    private static class SpoolFileInputStream extends FileInputStream {
+        private final File file;
+        
+        SpoolFileInputStream(File file) throws IOException {
+            super(file);
+            this.file = file;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (!file.delete()) {
+                    log.warn("Unable to delete spool file {}", file);
+                }
+            }
+        }
+    }
+    
+    // Copy of superclass implementation, except that files are pipelined
+    // when enabled, and the outermost directory's end is only
+    // acknowledged once they have been stored
+    @Override
+    protected void writeDir(String header, SshFile path) throws IOException {
+        if (log.isDebugEnabled()) {
+            log.debug("Writing dir {}", path);
+        }
+        if (!header.startsWith("D")) {
+            throw new IOException(
+                "Expected a D message but got '" + header + "'");
+        }
+        
+        //String perms = header.substring(1, 5);
+        int length =
+            Integer.parseInt(header.substring(6, header.indexOf(' ', 6)));
+        String name = header.substring(header.indexOf(' ', 6) + 1);
+        if (length != 0) {
+            throw new IOException(
+                "Expected 0 length for directory but got " + length);
+        }
+        
+        SshFile file;
+        if (path.doesExist() && path.isDirectory()) {
+            file = root.getFile(path, name);
+        } else if (!path.doesExist() && path.getParentFile().doesExist() &&
+                path.getParentFile().isDirectory()) {
+            file = path;
+        } else {
+            throw new IOException("Can not write to " + path);
+        }
+        if (!(file.doesExist() && file.isDirectory())) {
+            if (!file.mkdir()) {
+                throw new IOException("Could not create directory " + file);
+            }
+            // Looked up again, as what is written to it needs to know
+            // that it now exists
+            file = root.getFile(file.getAbsolutePath());
+        }
+        ack();
+        
+        ++depth;
+        try {
+            while (true) {
+                header = readLine();
+                if (header.startsWith("C")) {
+                    if (parallelUploads > 1 &&
+                            root instanceof UploadingFileSystemView) {
+                        spoolFile(header, file);
+                    } else {
+                        writeFile(header, file);
+                    }
+                } else if (header.startsWith("D")) {
+                    writeDir(header, file);
+                } else {
+                    break;
+                }
+            }
+        } finally {
+            --depth;
+        }
+        if (header.equals("E") || header.equals("T")) {
+            if (depth == 0) awaitUploads();
+            ack();
+        } else {
+            throw new IOException("Unexpected message: '" + header + "'");
+        }
+    }
+    
+    /**
+     * Receives a file into a spool, then stores it in the background. The
+     * file is in a directory that has just been created (or found), so
+     * unlike {@link #writeFile(String, SshFile)}, nothing is looked up
+     * before it is stored, a file that cannot be written fails when it is
+     * stored.
+     */
+    private void spoolFile(String header, SshFile directory)
+            throws IOException {
+        if (log.isDebugEnabled()) {
+            log.debug("Spooling file {} in {}", header, directory);
+        }
+        //String perms = header.substring(1, 5);
+        long length =
+            Long.parseLong(header.substring(6, header.indexOf(' ', 6)));
+        String name = header.substring(header.indexOf(' ', 6) + 1);
+        
+        // At most parallelUploads files are spooled or being stored
+        completeUploads(false);
+        while (uploads.size() >= parallelUploads) {
+            completeUpload(uploads.removeFirst());
+        }
+        ack();
+        final InputStream contents = length <= MAX_MEMORY_SPOOL_SIZE ?
+            spoolToMemory((int)length) : spoolToFile(length);
+        final String path = directory.getAbsolutePath() + "/" + name;
+        try {
+            uploads.add(
+                ((UploadingFileSystemView)root).upload(
+                    path, contents, length));
+        } catch (IOException e) {
+            uploadErrors.add(e.getMessage());
+        }
+        
+        ack();
+        readAck(false);
+    }
+    
+    private InputStream spoolToMemory(int length) throws IOException {
+        final byte[] contents = new byte[length];
+        for (int off = 0; off < length;) {
+            final int len = in.read(contents, off, length - off);
+            if (len <= 0) throw new IOException("End of stream reached");
+            off += len;
+        }
+        
+        return new ByteArrayInputStream(contents);
+    }
+    
+    private InputStream spoolToFile(long length) throws IOException {
+        final File spool = File.createTempFile("scp", ".spool");
+        final byte[] buffer = bufferPool.take();
+        boolean spooled = false;
+        try {
+            final OutputStream os = new FileOutputStream(spool);
+            try {
+                while (length > 0) {
+                    int len = (int) Math.min(length, buffer.length);
+                    len = in.read(buffer, 0, len);
+                    if (len <= 0) {
+                        throw new IOException("End of stream reached");
+                    }
+                    os.write(buffer, 0, len);
+                    length -= len;
+                }
+            } finally {
+                os.close();
+            }
+            final InputStream contents = new SpoolFileInputStream(spool);
+            spooled = true;
+            return contents;
+        } finally {
+            bufferPool.give(buffer);
+            if (!spooled && !spool.delete()) {
+                log.warn("Unable to delete spool file {}", spool);
+            }
+        }
+    }
+    
+    /**
+     * Collects the outcome of uploads that are done.
+     * 
+     * @param wait whether to wait for all of them to be done.
+     */
+    private void completeUploads(boolean wait) throws IOException {
+        for (Iterator<Future<?>> i = uploads.iterator(); i.hasNext();) {
+            final Future<?> upload = i.next();
+            if (wait || upload.isDone()) {
+                i.remove();
+                completeUpload(upload);
+            }
+        }
+    }
+    
+    private void completeUpload(Future<?> upload) throws IOException {
+        try {
+            upload.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                "Interrupted while waiting for uploads");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            log.warn("Pipelined upload failed", cause);
+            uploadErrors.add(
+                cause.getMessage() != null ?
+                    cause.getMessage() : cause.toString());
+        }
+    }
+    
+    /**
+     * Waits for all pipelined uploads to be stored.
+     * 
+     * @throws IOException describing the uploads that failed, if any.
+     */
+    private void awaitUploads() throws IOException {
+        completeUploads(true);
+        if (uploadErrors.isEmpty()) return;
+        
+        final StringBuilder message = new StringBuilder();
+        for (int i = 0; i < uploadErrors.size(); i++) {
+            if (i == MAX_REPORTED_ERRORS) {
+                message.append(", and ").
+                    append(uploadErrors.size() - i).append(" more");
+                break;
+            }
+            if (i > 0) message.append(", ");
+            message.append(uploadErrors.get(i));
+        }
+        uploadErrors.clear();
+        throw new IOException(message.toString());
     }
     
     // Copy of superclass implementation, except for file determination
@@ -150,25 +445,146 @@ public class ServletScpCommand extends ScpCommand {
         if (file.doesExist() && !file.isWritable()) {
             throw new IOException("Can not write to file: " + file);
         }
-        OutputStream os = file.createOutputStream(0);
+        // Passes the length on, so that it can be sent as the Content-Length
+        OutputStream os = file instanceof LengthAwareSshFile ?
+            ((LengthAwareSshFile)file).createOutputStream(0, length) :
+            file.createOutputStream(0);
+        // Buffers handed over to a ChunkPipe are not copied again
+        final ChunkPipe.Sink sink = os instanceof ChunkPipe.Sink ?
+            (ChunkPipe.Sink)os : null;
+        byte[] buffer = bufferPool.take();
         try {
             ack();
             
-            byte[] buffer = new byte[8192];
             while (length > 0) {
-                int len = (int) Math.min(length, buffer.length);
-                len = in.read(buffer, 0, len);
-                if (len <= 0) {
-                    throw new IOException("End of stream reached");
+                // Fills the buffer, rather than passing on each packet
+                int filled = 0;
+                while (filled < buffer.length && length > 0) {
+                    int len = (int) Math.min(length, buffer.length - filled);
+                    len = in.read(buffer, filled, len);
+                    if (len <= 0) {
+                        throw new IOException("End of stream reached");
+                    }
+                    filled += len;
+                    length -= len;
+                }
+                if (sink != null) {
+                    final byte[] filledBuffer = buffer;
+                    buffer = null;
+                    sink.handOff(filledBuffer, filled);
+                    buffer = bufferPool.take();
+                } else {
+                    os.write(buffer, 0, filled);
                 }
-                os.write(buffer, 0, len);
-                length -= len;
             }
         } finally {
+            bufferPool.give(buffer);
             os.close();
         }
         
         ack();
         readAck(false);
     }
-}
\ No newline at end of file
+    
+    /**
+     * Writes a file's contents to the channel, sending the file's header
+     * (and waiting for it to be acknowledged) just before the first of
+     * them.
+     */
+    private class HeaderFirstOutputStream extends OutputStream {
+        private final byte[] header;
+        private boolean headerSent = false;
+        private long written = 0;
+        
+        HeaderFirstOutputStream(byte[] header) {
+            this.header = header;
+        }
+        
+        void sendHeader() throws IOException {
+            if (headerSent) return;
+            headerSent = true;
+            out.write(header);
+            out.flush();
+            readAck(false);
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            sendHeader();
+            out.write(b);
+            written++;
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return;
+            sendHeader();
+            out.write(b, off, len);
+            written += len;
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            if (headerSent) out.flush();
+        }
+    }
+    
+    // Copy of superclass implementation, except that StreamableSshFiles
+    // write to the channel directly, buffers are pooled, and the header
+    // is only sent once the contents are on their way: a file that cannot
+    // be read is reported with a warning, as OpenSSH's scp does, so that
+    // the rest of a recursive download carries on
+    @Override
+    protected void readFile(SshFile path) throws IOException {
+        if (log.isDebugEnabled()) {
+            log.debug("Reading file {}", path);
+        }
+        final long size = path.getSize();
+        StringBuffer buf = new StringBuffer();
+        buf.append("C");
+        buf.append("0644");
+        buf.append(" ");
+        buf.append(size);
+        buf.append(" ");
+        buf.append(path.getName());
+        buf.append("\n");
+        final HeaderFirstOutputStream contents =
+            new HeaderFirstOutputStream(buf.toString().getBytes());
+        
+        try {
+            if (path instanceof StreamableSshFile) {
+                ((StreamableSshFile)path).transferTo(contents);
+            } else {
+                InputStream is = path.createInputStream(0);
+                byte[] buffer = bufferPool.take();
+                try {
+                    int len;
+                    while ((len = is.read(buffer, 0, buffer.length)) != -1) {
+                        contents.write(buffer, 0, len);
+                    }
+                } finally {
+                    bufferPool.give(buffer);
+                    is.close();
+                }
+            }
+            // An empty file has no contents to send the header before
+            contents.sendHeader();
+        } catch (IOException e) {
+            // Once the header is sent, the client expects the contents
+            if (contents.headerSent) throw e;
+            log.info("Unable to read " + path, e);
+            out.write(1);
+            out.write(("scp: " + e.getMessage()).getBytes());
+            out.write('\n');
+            out.flush();
+            return;
+        }
+        if (contents.written != size) {
+            throw new IOException(
+                path + " changed size while being read (" + size +
+                " bytes expected, " + contents.written + " read)");
+        }
+        ack();
+        readAck(false);
+    }
+}
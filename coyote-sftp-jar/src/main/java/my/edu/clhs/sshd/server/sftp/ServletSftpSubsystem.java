@@ -0,0 +1,540 @@
+/*
+ * ServletSftpSubsystem.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.sshd.server.sftp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+import my.edu.clhs.sshd.server.BlockDigest;
+import my.edu.clhs.sshd.server.CopyableSshFile;
+import my.edu.clhs.sshd.server.DigestibleSshFile;
+import my.edu.clhs.sshd.server.MovableSshFile;
+import my.edu.clhs.sshd.server.RecursivelyDeletableSshFile;
+
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.common.util.Buffer;
+import org.apache.sshd.server.Command;
+import org.apache.sshd.server.ExitCallback;
+import org.apache.sshd.server.FileSystemView;
+import org.apache.sshd.server.SshFile;
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.server.sftp.SftpSubsystem;
+
+/**
+ * {@link SftpSubsystem} subclass that reports the handles it opens and
+ * closes, and how long each request takes, so that they may be
+ * monitored.
+ *
+ * It also implements the posix-rename@openssh.com extension, which
+ * renames a file replacing any existing file (unlike SSH_FXP_RENAME),
+ * the copy-file extension (from draft-ietf-secsh-filexfer), which copies
+ * a {@link CopyableSshFile} without transferring its contents, and the
+ * check-file-handle and check-file-name extensions (from the same
+ * draft), which digest a file on the server (where it is stored, for a
+ * {@link DigestibleSshFile}). It also implements a remove-tree@clhs.edu.my
+ * extension, which removes a {@link RecursivelyDeletableSshFile}
+ * directory and all of its contents in a single operation, rather than
+ * the one request per file (and directory) of a client's recursive
+ * remove. All are advertised in SSH_FXP_VERSION.
+ *
+ * SSH_FXP_RENAME itself moves a {@link MovableSshFile} in a single
+ * operation that fails if the new path exists, rather than checking
+ * beforehand, so that a concurrent upload to the new path is never
+ * replaced.
+ *
+ * @author Jack Leow
+ */
+public class ServletSftpSubsystem extends SftpSubsystem {
+    public static final String POSIX_RENAME = "posix-rename@openssh.com";
+    public static final String COPY_FILE = "copy-file";
+    public static final String CHECK_FILE_HANDLE = "check-file-handle";
+    public static final String CHECK_FILE_NAME = "check-file-name";
+    public static final String REMOVE_TREE = "remove-tree@clhs.edu.my";
+
+    /**
+     * Most files that could not be removed reported in the status
+     * message of a remove-tree request.
+     */
+    private static final int MAX_REMOVE_TREE_FAILURES_REPORTED = 10;
+
+    /**
+     * Smallest block size of check-file requests (other than 0).
+     */
+    private static final int MIN_CHECK_FILE_BLOCK_SIZE = 256;
+
+    /**
+     * {@link java.security.MessageDigest} algorithms of check-file
+     * requests, by their SFTP name.
+     */
+    private static final Map<String,String> CHECK_FILE_ALGORITHMS;
+    static {
+        final Map<String,String> algorithms =
+            new LinkedHashMap<String,String>();
+        algorithms.put("md5", "MD5");
+        algorithms.put("sha1", "SHA-1");
+        algorithms.put("sha256", "SHA-256");
+        algorithms.put("sha384", "SHA-384");
+        algorithms.put("sha512", "SHA-512");
+        CHECK_FILE_ALGORITHMS = Collections.unmodifiableMap(algorithms);
+    }
+
+    /**
+     * Extensions advertised in SSH_FXP_VERSION, with their data.
+     */
+    private static final Map<String,String> EXTENSIONS;
+    static {
+        final Map<String,String> extensions =
+            new LinkedHashMap<String,String>();
+        extensions.put(POSIX_RENAME, "1");
+        extensions.put(COPY_FILE, "1");
+        final StringBuilder algorithms = new StringBuilder();
+        for (String algorithm : CHECK_FILE_ALGORITHMS.keySet()) {
+            if (algorithms.length() > 0) algorithms.append(',');
+            algorithms.append(algorithm);
+        }
+        extensions.put(CHECK_FILE_HANDLE, algorithms.toString());
+        extensions.put(CHECK_FILE_NAME, algorithms.toString());
+        extensions.put(REMOVE_TREE, "1");
+        EXTENSIONS = Collections.unmodifiableMap(extensions);
+    }
+
+    /**
+     * Receives notifications of SFTP handle lifecycle events and
+     * completed requests.
+     */
+    public interface Listener {
+        void handleOpened(String handle);
+
+        void handleClosed(String handle);
+
+        /**
+         * Called on the subsystem's thread, before a request is
+         * processed.
+         *
+         * @param session the session the request was made in.
+         * @param type the request type (one of the SSH_FXP_* constants).
+         * @param target the path the request operates on (for requests
+         *        made on a handle, the path the handle was opened with),
+         *        or the extension name for SSH_FXP_EXTENDED requests.
+         * @param handle the handle the request is made on, null for
+         *        requests that are not made on a handle.
+         */
+        void requestStarted(
+            ServerSession session, int type, String target, String handle);
+
+        /**
+         * Called on the subsystem's thread, after a request is processed.
+         *
+         * @param type the request type (one of the SSH_FXP_* constants).
+         * @param nanos the time taken to process the request and send
+         *        its response.
+         */
+        void requestProcessed(int type, long nanos);
+    }
+
+    public static class Factory implements NamedFactory<Command> {
+        private final Listener listener;
+
+        public Factory(Listener listener) {
+            this.listener = listener;
+        }
+
+        // @Override - NamedFactory
+        public Command create() {
+            return new ServletSftpSubsystem(listener);
+        }
+
+        // @Override - NamedFactory
+        public String getName() {
+            return "sftp";
+        }
+    }
+
+    private final Listener listener;
+
+    private ServerSession session;
+
+    private FileSystemView fileSystemView;
+
+    /**
+     * Paths of the handles that are currently open, by handle. Only
+     * accessed from the subsystem's thread.
+     */
+    private final Map<String,String> openHandles =
+        new HashMap<String,String>();
+
+    /**
+     * Path of the file or directory being opened.
+     */
+    private String openingPath;
+
+    public ServletSftpSubsystem(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    protected void process(Buffer buffer) throws IOException {
+        final int rpos = buffer.rpos();
+        buffer.getInt(); // length
+        final int type = buffer.getByte() & 0xff;
+        final int id = buffer.getInt();
+        final String target;
+        String handle = null;
+        switch (type) {
+        case SSH_FXP_CLOSE:
+        case SSH_FXP_READ:
+        case SSH_FXP_WRITE:
+        case SSH_FXP_FSTAT:
+        case SSH_FXP_FSETSTAT:
+        case SSH_FXP_READDIR:
+            handle = buffer.getString();
+            target = openHandles.get(handle);
+            break;
+        case SSH_FXP_INIT:
+            target = null;
+            break;
+        default:
+            // The path, or for SSH_FXP_EXTENDED, the extension name
+            target = buffer.getString();
+        }
+        buffer.rpos(rpos);
+
+        openingPath = target;
+        listener.requestStarted(session, type, target, handle);
+        final long start = System.nanoTime();
+        try {
+            if (type == SSH_FXP_RENAME) {
+                processRename(buffer);
+            } else if (type != SSH_FXP_EXTENDED ||
+                    !processExtended(buffer)) {
+                super.process(buffer);
+            }
+        } catch (RejectedExecutionException e) {
+            // The file system is too busy to take the request, where it
+            // was unable to throw an IOException (e.g., getting a file)
+            sendStatus(id, SSH_FX_FAILURE, e.getMessage());
+        } finally {
+            listener.requestProcessed(type, System.nanoTime() - start);
+            // SftpSubsystem forgets about the handle even if closing fails
+            if (type == SSH_FXP_CLOSE &&
+                    openHandles.remove(handle) != null) {
+                listener.handleClosed(handle);
+            }
+        }
+    }
+
+    /**
+     * Processes the SSH_FXP_EXTENDED requests of the extensions
+     * implemented here.
+     *
+     * @return false, with the buffer unread, if the extension is not
+     *         implemented here.
+     */
+    private boolean processExtended(Buffer buffer) throws IOException {
+        final int rpos = buffer.rpos();
+        buffer.getInt(); // length
+        buffer.getByte(); // type
+        final int id = buffer.getInt();
+        final String extension = buffer.getString();
+        if (POSIX_RENAME.equals(extension)) {
+            posixRename(id, buffer.getString(), buffer.getString());
+        } else if (COPY_FILE.equals(extension)) {
+            copyFile(
+                id, buffer.getString(), buffer.getString(),
+                buffer.getBoolean());
+        } else if (CHECK_FILE_HANDLE.equals(extension)) {
+            checkFile(
+                id, openHandles.get(buffer.getString()), buffer.getString(),
+                buffer.getLong(), buffer.getLong(), buffer.getInt());
+        } else if (CHECK_FILE_NAME.equals(extension)) {
+            checkFile(
+                id, buffer.getString(), buffer.getString(),
+                buffer.getLong(), buffer.getLong(), buffer.getInt());
+        } else if (REMOVE_TREE.equals(extension)) {
+            removeTree(id, buffer.getString());
+        } else {
+            buffer.rpos(rpos);
+            return false;
+        }
+        return true;
+    }
+
+    private void processRename(Buffer buffer) throws IOException {
+        buffer.getInt(); // length
+        buffer.getByte(); // type
+        final int id = buffer.getInt();
+        final String oldPath = buffer.getString();
+        final String newPath = buffer.getString();
+        try {
+            final SshFile oldFile = fileSystemView.getFile(oldPath);
+            final SshFile newFile = fileSystemView.getFile(newPath);
+            if (!oldFile.doesExist()) {
+                sendStatus(id, SSH_FX_NO_SUCH_FILE, oldFile.getAbsolutePath());
+            } else if (!(oldFile instanceof MovableSshFile) &&
+                    newFile.doesExist()) {
+                // The check SftpSubsystem makes
+                sendStatus(
+                    id, SSH_FX_FILE_ALREADY_EXISTS, newFile.getAbsolutePath());
+            } else if (oldFile instanceof MovableSshFile ?
+                    ((MovableSshFile)oldFile).move(newFile, false) :
+                    oldFile.move(newFile)) {
+                sendStatus(id, SSH_FX_OK, "");
+            } else if (fileSystemView.getFile(newPath).doesExist()) {
+                sendStatus(
+                    id, SSH_FX_FILE_ALREADY_EXISTS, newFile.getAbsolutePath());
+            } else {
+                sendStatus(id, SSH_FX_FAILURE, "Failed to rename file");
+            }
+        } catch (IOException e) {
+            sendStatus(id, SSH_FX_FAILURE, e.getMessage());
+        }
+    }
+
+    private void posixRename(int id, String oldPath, String newPath)
+            throws IOException {
+        try {
+            final SshFile oldFile = fileSystemView.getFile(oldPath);
+            if (!oldFile.doesExist()) {
+                sendStatus(id, SSH_FX_NO_SUCH_FILE, oldFile.getAbsolutePath());
+            } else if (!oldFile.move(fileSystemView.getFile(newPath))) {
+                sendStatus(id, SSH_FX_FAILURE, "Failed to rename file");
+            } else {
+                sendStatus(id, SSH_FX_OK, "");
+            }
+        } catch (IOException e) {
+            sendStatus(id, SSH_FX_FAILURE, e.getMessage());
+        }
+    }
+
+    private void copyFile(
+            int id, String sourcePath, String destinationPath,
+            boolean overwrite) throws IOException {
+        try {
+            final SshFile source = fileSystemView.getFile(sourcePath);
+            final SshFile destination =
+                fileSystemView.getFile(destinationPath);
+            if (!source.doesExist()) {
+                sendStatus(id, SSH_FX_NO_SUCH_FILE, source.getAbsolutePath());
+            } else if (source.isDirectory()) {
+                sendStatus(
+                    id, SSH_FX_FILE_IS_A_DIRECTORY, source.getAbsolutePath());
+            } else if (!overwrite && destination.doesExist()) {
+                sendStatus(
+                    id, SSH_FX_FILE_ALREADY_EXISTS,
+                    destination.getAbsolutePath());
+            } else if (!(source instanceof CopyableSshFile)) {
+                sendStatus(
+                    id, SSH_FX_OP_UNSUPPORTED, "Unable to copy " + source);
+            } else if (!((CopyableSshFile)source).copy(
+                    destination, false, overwrite)) {
+                sendStatus(id, SSH_FX_FAILURE, "Failed to copy file");
+            } else {
+                sendStatus(id, SSH_FX_OK, "");
+            }
+        } catch (IOException e) {
+            sendStatus(id, SSH_FX_FAILURE, e.getMessage());
+        }
+    }
+
+    /**
+     * Replies SSH_FX_FAILURE if only part of the tree was removed, listing
+     * the files that were not (and why) in the status message.
+     */
+    private void removeTree(int id, String path) throws IOException {
+        try {
+            final SshFile file = fileSystemView.getFile(path);
+            if (!file.doesExist()) {
+                sendStatus(id, SSH_FX_NO_SUCH_FILE, file.getAbsolutePath());
+            } else if (!(file instanceof RecursivelyDeletableSshFile)) {
+                sendStatus(
+                    id, SSH_FX_OP_UNSUPPORTED, "Unable to remove tree " + file);
+            } else {
+                final Map<String,String> failures =
+                    ((RecursivelyDeletableSshFile)file).deleteTree();
+                if (failures.isEmpty()) {
+                    sendStatus(id, SSH_FX_OK, "");
+                } else {
+                    final StringBuilder message = new StringBuilder().
+                        append("Failed to remove ").append(failures.size()).
+                        append(" file(s)");
+                    int reported = 0;
+                    for (Map.Entry<String,String> failure :
+                            failures.entrySet()) {
+                        if (reported++ == MAX_REMOVE_TREE_FAILURES_REPORTED) {
+                            message.append("\n...");
+                            break;
+                        }
+                        message.append('\n').append(failure.getKey()).
+                            append(": ").append(failure.getValue());
+                    }
+                    sendStatus(id, SSH_FX_FAILURE, message.toString());
+                }
+            }
+        } catch (IOException e) {
+            sendStatus(id, SSH_FX_FAILURE, e.getMessage());
+        }
+    }
+
+    /**
+     * @param path the file's path, null if the handle was not found.
+     * @param algorithms the acceptable algorithms, in order of preference.
+     */
+    private void checkFile(
+            int id, String path, String algorithms,
+            long offset, long length, int blockSize) throws IOException {
+        String algorithm = null;
+        for (String candidate : algorithms.split(",")) {
+            if (CHECK_FILE_ALGORITHMS.containsKey(candidate)) {
+                algorithm = candidate;
+                break;
+            }
+        }
+        if (path == null) {
+            sendStatus(id, SSH_FX_INVALID_HANDLE, "Invalid handle");
+            return;
+        } else if (algorithm == null) {
+            sendStatus(
+                id, SSH_FX_OP_UNSUPPORTED,
+                "None of the algorithms are supported: " + algorithms);
+            return;
+        } else if (blockSize != 0 && blockSize < MIN_CHECK_FILE_BLOCK_SIZE) {
+            sendStatus(
+                id, SSH_FX_INVALID_PARAMETER,
+                "Block size must be 0, or at least " +
+                MIN_CHECK_FILE_BLOCK_SIZE);
+            return;
+        }
+
+        try {
+            final SshFile file = fileSystemView.getFile(path);
+            if (!file.doesExist()) {
+                sendStatus(id, SSH_FX_NO_SUCH_FILE, file.getAbsolutePath());
+                return;
+            } else if (file.isDirectory()) {
+                sendStatus(
+                    id, SSH_FX_FILE_IS_A_DIRECTORY, file.getAbsolutePath());
+                return;
+            }
+            final String digestAlgorithm =
+                CHECK_FILE_ALGORITHMS.get(algorithm);
+            final byte[] digests = file instanceof DigestibleSshFile ?
+                ((DigestibleSshFile)file).digest(
+                    digestAlgorithm, offset, length, blockSize) :
+                digest(file, digestAlgorithm, offset, length, blockSize);
+            final Buffer reply = new Buffer();
+            reply.putByte((byte)SSH_FXP_EXTENDED_REPLY);
+            reply.putInt(id);
+            reply.putString("check-file");
+            reply.putString(algorithm);
+            reply.putRawBytes(digests);
+            send(reply);
+        } catch (IOException e) {
+            sendStatus(id, SSH_FX_FAILURE, e.getMessage());
+        }
+    }
+
+    /**
+     * Digests a file by reading it, for files that cannot be digested
+     * where they are stored.
+     */
+    private static byte[] digest(
+            SshFile file, String algorithm,
+            long offset, long length, int blockSize) throws IOException {
+        final BlockDigest digest =
+            new BlockDigest(algorithm, length, blockSize);
+        final InputStream in = file.createInputStream(offset);
+        try {
+            final byte[] buffer = new byte[8192];
+            int len;
+            while (!digest.isComplete() && (len = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+        return digest.finish();
+    }
+
+    /**
+     * Appends the advertised extensions to SSH_FXP_VERSION, which
+     * SftpSubsystem sends without any.
+     */
+    @Override
+    protected void send(Buffer buffer) throws IOException {
+        if (buffer.array()[buffer.rpos()] == SSH_FXP_VERSION) {
+            for (Map.Entry<String,String> extension : EXTENSIONS.entrySet()) {
+                buffer.putString(extension.getKey());
+                buffer.putString(extension.getValue());
+            }
+        }
+        super.send(buffer);
+    }
+
+    @Override
+    public void setSession(ServerSession session) {
+        this.session = session;
+        super.setSession(session);
+    }
+
+    @Override
+    public void setFileSystemView(FileSystemView view) {
+        this.fileSystemView = view;
+        super.setFileSystemView(view);
+    }
+
+    @Override
+    protected void sendHandle(int id, String handle) throws IOException {
+        if (openHandles.put(handle, openingPath) == null) {
+            listener.handleOpened(handle);
+        }
+        super.sendHandle(id, handle);
+    }
+
+    @Override
+    public void setExitCallback(final ExitCallback callback) {
+        super.setExitCallback(new ExitCallback() {
+            // @Override - ExitCallback
+            public void onExit(int exitValue) {
+                releaseHandles();
+                callback.onExit(exitValue);
+            }
+
+            // @Override - ExitCallback
+            public void onExit(int exitValue, String exitMessage) {
+                releaseHandles();
+                callback.onExit(exitValue, exitMessage);
+            }
+        });
+    }
+
+    /**
+     * Handles still open when the subsystem exits are closed by
+     * SftpSubsystem.
+     */
+    private void releaseHandles() {
+        for (String handle : openHandles.keySet()) {
+            listener.handleClosed(handle);
+        }
+        openHandles.clear();
+    }
+}
@@ -23,17 +23,21 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.util.Map;
 
-import javax.xml.bind.DatatypeConverter;
+import my.edu.clhs.sshd.server.CopyableSshFile;
+import my.edu.clhs.sshd.server.DigestibleSshFile;
+import my.edu.clhs.sshd.server.LengthAwareSshFile;
+import my.edu.clhs.sshd.server.MovableSshFile;
+import my.edu.clhs.sshd.server.RecursivelyDeletableSshFile;
+import my.edu.clhs.sshd.server.StreamableSshFile;
 
 import org.apache.sshd.server.SshFile;
 
-abstract class AbstractServletResourceSshFile implements SshFile {
-    private static final DateFormat RFC1123_DATE_FORMAT =
-        new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz");
+abstract class AbstractServletResourceSshFile
+        implements CopyableSshFile, DigestibleSshFile, LengthAwareSshFile,
+            MovableSshFile, RecursivelyDeletableSshFile, StreamableSshFile {
+    private static final long LAST_MODIFIED_UNPARSED = Long.MIN_VALUE;
     
     protected final SftpServletFileSystemView fileSystem;
     /**
@@ -112,32 +116,32 @@ abstract class AbstractServletResourceSshFile implements SshFile {
         throw new UnsupportedOperationException();
     }
     
+    /**
+     * Memoized value of {@link #lastModifiedRfc1123}, parsed on first use.
+     * Racing threads parse the same string to the same value, so no
+     * further synchronization is needed.
+     */
+    private volatile long lastModified = LAST_MODIFIED_UNPARSED;
     // @Override
     public long getLastModified() {
-        long lastModified;
+        if (lastModifiedRfc1123 == null) {
+            return System.currentTimeMillis();
+        }
         
-        if (lastModifiedRfc1123 != null) {
+        long lastModified = this.lastModified;
+        if (lastModified == LAST_MODIFIED_UNPARSED) {
             try {
-                // The WebDAV specs require dates to be RFC1123 formatted.
-                lastModified = RFC1123_DATE_FORMAT.
-                    parse(lastModifiedRfc1123).getTime();
-            } catch (ParseException e) {
-                // Handle ISO8601 formatted dates to support Artifactory.
-                try {
-                    lastModified = DatatypeConverter.
-                        parseDateTime(lastModifiedRfc1123).getTimeInMillis();
-                } catch (Exception e1) {
-                    throw new IllegalStateException(
-                        String.format(
-                            "unparseable lastModifiedRfc1123 (\"%s\")",
-                            lastModifiedRfc1123
-                        ),
-                        e
-                    );
-                }
+                lastModified = HttpDateParser.parse(lastModifiedRfc1123);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalStateException(
+                    String.format(
+                        "unparseable lastModifiedRfc1123 (\"%s\")",
+                        lastModifiedRfc1123
+                    ),
+                    e
+                );
             }
-        } else {
-            lastModified = System.currentTimeMillis();
+            this.lastModified = lastModified;
         }
         
         return lastModified;
@@ -164,6 +168,11 @@ abstract class AbstractServletResourceSshFile implements SshFile {
         return fileSystem.deleteFile(getAbsolutePath());
     }
     
+    // @Override
+    public Map<String,String> deleteTree() throws IOException {
+        return fileSystem.deleteTree(getAbsolutePath());
+    }
+    
     // @Override
     public boolean create() throws IOException {
         return true;
@@ -174,9 +183,34 @@ abstract class AbstractServletResourceSshFile implements SshFile {
         // do nothing
     }
     
+    /**
+     * Replaces the destination if it exists, as with rename(2).
+     */
     // @Override
     public boolean move(SshFile destination) {
-        return false;
+        return move(destination, true);
+    }
+    
+    // @Override
+    public boolean move(SshFile destination, boolean overwrite) {
+        return fileSystem.moveFile(
+            getAbsolutePath(), destination.getAbsolutePath(), overwrite);
+    }
+    
+    // @Override
+    public boolean copy(
+            SshFile destination, boolean recursive, boolean overwrite) {
+        return fileSystem.copyFile(
+            getAbsolutePath(), destination.getAbsolutePath(),
+            recursive, overwrite);
+    }
+    
+    // @Override
+    public byte[] digest(
+            String algorithm, long offset, long length, int blockSize)
+            throws IOException {
+        return fileSystem.digestFile(
+            getAbsolutePath(), algorithm, offset, length, blockSize);
     }
     
     // @Override
@@ -184,6 +218,17 @@ abstract class AbstractServletResourceSshFile implements SshFile {
         return fileSystem.getFileOutputStream(getAbsolutePath());
     }
     
+    // @Override
+    public OutputStream createOutputStream(long offset, long length)
+            throws IOException {
+        return fileSystem.getFileOutputStream(getAbsolutePath(), length);
+    }
+    
+    // @Override
+    public long transferTo(OutputStream out) throws IOException {
+        return fileSystem.transferFile(getAbsolutePath(), out);
+    }
+    
     // @Override
     public InputStream createInputStream(long offset) throws IOException {
         InputStream is = fileSystem.getFileInputStream(getAbsolutePath());
@@ -0,0 +1,34 @@
+/*
+ * DavInfiniteDepthRefusedException.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.tomcat.coyote;
+
+/**
+ * Indicates that the resource refuses Depth: infinity PROPFINDs, with the
+ * propfind-finite-depth precondition (RFC 4918, section 9.1), or by
+ * answering them as if they were Depth: 0.
+ * 
+ * @author Jack Leow
+ */
+class DavInfiniteDepthRefusedException extends DavUnsupportedException {
+    private static final long serialVersionUID = 1L;
+    
+    public DavInfiniteDepthRefusedException(
+            String resourcePath, int statusCode) {
+        super(resourcePath, statusCode);
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * DavResponseTooLargeException.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.tomcat.coyote;
+
+/**
+ * Indicates that the DAV response is larger than the client is willing
+ * to hold in memory (e.g., a Depth: infinity PROPFIND of a large tree).
+ * 
+ * @author Jack Leow
+ */
+class DavResponseTooLargeException extends DavProcessingException {
+    private static final long serialVersionUID = 1L;
+    
+    private static final String DEFAULT_MESSAGE_FORMAT =
+        "Resource responded with more than %d bytes";
+    
+    public DavResponseTooLargeException(String resourcePath, long maxBytes) {
+        super(String.format(DEFAULT_MESSAGE_FORMAT, maxBytes), resourcePath);
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * DavStatusSaxHandler.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.tomcat.coyote;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * SAX handler that parses the DAV:multistatus XML content of a response
+ * to a request that failed in part (e.g., a DELETE of a collection with
+ * locked members) into the status of each resource listed, e.g.:
+ *
+ * <pre>
+ * &lt;D:multistatus xmlns:D="DAV:"&gt;
+ *   &lt;D:response&gt;
+ *     &lt;D:href&gt;/dir/locked.txt&lt;/D:href&gt;
+ *     &lt;D:status&gt;HTTP/1.1 423 Locked&lt;/D:status&gt;
+ *   &lt;/D:response&gt;
+ * &lt;/D:multistatus&gt;
+ * </pre>
+ *
+ * Responses with a DAV:propstat (as to a PROPFIND) have no status of
+ * their own, and are ignored.
+ *
+ * @author Jack Leow
+ */
+class DavStatusSaxHandler extends DefaultHandler {
+    private static final String NAMESPACE_URI = "DAV:";
+
+    // Depths of the elements of interest
+    private static final int MULTISTATUS = 1;
+    private static final int RESPONSE = 2;
+    private static final int RESPONSE_CHILD = 3;
+
+    private final UriDecoder uriDecoder;
+    private final Map<String,String> statuses =
+        new LinkedHashMap<String,String>();
+    private final StringBuilder charBuffer = new StringBuilder();
+    /**
+     * A response may list more than one href, all sharing its status.
+     */
+    private final List<String> hrefs = new ArrayList<String>();
+    private String status;
+    private int depth = 0;
+    private boolean capturing = false;
+    private boolean ended = false;
+    private Locator locator;
+
+    DavStatusSaxHandler(UriDecoder uriDecoder) {
+        this.uriDecoder = uriDecoder;
+    }
+
+    /**
+     * @return the status of each resource, by path, in the order listed,
+     *         e.g., "423 Locked" (without the HTTP version).
+     */
+    Map<String,String> getStatuses() {
+        return Collections.unmodifiableMap(statuses);
+    }
+
+    /**
+     * @return the path of an href, which may be an absolute URI or an
+     *         absolute path.
+     */
+    private String path(String href) {
+        final int scheme = href.indexOf("://");
+        int start = 0;
+        if (scheme != -1) {
+            start = href.indexOf('/', scheme + 3);
+            if (start == -1) return "/";
+        }
+        final char[] ch = href.toCharArray();
+        return uriDecoder.decode(ch, start, ch.length - start);
+    }
+
+    private SAXParseException unexpected(String localName) {
+        return new SAXParseException(
+            "Error parsing DAV response, unexpected element \"" +
+            localName + "\"", locator);
+    }
+
+    @Override
+    public void setDocumentLocator(Locator locator) {
+        this.locator = locator;
+    }
+
+    @Override
+    public void startElement(
+            String uri, String localName, String qName, Attributes attributes)
+            throws SAXException {
+        ++depth;
+        final boolean dav = NAMESPACE_URI.equals(uri);
+        switch (depth) {
+        case MULTISTATUS:
+            if (!dav || !"multistatus".equals(localName)) {
+                throw unexpected(localName);
+            }
+            break;
+        case RESPONSE:
+            if (dav && "response".equals(localName)) {
+                hrefs.clear();
+                status = null;
+            } else if (!dav || !"responsedescription".equals(localName)) {
+                throw unexpected(localName);
+            }
+            break;
+        case RESPONSE_CHILD:
+            capturing = dav &&
+                ("href".equals(localName) || "status".equals(localName));
+            charBuffer.setLength(0);
+            break;
+        default:
+            // e.g., DAV:propstat or DAV:error contents
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName)
+            throws SAXException {
+        if (depth == RESPONSE_CHILD && capturing) {
+            final String value = charBuffer.toString().trim();
+            if ("href".equals(localName)) {
+                hrefs.add(value);
+            } else {
+                // Status-Line, e.g., HTTP/1.1 423 Locked
+                final int space = value.indexOf(' ');
+                status = space != -1 ? value.substring(space + 1) : value;
+            }
+            capturing = false;
+        } else if (depth == RESPONSE && "response".equals(localName) &&
+                status != null) {
+            try {
+                for (String href : hrefs) {
+                    statuses.put(path(href), status);
+                }
+            } catch (IllegalArgumentException e) {
+                throw new SAXParseException(
+                    "Error parsing DAV response", locator, e);
+            }
+        } else if (depth == MULTISTATUS) {
+            ended = true;
+        }
+        --depth;
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+        if (capturing) charBuffer.append(ch, start, length);
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+        if (!ended) {
+            throw new SAXParseException(
+                "Error parsing DAV response", locator);
+        }
+    }
+}
@@ -28,7 +28,14 @@ class DavUnsupportedException extends DavProcessingException {
     private static final String DEFAULT_MESSAGE_FORMAT =
         "Resource responded with HTTP status code %d";
     
+    private final int statusCode;
+    
     public DavUnsupportedException(String resourcePath, int statusCode) {
         super(String.format(DEFAULT_MESSAGE_FORMAT, statusCode), resourcePath);
+        this.statusCode = statusCode;
+    }
+    
+    public int getStatusCode() {
+        return statusCode;
     }
 }
@@ -0,0 +1,224 @@
+/*
+ * DispatchScheduler.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.tomcat.coyote;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for servlet requests, applied before they are
+ * dispatched to the executor.
+ *
+ * Short metadata operations (stat, directory listings, deletes, etc.)
+ * and streaming transfers are admitted independently, each with its own
+ * concurrency limit, so that a handful of bulk transfers cannot occupy
+ * every dispatch thread. Within each class, a single user may only hold
+ * a fair share of the permits.
+ *
+ * Operations only wait for a bounded time to be admitted: the waiting
+ * thread is usually an SSH session's thread, which an operation already
+ * admitted may need to deliver its data, or to close it, so waiting
+ * indefinitely on it could never end. The time spent waiting is recorded
+ * per class.
+ *
+ * @author Jack Leow
+ */
+final class DispatchScheduler {
+    enum OperationClass { METADATA, TRANSFER }
+
+    /**
+     * Admission of a single operation, which must be released when the
+     * operation completes.
+     */
+    static final class Ticket {
+        private final Lane lane;
+        private final String user;
+        private final UserPermits userPermits;
+        private boolean released;
+
+        private Ticket(Lane lane, String user, UserPermits userPermits) {
+            this.lane = lane;
+            this.user = user;
+            this.userPermits = userPermits;
+        }
+
+        /**
+         * Releases the operation's permits, only the first call has any
+         * effect.
+         */
+        synchronized void release() {
+            if (!released) {
+                released = true;
+                lane.active.decrementAndGet();
+                lane.permits.release();
+                userPermits.permits.release();
+                lane.dereference(user, userPermits);
+            }
+        }
+    }
+
+    /**
+     * A user's permits, kept only while the user has operations admitted
+     * or waiting to be.
+     */
+    private static final class UserPermits {
+        final Semaphore permits;
+        int references = 0;
+
+        UserPermits(int maxPerUser) {
+            permits = new Semaphore(maxPerUser, true);
+        }
+    }
+
+    /**
+     * Permits and queue-wait statistics for one operation class.
+     */
+    static final class Lane {
+        private final Semaphore permits;
+        private final int maxPerUser;
+        private final Map<String,UserPermits> userPermits =
+            new HashMap<String,UserPermits>();
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicLong admittedCount = new AtomicLong();
+        private final AtomicLong totalQueueNanos = new AtomicLong();
+        private final AtomicLong maxQueueNanos = new AtomicLong();
+
+        private Lane(int maxConcurrent, int maxPerUser) {
+            permits = new Semaphore(maxConcurrent, true);
+            this.maxPerUser = maxPerUser;
+        }
+
+        private UserPermits reference(String user) {
+            synchronized (userPermits) {
+                UserPermits permits = userPermits.get(user);
+                if (permits == null) {
+                    permits = new UserPermits(maxPerUser);
+                    userPermits.put(user, permits);
+                }
+                ++permits.references;
+                return permits;
+            }
+        }
+
+        private void dereference(String user, UserPermits permits) {
+            synchronized (userPermits) {
+                if (--permits.references == 0) userPermits.remove(user);
+            }
+        }
+
+        private void recordQueueTime(long nanos) {
+            admittedCount.incrementAndGet();
+            totalQueueNanos.addAndGet(nanos);
+            long max;
+            while (nanos > (max = maxQueueNanos.get()) &&
+                    !maxQueueNanos.compareAndSet(max, nanos));
+        }
+
+        /** Operations currently admitted. */
+        int getActiveCount() { return active.get(); }
+
+        /** Operations currently waiting to be admitted. */
+        int getQueuedCount() { return queued.get(); }
+
+        /** Operations admitted since the connector was started. */
+        long getAdmittedCount() { return admittedCount.get(); }
+
+        /** Average time spent waiting to be admitted, in milliseconds. */
+        double getAverageQueueTime() {
+            final long count = admittedCount.get();
+            return count == 0 ?
+                0.0 : totalQueueNanos.get() / 1000000.0 / count;
+        }
+
+        /** Longest time spent waiting to be admitted, in milliseconds. */
+        long getMaxQueueTime() { return maxQueueNanos.get() / 1000000; }
+    }
+
+    private final Lane metadata;
+    private final Lane transfer;
+
+    DispatchScheduler(
+            int maxMetadataOperations, int maxMetadataOperationsPerUser,
+            int maxTransfers, int maxTransfersPerUser) {
+        metadata = new Lane(
+            maxMetadataOperations,
+            Math.min(maxMetadataOperationsPerUser, maxMetadataOperations));
+        transfer = new Lane(
+            maxTransfers, Math.min(maxTransfersPerUser, maxTransfers));
+    }
+
+    Lane getLane(OperationClass operationClass) {
+        return operationClass == OperationClass.METADATA ? metadata : transfer;
+    }
+
+    /**
+     * Waits, for at most timeout milliseconds, until an operation of the
+     * given class may be dispatched on behalf of user.
+     *
+     * @param operationClass the class of operation.
+     * @param user the SSH username, or null for requests made without a
+     *        session (e.g., during authentication).
+     * @param timeout the longest time to wait, in milliseconds, 0 to not
+     *        wait at all.
+     * @return the ticket to release once the operation has completed, null
+     *         if the operation was not admitted in time.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    Ticket tryAdmit(OperationClass operationClass, String user, long timeout)
+            throws InterruptedException {
+        final Lane lane = getLane(operationClass);
+        final String key = user == null ? "" : user;
+        final UserPermits userPermits = lane.reference(key);
+        final long start = System.nanoTime();
+        final long deadline =
+            start + TimeUnit.MILLISECONDS.toNanos(Math.max(timeout, 0));
+        boolean admitted = false;
+
+        lane.queued.incrementAndGet();
+        try {
+            // The user's share is claimed first, so that a user at their
+            // limit does not hold one of the shared permits while waiting.
+            if (acquire(userPermits.permits, deadline)) {
+                try {
+                    admitted = acquire(lane.permits, deadline);
+                } finally {
+                    if (!admitted) userPermits.permits.release();
+                }
+            }
+        } finally {
+            lane.queued.decrementAndGet();
+            if (!admitted) lane.dereference(key, userPermits);
+        }
+        if (!admitted) return null;
+        lane.active.incrementAndGet();
+        lane.recordQueueTime(System.nanoTime() - start);
+
+        return new Ticket(lane, key, userPermits);
+    }
+
+    private static boolean acquire(Semaphore permits, long deadline)
+            throws InterruptedException {
+        return permits.tryAcquire(
+            Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+    }
+}
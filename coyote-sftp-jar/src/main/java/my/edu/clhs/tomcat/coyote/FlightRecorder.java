@@ -0,0 +1,313 @@
+/*
+ * FlightRecorder.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.tomcat.coyote;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Custom JDK Flight Recorder events, so that SFTP sessions, requests
+ * and transfers may be correlated with GC, lock and I/O events in a
+ * recording.
+ *
+ * The events are defined at runtime through jdk.jfr.EventFactory, using
+ * reflection, since this connector targets JVMs that pre-date JFR's
+ * public API. Where jdk.jfr is unavailable, events are no-ops. Events
+ * are only populated while a recording has them enabled, e.g.:
+ * <pre>
+ * jcmd &lt;pid&gt; JFR.start settings=profile
+ * </pre>
+ * All events are in the "SFTP" category.
+ *
+ * @author Jack Leow
+ */
+final class FlightRecorder {
+    private static final Log log = LogFactory.getLog(FlightRecorder.class);
+    private static final String[] CATEGORY = {"SFTP"};
+
+    /**
+     * An event being recorded. Durations are measured from when the event
+     * was begun until it is committed.
+     */
+    static class Event {
+        private final Object event;
+
+        private Event(Object event) {
+            this.event = event;
+        }
+
+        /**
+         * @param index the index of the field, in the order its type was
+         *        defined with.
+         * @param value the value, of the type the field was defined with.
+         */
+        Event set(int index, Object value) {
+            try {
+                SET.invoke(event, index, value);
+            } catch (Exception e) {
+                log.debug("Unable to set JFR event field", e);
+            }
+            return this;
+        }
+
+        void commit() {
+            try {
+                END.invoke(event);
+                COMMIT.invoke(event);
+            } catch (Exception e) {
+                log.debug("Unable to commit JFR event", e);
+            }
+        }
+    }
+
+    /** Returned when the event is not being recorded. */
+    private static final Event DISABLED = new Event(null) {
+        @Override
+        Event set(int index, Object value) { return this; }
+
+        @Override
+        void commit() {}
+    };
+
+    /**
+     * The type of an event.
+     */
+    static final class EventType {
+        private final Object factory;
+
+        private EventType(Object factory) {
+            this.factory = factory;
+        }
+
+        /**
+         * @return the begun event, or a no-op event if the event type is
+         *         not enabled in any recording.
+         */
+        Event begin() {
+            if (factory == null) return DISABLED;
+            try {
+                final Object event = NEW_EVENT.invoke(factory);
+                if (!(Boolean)IS_ENABLED.invoke(event)) return DISABLED;
+                BEGIN.invoke(event);
+                return new Event(event);
+            } catch (Exception e) {
+                log.debug("Unable to begin JFR event", e);
+                return DISABLED;
+            }
+        }
+    }
+
+    /**
+     * Fields of an event type, in order.
+     */
+    private static final class Fields {
+        private final List<Object[]> fields = new ArrayList<Object[]>();
+
+        private Fields add(
+                Class<?> type, String name, String label,
+                String contentType, Object contentTypeValue) {
+            fields.add(new Object[] {
+                type, name, label, contentType, contentTypeValue
+            });
+            return this;
+        }
+
+        Fields string(String name, String label) {
+            return add(String.class, name, label, null, null);
+        }
+
+        Fields integer(String name, String label) {
+            return add(int.class, name, label, null, null);
+        }
+
+        Fields bool(String name, String label) {
+            return add(boolean.class, name, label, null, null);
+        }
+
+        Fields bytes(String name, String label) {
+            return add(long.class, name, label, "jdk.jfr.DataAmount", "BYTES");
+        }
+
+        Fields nanos(String name, String label) {
+            return add(
+                long.class, name, label, "jdk.jfr.Timespan", "NANOSECONDS");
+        }
+
+        private List<Object> descriptors() throws Exception {
+            final List<Object> descriptors = new ArrayList<Object>();
+            for (Object[] field : fields) {
+                final List<Object> annotations = new ArrayList<Object>();
+                annotations.add(annotation("jdk.jfr.Label", field[2]));
+                if (field[3] != null) {
+                    annotations.add(
+                        annotation((String)field[3], field[4]));
+                }
+                descriptors.add(VALUE_DESCRIPTOR.newInstance(
+                    field[0], field[1], annotations));
+            }
+            return descriptors;
+        }
+    }
+
+    private static final Constructor<?> ANNOTATION_ELEMENT;
+    private static final Constructor<?> VALUE_DESCRIPTOR;
+    private static final Method CREATE;
+    private static final Method NEW_EVENT;
+    private static final Method IS_ENABLED;
+    private static final Method BEGIN;
+    private static final Method END;
+    private static final Method COMMIT;
+    private static final Method SET;
+    static {
+        Constructor<?> annotationElement = null;
+        Constructor<?> valueDescriptor = null;
+        Method create = null, newEvent = null, isEnabled = null,
+            begin = null, end = null, commit = null, set = null;
+        try {
+            final Class<?> annotationElementClass =
+                Class.forName("jdk.jfr.AnnotationElement");
+            final Class<?> eventFactoryClass =
+                Class.forName("jdk.jfr.EventFactory");
+            final Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            annotationElement = annotationElementClass.getConstructor(
+                Class.class, Object.class);
+            valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor").
+                getConstructor(Class.class, String.class, List.class);
+            create = eventFactoryClass.getMethod(
+                "create", List.class, List.class);
+            newEvent = eventFactoryClass.getMethod("newEvent");
+            isEnabled = eventClass.getMethod("isEnabled");
+            begin = eventClass.getMethod("begin");
+            end = eventClass.getMethod("end");
+            commit = eventClass.getMethod("commit");
+            set = eventClass.getMethod("set", int.class, Object.class);
+        } catch (Exception e) {
+            log.debug("JDK Flight Recorder unavailable, events disabled");
+            create = null;
+        }
+        ANNOTATION_ELEMENT = annotationElement;
+        VALUE_DESCRIPTOR = valueDescriptor;
+        CREATE = create;
+        NEW_EVENT = newEvent;
+        IS_ENABLED = isEnabled;
+        BEGIN = begin;
+        END = end;
+        COMMIT = commit;
+        SET = set;
+    }
+
+    private static Object annotation(String type, Object value)
+            throws Exception {
+        return ANNOTATION_ELEMENT.newInstance(Class.forName(type), value);
+    }
+
+    /**
+     * Defines an event type.
+     *
+     * @return the event type, whose events are no-ops if it could not be
+     *         defined.
+     */
+    private static EventType define(
+            String name, String label, String description, Fields fields) {
+        if (CREATE == null) return new EventType(null);
+        try {
+            final List<Object> annotations = Arrays.asList(
+                annotation("jdk.jfr.Name", name),
+                annotation("jdk.jfr.Label", label),
+                annotation("jdk.jfr.Description", description),
+                annotation("jdk.jfr.Category", CATEGORY)
+            );
+            return new EventType(
+                CREATE.invoke(null, annotations, fields.descriptors()));
+        } catch (Exception e) {
+            log.warn("Unable to define JFR event " + name, e);
+            return new EventType(null);
+        }
+    }
+
+    /** Fields: remoteAddress. */
+    static final EventType SESSION_OPENED = define(
+        "sftp.SessionOpened", "SSH Session Opened",
+        "An SSH connection was accepted",
+        new Fields().
+            string("remoteAddress", "Remote Address"));
+
+    /**
+     * Fields: remoteAddress, username, sessionTime. The event is only
+     * begun when the session closes, so that sessions opened before a
+     * recording was started are recorded too.
+     */
+    static final EventType SESSION_CLOSED = define(
+        "sftp.SessionClosed", "SSH Session Closed",
+        "An SSH session was closed",
+        new Fields().
+            string("remoteAddress", "Remote Address").
+            string("username", "Username").
+            nanos("sessionTime", "Session Time"));
+
+    /** Fields: username, authenticated, realmTime. */
+    static final EventType AUTHENTICATION = define(
+        "sftp.Authentication", "SSH Authentication",
+        "Password authentication, including the realm lookup",
+        new Fields().
+            string("username", "Username").
+            bool("authenticated", "Authenticated").
+            nanos("realmTime", "Realm Time"));
+
+    /** Fields: method, path, status, bytesSent, bytesReceived. */
+    static final EventType SERVICE = define(
+        "sftp.Service", "Servlet Request",
+        "A request serviced by the servlet container",
+        new Fields().
+            string("method", "Method").
+            string("path", "Path").
+            integer("status", "Status").
+            bytes("bytesSent", "Bytes Sent").
+            bytes("bytesReceived", "Bytes Received"));
+
+    /** Fields: path, entries, bytes. */
+    static final EventType PROPFIND_PARSE = define(
+        "sftp.PropfindParse", "PROPFIND Parse",
+        "Parsing of a DAV:multistatus PROPFIND response",
+        new Fields().
+            string("path", "Path").
+            integer("entries", "Entries").
+            bytes("bytes", "Bytes"));
+
+    /**
+     * Fields: method, path, username, admissionTime, queueTime. Duration
+     * is that of the transfer on its dispatch thread.
+     */
+    static final EventType TRANSFER = define(
+        "sftp.Transfer", "Transfer",
+        "A streaming transfer, run on the dispatch executor",
+        new Fields().
+            string("method", "Method").
+            string("path", "Path").
+            string("username", "Username").
+            nanos("admissionTime", "Admission Time").
+            nanos("queueTime", "Queue Time"));
+
+    private FlightRecorder() {}
+}
@@ -0,0 +1,260 @@
+/*
+ * HttpDateParser.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.tomcat.coyote;
+
+import java.text.DateFormat;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Thread-safe parser for the date formats found in Last-Modified headers
+ * and DAV:getlastmodified properties.
+ *
+ * The WebDAV specs require dates to be RFC1123 formatted, which is
+ * handled without allocating any formatter. ISO8601 formatted dates are
+ * also accepted to support Artifactory. Recently parsed values are kept
+ * in a small cache, since the entries of a directory listing often share
+ * the same timestamp.
+ *
+ * @author Jack Leow
+ */
+final class HttpDateParser {
+    private static final int CACHE_SIZE = 64; // must be a power of two
+    /**
+     * The first full year of the Gregorian calendar, earlier dates are
+     * left to the formatters, whose calendars are Julian before then.
+     */
+    private static final int FIRST_GREGORIAN_YEAR = 1583;
+    private static final String[] MONTHS = {
+        "Jan", "Feb", "Mar", "Apr", "May", "Jun",
+        "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"
+    };
+    private static final ThreadLocal<DateFormat> RFC1123_DATE_FORMAT =
+        new ThreadLocal<DateFormat>() {
+            @Override
+            protected DateFormat initialValue() {
+                return new SimpleDateFormat(
+                    "EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            }
+        };
+
+    private static final class CachedDate {
+        final String text;
+        final long millis;
+
+        CachedDate(String text, long millis) {
+            this.text = text;
+            this.millis = millis;
+        }
+    }
+
+    private static final AtomicReferenceArray<CachedDate> cache =
+        new AtomicReferenceArray<CachedDate>(CACHE_SIZE);
+
+    private HttpDateParser() {}
+
+    /**
+     * Parses an RFC1123 or ISO8601 formatted date.
+     *
+     * @param date the date string.
+     * @return milliseconds since the epoch.
+     * @throws IllegalArgumentException if the date cannot be parsed.
+     */
+    static long parse(String date) {
+        final int slot = date.hashCode() & (CACHE_SIZE - 1);
+        final CachedDate cached = cache.get(slot);
+        if (cached != null && cached.text.equals(date)) {
+            return cached.millis;
+        }
+
+        final long millis;
+        final int zone;
+        if (isRfc1123Gmt(date)) {
+            millis = parseRfc1123Gmt(date);
+        } else if ((zone = iso8601ZoneIndex(date)) >= 0) {
+            millis = parseIso8601(date, zone);
+        } else {
+            millis = parseWithFormatters(date);
+        }
+        cache.set(slot, new CachedDate(date, millis));
+
+        return millis;
+    }
+
+    /**
+     * Whether date is in the only format HTTP/1.1 servers should
+     * generate, e.g., "Sun, 06 Nov 1994 08:49:37 GMT", with every field in
+     * range. Other dates (which the formatters may still accept, leniently)
+     * are left to the formatters.
+     */
+    private static boolean isRfc1123Gmt(String date) {
+        if (date.length() != 29 || date.charAt(3) != ',' ||
+                date.charAt(4) != ' ' || date.charAt(7) != ' ' ||
+                date.charAt(11) != ' ' || date.charAt(16) != ' ' ||
+                date.charAt(19) != ':' || date.charAt(22) != ':' ||
+                date.charAt(25) != ' ' || !date.endsWith("GMT")) {
+            return false;
+        }
+        final int year = digits(date, 12, 4);
+        final int month = month(date, 8);
+
+        return year >= FIRST_GREGORIAN_YEAR && month >= 0 &&
+            inRange(digits(date, 5, 2), 1, daysInMonth(year, month)) &&
+            inRange(digits(date, 17, 2), 0, 23) &&
+            inRange(digits(date, 20, 2), 0, 59) &&
+            inRange(digits(date, 23, 2), 0, 59);
+    }
+
+    private static long parseRfc1123Gmt(String date) {
+        return toMillis(
+            digits(date, 12, 4), month(date, 8), digits(date, 5, 2),
+            digits(date, 17, 2), digits(date, 20, 2), digits(date, 23, 2),
+            0, 0);
+    }
+
+    /**
+     * Checks for an ISO8601 combined date and time representation, e.g.,
+     * "2012-07-15T11:28:00.000-07:00" or "2012-07-15T18:28:00Z", with
+     * every field in range.
+     *
+     * @return the index of the time zone designator, -1 if date is in any
+     *         other format.
+     */
+    private static int iso8601ZoneIndex(String date) {
+        final int len = date.length();
+        if (len < 20 || date.charAt(4) != '-' || date.charAt(7) != '-' ||
+                date.charAt(10) != 'T' || date.charAt(13) != ':' ||
+                date.charAt(16) != ':') {
+            return -1;
+        }
+        final int year = digits(date, 0, 4);
+        final int month = digits(date, 5, 2) - 1;
+        if (year < FIRST_GREGORIAN_YEAR || !inRange(month, 0, 11) ||
+                !inRange(digits(date, 8, 2), 1, daysInMonth(year, month)) ||
+                !inRange(digits(date, 11, 2), 0, 23) ||
+                !inRange(digits(date, 14, 2), 0, 59) ||
+                !inRange(digits(date, 17, 2), 0, 59)) {
+            return -1;
+        }
+
+        int pos = 19;
+        if (date.charAt(pos) == '.') {
+            pos++;
+            while (pos < len && digits(date, pos, 1) >= 0) pos++;
+        }
+        if (pos >= len) return -1;
+
+        final char zone = date.charAt(pos);
+        if (zone == 'Z' && pos == len - 1) return pos;
+        if ((zone == '+' || zone == '-') && pos == len - 6 &&
+                date.charAt(pos + 3) == ':' &&
+                inRange(digits(date, pos + 1, 2), 0, 23) &&
+                inRange(digits(date, pos + 4, 2), 0, 59)) {
+            return pos;
+        }
+        return -1;
+    }
+
+    /**
+     * @param zone the index of the time zone designator, as returned by
+     *        {@link #iso8601ZoneIndex}.
+     */
+    private static long parseIso8601(String date, int zone) {
+        int millis = 0;
+        int scale = 100;
+        for (int pos = 20; pos < zone; pos++) {
+            millis += (date.charAt(pos) - '0') * scale;
+            scale /= 10;
+        }
+        int offsetMinutes = 0;
+        if (date.charAt(zone) != 'Z') {
+            offsetMinutes = (date.charAt(zone) == '-' ? -1 : 1) *
+                (digits(date, zone + 1, 2) * 60 + digits(date, zone + 4, 2));
+        }
+
+        return toMillis(
+            digits(date, 0, 4), digits(date, 5, 2) - 1, digits(date, 8, 2),
+            digits(date, 11, 2), digits(date, 14, 2), digits(date, 17, 2),
+            millis, offsetMinutes);
+    }
+
+    private static long parseWithFormatters(String date) {
+        // Other time zones and unusual RFC1123 variants.
+        final Date rfc1123 = RFC1123_DATE_FORMAT.get().
+            parse(date, new ParsePosition(0));
+        if (rfc1123 != null) {
+            return rfc1123.getTime();
+        }
+        // Other ISO8601 variants.
+        return DatatypeConverter.parseDateTime(date).getTimeInMillis();
+    }
+
+    private static int digits(String s, int offset, int count) {
+        int value = 0;
+        for (int i = offset; i < offset + count; i++) {
+            final char c = s.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static boolean inRange(int value, int min, int max) {
+        return value >= min && value <= max;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        if (month == 1) {
+            final boolean leap =
+                year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+            return leap ? 29 : 28;
+        }
+        return month == 3 || month == 5 || month == 8 || month == 10 ?
+            30 : 31;
+    }
+
+    private static int month(String s, int offset) {
+        for (int i = 0; i < MONTHS.length; i++) {
+            if (s.regionMatches(offset, MONTHS[i], 0, 3)) return i;
+        }
+        return -1;
+    }
+
+    private static long toMillis(
+            int year, int month, int day, int hour, int minute, int second,
+            int millis, int offsetMinutes) {
+        // Days since the epoch in the proleptic Gregorian calendar
+        // (H. Hinnant's "days_from_civil").
+        final long y = month < 2 ? year - 1 : year;
+        final long era = (y >= 0 ? y : y - 399) / 400;
+        final long yearOfEra = y - era * 400;
+        final long dayOfYear =
+            (153 * (month < 2 ? month + 10 : month - 2) + 2) / 5 + day - 1;
+        final long dayOfEra =
+            yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        final long days = era * 146097 + dayOfEra - 719468;
+
+        return ((days * 24 + hour) * 60 + minute - offsetMinutes) * 60000L +
+            second * 1000L + millis;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * LatencyHistogram.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.tomcat.coyote;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram, registered in JMX (as type=SftpLatency).
+ *
+ * Latencies are recorded in microseconds into log-linear buckets (in
+ * the style of HdrHistogram): each power of two is divided into 16
+ * linear sub-buckets, so reported percentiles are within about 6% of
+ * the actual value. Recording is a handful of atomic increments, and
+ * never allocates.
+ *
+ * @author Jack Leow
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /** Values up to 2^40 microseconds (about 12 days) are distinguished. */
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS =
+        SUB_BUCKETS * (MAX_EXPONENT - SUB_BUCKET_BITS + 2);
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    private static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKETS) return (int)micros;
+        final int exponent = Math.min(
+            63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT);
+        final int subBucket = (int)
+            ((micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return SUB_BUCKETS * (exponent - SUB_BUCKET_BITS + 1) + subBucket;
+    }
+
+    /**
+     * @return the largest value that falls into the bucket.
+     */
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) return index;
+        final int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final long subBucket = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS))
+            - 1;
+    }
+
+    public void record(long nanos) {
+        final long micros = Math.max(nanos / 1000, 0);
+        counts.incrementAndGet(bucketIndex(micros));
+        count.incrementAndGet();
+        totalMicros.addAndGet(micros);
+        long max;
+        while (micros > (max = maxMicros.get()) &&
+                !maxMicros.compareAndSet(max, micros));
+    }
+
+    public String getName() { return name; }
+
+    public long getCount() { return count.get(); }
+
+    /** Mean latency, in milliseconds. */
+    public double getMean() {
+        final long count = this.count.get();
+        return count == 0 ? 0.0 : totalMicros.get() / 1000.0 / count;
+    }
+
+    /** Maximum latency, in milliseconds. */
+    public double getMax() { return maxMicros.get() / 1000.0; }
+
+    /**
+     * @param percentile the percentile (e.g., 99.9).
+     * @return the latency at the percentile, in milliseconds.
+     */
+    public double getValueAtPercentile(double percentile) {
+        final long count = this.count.get();
+        if (count == 0) return 0.0;
+        final long rank = Math.max((long)Math.ceil(count * percentile / 100), 1);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), maxMicros.get()) / 1000.0;
+            }
+        }
+        return getMax();
+    }
+
+    public double getP50() { return getValueAtPercentile(50); }
+
+    public double getP99() { return getValueAtPercentile(99); }
+
+    public double getP999() { return getValueAtPercentile(99.9); }
+
+    @Override
+    public String toString() {
+        return String.format(
+            "%s: n=%d p50=%.2f p99=%.2f p999=%.2f max=%.2f",
+            name, getCount(), getP50(), getP99(), getP999(), getMax());
+    }
+}
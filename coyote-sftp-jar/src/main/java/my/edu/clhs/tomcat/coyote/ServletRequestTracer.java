@@ -0,0 +1,227 @@
+/*
+ * ServletRequestTracer.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.tomcat.coyote;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.sshd.common.Session;
+import org.apache.sshd.common.session.AbstractSession;
+
+/**
+ * Attributes servlet requests to the SFTP operation that caused them.
+ *
+ * The operation being processed is tracked per thread: the SFTP
+ * subsystem's thread while the operation is processed, and the dispatch
+ * thread for any transfer the operation started. An operation that opens
+ * a handle (e.g., a file opened for download) lasts until the handle is
+ * closed, with the requests made on the handle (reads, writes, etc.) and
+ * those of its transfer attributed to it. The number of servlet requests
+ * made for each operation is recorded in {@link SftpStatistics}, and
+ * operations taking longer than the slow operation threshold are logged,
+ * along with every servlet request they made. For an operation that
+ * opened a handle, this is the time taken to open it.
+ *
+ * @author Jack Leow
+ */
+final class ServletRequestTracer {
+    private static final Log log =
+        LogFactory.getLog(ServletRequestTracer.class);
+    private static final String[] OPERATION_NAMES = {
+        null, "init", "version", "open", "close", "read", "write", "lstat",
+        "fstat", "setstat", "fsetstat", "opendir", "readdir", "remove",
+        "mkdir", "rmdir", "realpath", "stat", "rename", "readlink",
+        "symlink"
+    };
+    private static final int SSH_FXP_EXTENDED = 200;
+
+    /**
+     * An SFTP operation, and the servlet requests made on its behalf.
+     */
+    static final class Operation {
+        final String name;
+        final String target;
+        final String client;
+        final long startNanos = System.nanoTime();
+        private final AtomicInteger requestCount = new AtomicInteger();
+        private final StringBuffer requests = new StringBuffer();
+        /** The handle the operation opened, null if none. */
+        private volatile String handle;
+        /** Time taken by the operation itself, -1 until it completes. */
+        private volatile long elapsedNanos = -1;
+
+        private Operation(String name, String target, String client) {
+            this.name = name;
+            this.target = target;
+            this.client = client;
+        }
+
+        int getRequestCount() { return requestCount.get(); }
+
+        @Override
+        public String toString() {
+            return name + "(" + target + ") by " + client;
+        }
+    }
+
+    private final ThreadLocal<Operation> current = new ThreadLocal<Operation>();
+    /** Operations that opened handles still open, by handle. */
+    private final ConcurrentMap<String,Operation> handleOperations =
+        new ConcurrentHashMap<String,Operation>();
+    private final SftpStatistics statistics;
+    private final long slowOperationThresholdNanos;
+
+    /**
+     * @param statistics where fan-out counts are recorded.
+     * @param slowOperationThreshold operations taking longer than this
+     *        (in milliseconds) are logged, 0 or less to disable.
+     */
+    ServletRequestTracer(
+            SftpStatistics statistics, long slowOperationThreshold) {
+        this.statistics = statistics;
+        this.slowOperationThresholdNanos = slowOperationThreshold > 0 ?
+            TimeUnit.MILLISECONDS.toNanos(slowOperationThreshold) :
+            Long.MAX_VALUE;
+    }
+
+    private static String operationName(int type) {
+        if (type == SSH_FXP_EXTENDED) return "extended";
+        return type > 0 && type < OPERATION_NAMES.length ?
+            OPERATION_NAMES[type] : "type-" + type;
+    }
+
+    private static String client(Session session) {
+        if (session == null) return null;
+        final StringBuilder client = new StringBuilder();
+        client.append(session.getUsername());
+        if (session instanceof AbstractSession) {
+            client.append('@').append(
+                ((AbstractSession)session).getIoSession().getRemoteAddress());
+        }
+        return client.toString();
+    }
+
+    /**
+     * @param handle the handle the operation is made on, null if none.
+     */
+    void operationStarted(
+            Session session, int type, String target, String handle) {
+        Operation operation =
+            handle != null ? handleOperations.get(handle) : null;
+        if (operation == null) {
+            operation = new Operation(
+                operationName(type), target, client(session));
+        }
+        current.set(operation);
+    }
+
+    /**
+     * Keeps the current thread's operation going until handle, which it
+     * opened, is closed.
+     */
+    void handleOpened(String handle) {
+        final Operation operation = current.get();
+        if (operation == null) return;
+        operation.handle = handle;
+        handleOperations.put(handle, operation);
+    }
+
+    void operationCompleted() {
+        final Operation operation = current.get();
+        if (operation == null) return;
+        current.remove();
+
+        if (operation.handle == null) {
+            record(operation, System.nanoTime() - operation.startNanos);
+        } else if (operation.elapsedNanos < 0) {
+            // Recorded once the handle is closed
+            operation.elapsedNanos = System.nanoTime() - operation.startNanos;
+        }
+    }
+
+    /**
+     * Completes the operation that opened handle.
+     */
+    void handleClosed(String handle) {
+        final Operation operation = handleOperations.remove(handle);
+        if (operation == null) return;
+
+        record(
+            operation,
+            operation.elapsedNanos >= 0 ? operation.elapsedNanos :
+                System.nanoTime() - operation.startNanos);
+    }
+
+    private void record(Operation operation, long elapsed) {
+        final boolean slow = elapsed > slowOperationThresholdNanos;
+        statistics.operationTraced(
+            operation.name, operation.getRequestCount(), slow);
+        if (slow) {
+            log.warn(String.format(
+                "Slow SFTP operation %s: %.1f ms, %d servlet request(s)%s",
+                operation, elapsed / 1e6, operation.getRequestCount(),
+                operation.requests));
+        }
+    }
+
+    /**
+     * @return the operation being processed by the current thread, if any.
+     */
+    Operation currentOperation() {
+        return current.get();
+    }
+
+    /**
+     * Attributes the current thread's requests to the given operation,
+     * e.g., for a transfer started by the operation.
+     */
+    void attach(Operation operation) {
+        if (operation != null) current.set(operation);
+    }
+
+    void detach() {
+        current.remove();
+    }
+
+    /**
+     * Records the start of a servlet request made on behalf of operation.
+     */
+    void requestStarted(Operation operation) {
+        if (operation != null) operation.requestCount.incrementAndGet();
+    }
+
+    /**
+     * Records the completion of a servlet request made on behalf of
+     * operation.
+     */
+    void requestCompleted(
+            Operation operation, String method, String path, int status,
+            long nanos) {
+        if (operation == null) return;
+        final String request = String.format(
+            "%s %s %d (%.1f ms)", method, path, status, nanos / 1e6);
+        operation.requests.append("\n    ").append(request);
+        if (log.isDebugEnabled()) {
+            log.debug("SFTP " + operation + ": " + request);
+        }
+    }
+}
@@ -17,49 +17,79 @@
  */
 package my.edu.clhs.tomcat.coyote;
 
+import static my.edu.clhs.tomcat.coyote.DispatchScheduler.OperationClass.METADATA;
+import static my.edu.clhs.tomcat.coyote.DispatchScheduler.OperationClass.TRANSFER;
+
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.HttpCookie;
 import java.net.InetSocketAddress;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import javax.management.ObjectName;
 
+import my.edu.clhs.sshd.server.BufferPool;
+import my.edu.clhs.sshd.server.LeveledCompressionFactory;
 import my.edu.clhs.sshd.server.command.ServletScpCommand;
+import my.edu.clhs.sshd.server.sftp.ServletSftpSubsystem;
 
 import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
 import org.apache.catalina.Manager;
 import org.apache.catalina.Realm;
 import org.apache.catalina.connector.CoyoteAdapter;
+import org.apache.catalina.core.StandardThreadExecutor;
 import org.apache.catalina.realm.JAASRealm;
 import org.apache.catalina.realm.NullRealm;
+import org.apache.coyote.ActionHook;
 import org.apache.coyote.Adapter;
 import org.apache.coyote.Constants;
 import org.apache.coyote.InputBuffer;
 import org.apache.coyote.OutputBuffer;
 import org.apache.coyote.ProtocolHandler;
 import org.apache.coyote.Request;
+import org.apache.coyote.RequestGroupInfo;
 import org.apache.coyote.RequestInfo;
 import org.apache.coyote.Response;
 import org.apache.coyote.http11.filters.VoidOutputFilter;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 import org.apache.mina.core.session.IoSession;
+import org.apache.mina.transport.socket.DefaultSocketSessionConfig;
 import org.apache.mina.util.Base64;
 import org.apache.sshd.SshServer;
+import org.apache.sshd.common.Cipher;
+import org.apache.sshd.common.Compression;
+import org.apache.sshd.common.FactoryManager;
+import org.apache.sshd.common.KeyExchange;
+import org.apache.sshd.common.Mac;
 import org.apache.sshd.common.NamedFactory;
 import org.apache.sshd.common.Session;
 import org.apache.sshd.common.Session.AttributeKey;
 import org.apache.sshd.common.SessionListener;
+import org.apache.sshd.common.channel.AbstractChannel;
+import org.apache.sshd.common.compression.CompressionDelayedZlib;
+import org.apache.sshd.common.compression.CompressionNone;
+import org.apache.sshd.common.compression.CompressionZlib;
 import org.apache.sshd.common.session.AbstractSession;
 import org.apache.sshd.common.util.SecurityUtils;
 import org.apache.sshd.server.Command;
@@ -71,10 +101,12 @@ import org.apache.sshd.server.ServerFactoryManager;
 import org.apache.sshd.server.keyprovider.PEMGeneratorHostKeyProvider;
 import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
 import org.apache.sshd.server.session.ServerSession;
-import org.apache.sshd.server.sftp.SftpSubsystem;
+import org.apache.sshd.server.session.SessionFactory;
 import org.apache.tomcat.util.http.MimeHeaders;
+import org.apache.tomcat.util.modeler.Registry;
 import org.apache.tomcat.util.http.mapper.MappingData;
 import org.apache.tomcat.util.res.StringManager;
+import org.apache.tomcat.util.threads.ResizableExecutor;
 
 /**
  * {@link ProtocolHandler} for the SSH File Transfer Protocol.
@@ -91,6 +123,21 @@ public class SftpProtocol implements ProtocolHandler {
         SESSIONS_KEY = new AttributeKey<Set<org.apache.catalina.Session>>();
     private static final AttributeKey<Set<HttpCookie>> COOKIES_KEY =
         new AttributeKey<Set<HttpCookie>>();
+    private static final AttributeKey<Set<DispatchScheduler.Ticket>>
+        TICKETS_KEY = new AttributeKey<Set<DispatchScheduler.Ticket>>();
+    /**
+     * When the session was opened, as of {@link System#nanoTime()}.
+     */
+    private static final AttributeKey<Long> OPENED_NANOS_KEY =
+        new AttributeKey<Long>();
+    /**
+     * Set on executor threads while they run a task submitted through
+     * {@link #dispatch(Runnable)}, so that requests made by the task are
+     * serviced in-line instead of being dispatched again.
+     */
+    private static final ThreadLocal<Boolean> DISPATCHED =
+        new ThreadLocal<Boolean>();
+    private static final int MAX_POOLED_BUFFER_BYTES = 32 * 1024 * 1024;
     
     private final SshServer endpoint = SshServer.setUpDefaultServer();
     
@@ -120,11 +167,297 @@ public class SftpProtocol implements ProtocolHandler {
     // @Override - ProtocolHandler
     public void setAdapter(Adapter adapter) { this.adapter = adapter; }
     
+    /**
+     * The executor all servlet requests are dispatched to, either
+     * an external Tomcat {@code <Executor>} referenced by the connector's
+     * "executor" attribute, or an internal pool created on start.
+     */
+    private volatile Executor executor;
+    private StandardThreadExecutor internalExecutor;
     // @Override - ProtocolHandler
-    public Executor getExecutor() {
-        return endpoint.getScheduledExecutorService();
+    public Executor getExecutor() { return executor; }
+    public void setExecutor(Executor executor) { this.executor = executor; }
+    
+    private int minSpareThreads = 10;
+    public int getMinSpareThreads() { return minSpareThreads; }
+    public void setMinSpareThreads(int minSpareThreads) {
+        this.minSpareThreads = minSpareThreads;
+    }
+    
+    private int maxThreads = 200;
+    public int getMaxThreads() { return maxThreads; }
+    public void setMaxThreads(int maxThreads) {
+        this.maxThreads = maxThreads;
+    }
+    
+    private int maxQueueSize = 100;
+    public int getMaxQueueSize() { return maxQueueSize; }
+    public void setMaxQueueSize(int maxQueueSize) {
+        this.maxQueueSize = maxQueueSize;
+    }
+    
+    /**
+     * Admits metadata operations and transfers independently, so that
+     * interactive users are not stuck behind bulk transfers.
+     */
+    private DispatchScheduler scheduler;
+    
+    private int maxMetadataOperations = 50;
+    public int getMaxMetadataOperations() { return maxMetadataOperations; }
+    public void setMaxMetadataOperations(int maxMetadataOperations) {
+        this.maxMetadataOperations = maxMetadataOperations;
+    }
+    
+    private int maxMetadataOperationsPerUser = 10;
+    public int getMaxMetadataOperationsPerUser() {
+        return maxMetadataOperationsPerUser;
+    }
+    public void setMaxMetadataOperationsPerUser(
+            int maxMetadataOperationsPerUser) {
+        this.maxMetadataOperationsPerUser = maxMetadataOperationsPerUser;
+    }
+    
+    private int maxTransfers = 150;
+    public int getMaxTransfers() { return maxTransfers; }
+    public void setMaxTransfers(int maxTransfers) {
+        this.maxTransfers = maxTransfers;
+    }
+    
+    private int maxTransfersPerUser = 8;
+    public int getMaxTransfersPerUser() { return maxTransfersPerUser; }
+    public void setMaxTransfersPerUser(int maxTransfersPerUser) {
+        this.maxTransfersPerUser = maxTransfersPerUser;
+    }
+    
+    /**
+     * Longest time, in milliseconds, a transfer waits to be admitted
+     * before it is failed. Transfers are opened on the SSH session's
+     * thread, which the session's other transfers need to progress.
+     */
+    private int transferAdmissionTimeout = 1000;
+    public int getTransferAdmissionTimeout() {
+        return transferAdmissionTimeout;
+    }
+    public void setTransferAdmissionTimeout(int transferAdmissionTimeout) {
+        this.transferAdmissionTimeout = transferAdmissionTimeout;
+    }
+    
+    /**
+     * Longest time, in milliseconds, a metadata operation waits to be
+     * admitted before it is failed.
+     */
+    private int metadataAdmissionTimeout = 10000;
+    public int getMetadataAdmissionTimeout() {
+        return metadataAdmissionTimeout;
+    }
+    public void setMetadataAdmissionTimeout(int metadataAdmissionTimeout) {
+        this.metadataAdmissionTimeout = metadataAdmissionTimeout;
+    }
+    
+    /**
+     * Size of the buffers file contents are copied through, by the scp
+     * command and between the SSH server and servlets.
+     */
+    private int transferBufferSize = 65536;
+    public int getTransferBufferSize() { return transferBufferSize; }
+    public void setTransferBufferSize(int transferBufferSize) {
+        this.transferBufferSize = transferBufferSize;
+    }
+    
+    /**
+     * Number of files of a recursive scp upload (scp -r) stored at once,
+     * 1 to store them one at a time, see {@link ServletScpCommand}.
+     */
+    private int scpParallelUploads = 1;
+    public int getScpParallelUploads() { return scpParallelUploads; }
+    public void setScpParallelUploads(int scpParallelUploads) {
+        this.scpParallelUploads = scpParallelUploads;
+    }
+    
+    /**
+     * Transfer buffers, shared by all transfers, see {@link BufferPool}.
+     */
+    private BufferPool bufferPool;
+    BufferPool getBufferPool() { return bufferPool; }
+    
+    /**
+     * Aggregates the statistics of all requests, as with the HTTP
+     * connectors, this is registered in JMX as GlobalRequestProcessor.
+     */
+    private final RequestGroupInfo global = new RequestGroupInfo();
+    private ObjectName globalName;
+    
+    private final SftpStatistics statistics = new SftpStatistics(global);
+    private ObjectName statisticsName;
+    private final List<ObjectName> latencyNames = new ArrayList<ObjectName>();
+    public SftpStatistics getStatistics() { return statistics; }
+    
+    /**
+     * Interval between latency summaries in the log, in seconds (0 to
+     * disable them).
+     */
+    private int latencyLogInterval = 60;
+    public int getLatencyLogInterval() { return latencyLogInterval; }
+    public void setLatencyLogInterval(int latencyLogInterval) {
+        this.latencyLogInterval = latencyLogInterval;
+    }
+    private ScheduledFuture<?> latencyLogger;
+    
+    /**
+     * Whether servlet requests are attributed to the SFTP operations that
+     * caused them, see {@link ServletRequestTracer}.
+     */
+    private boolean traceRequests = false;
+    public boolean getTraceRequests() { return traceRequests; }
+    public void setTraceRequests(boolean traceRequests) {
+        this.traceRequests = traceRequests;
+    }
+    
+    /**
+     * Traced operations taking longer than this (in milliseconds) are
+     * logged, 0 to disable.
+     */
+    private long slowOperationThreshold = 1000;
+    public long getSlowOperationThreshold() { return slowOperationThreshold; }
+    public void setSlowOperationThreshold(long slowOperationThreshold) {
+        this.slowOperationThreshold = slowOperationThreshold;
+    }
+    
+    private ServletRequestTracer tracer;
+    
+    /**
+     * Whether downloads, uploads and deletions are written to an
+     * xferlog-style log, see {@link TransferLog}.
+     */
+    private boolean transferLogEnabled = false;
+    public boolean getTransferLogEnabled() { return transferLogEnabled; }
+    public void setTransferLogEnabled(boolean transferLogEnabled) {
+        this.transferLogEnabled = transferLogEnabled;
+    }
+    
+    /**
+     * Directory of the transfer log, relative to catalina.base unless
+     * absolute.
+     */
+    private String transferLogDirectory = "logs";
+    public String getTransferLogDirectory() { return transferLogDirectory; }
+    public void setTransferLogDirectory(String transferLogDirectory) {
+        this.transferLogDirectory = transferLogDirectory;
+    }
+    
+    /**
+     * Name of the transfer log file (before the date, if rotatable),
+     * defaults to the endpoint name followed by "_xferlog.".
+     */
+    private String transferLogPrefix = null;
+    public String getTransferLogPrefix() { return transferLogPrefix; }
+    public void setTransferLogPrefix(String transferLogPrefix) {
+        this.transferLogPrefix = transferLogPrefix;
+    }
+    
+    /**
+     * Whether a new transfer log file is started every day.
+     */
+    private boolean transferLogRotatable = true;
+    public boolean getTransferLogRotatable() { return transferLogRotatable; }
+    public void setTransferLogRotatable(boolean transferLogRotatable) {
+        this.transferLogRotatable = transferLogRotatable;
+    }
+    
+    private volatile TransferLog transferLog;
+    
+    /**
+     * Whether the SHA-256 digest of every upload is computed as it is
+     * streamed, and passed to the servlet in a Digest (RFC 3230) trailer.
+     */
+    private boolean digestUploads = false;
+    public boolean getDigestUploads() { return digestUploads; }
+    public void setDigestUploads(boolean digestUploads) {
+        this.digestUploads = digestUploads;
+    }
+    
+    /**
+     * Whether an ETag that is a hex encoded digest of the right length is
+     * taken to be the resource's checksum. ETags are opaque, so this is
+     * only correct for servlets known to use the digest of the contents
+     * (e.g., an MD5) as the ETag.
+     */
+    private boolean etagDigests = false;
+    public boolean getEtagDigests() { return etagDigests; }
+    public void setEtagDigests(boolean etagDigests) {
+        this.etagDigests = etagDigests;
     }
     
+    /**
+     * Whether directory listings snapshot the tree under the directory
+     * with a single Depth: infinity PROPFIND, from which later listings
+     * and stats in the tree are answered, see {@link TreeSnapshot}.
+     */
+    private boolean treeSnapshots = false;
+    public boolean getTreeSnapshots() { return treeSnapshots; }
+    public void setTreeSnapshots(boolean treeSnapshots) {
+        this.treeSnapshots = treeSnapshots;
+    }
+    
+    /**
+     * Most resources in a tree snapshot, larger trees are listed one
+     * directory at a time.
+     */
+    private int treeSnapshotMaxEntries = 10000;
+    public int getTreeSnapshotMaxEntries() { return treeSnapshotMaxEntries; }
+    public void setTreeSnapshotMaxEntries(int treeSnapshotMaxEntries) {
+        this.treeSnapshotMaxEntries = treeSnapshotMaxEntries;
+    }
+    
+    /**
+     * Largest Depth: infinity PROPFIND response (in bytes) held in memory
+     * to snapshot a tree.
+     */
+    private long treeSnapshotMaxBytes = 8 * 1024 * 1024;
+    public long getTreeSnapshotMaxBytes() { return treeSnapshotMaxBytes; }
+    public void setTreeSnapshotMaxBytes(long treeSnapshotMaxBytes) {
+        this.treeSnapshotMaxBytes = treeSnapshotMaxBytes;
+    }
+    
+    /**
+     * Seconds a tree snapshot is used for, changes made by others in the
+     * meantime are not seen.
+     */
+    private int treeSnapshotTtl = 30;
+    public int getTreeSnapshotTtl() { return treeSnapshotTtl; }
+    public void setTreeSnapshotTtl(int treeSnapshotTtl) {
+        this.treeSnapshotTtl = treeSnapshotTtl;
+    }
+    
+    /**
+     * Receives handle and request events from the SFTP subsystem.
+     */
+    private final ServletSftpSubsystem.Listener sftpListener =
+        new ServletSftpSubsystem.Listener() {
+            public void handleOpened(String handle) {
+                statistics.handleOpened();
+                if (tracer != null) tracer.handleOpened(handle);
+            }
+            
+            public void handleClosed(String handle) {
+                statistics.handleClosed();
+                if (tracer != null) tracer.handleClosed(handle);
+            }
+            
+            public void requestStarted(
+                    ServerSession session, int type, String target,
+                    String handle) {
+                if (tracer != null) {
+                    tracer.operationStarted(session, type, target, handle);
+                }
+            }
+            
+            public void requestProcessed(int type, long nanos) {
+                statistics.requestProcessed(type, nanos);
+                if (tracer != null) tracer.operationCompleted();
+            }
+        };
+    
     // @Override - ProtocolHandler
     public boolean isAprRequired() { return false; }
     
@@ -139,6 +472,12 @@ public class SftpProtocol implements ProtocolHandler {
         this.URIEncoding = URIEncoding;
     };
     
+    /**
+     * Decodes DAV:href values, the URIEncoding charset is resolved once
+     * when the protocol handler is initialized.
+     */
+    private UriDecoder uriDecoder;
+    
     private String anonymousUsername = "anonymous";
     public void setAnonymousUsername(String anonymousUsername) {
         this.anonymousUsername = anonymousUsername;
@@ -149,10 +488,221 @@ public class SftpProtocol implements ProtocolHandler {
             ServerFactoryManager.IDLE_TIMEOUT, sessionTimeoutMillis);
     }
     
+    /**
+     * Largest SSH channel data packet accepted by the endpoint, larger
+     * packets are rejected by SSHD.
+     */
+    private static final int MAX_MAX_PACKET_SIZE = 32768;
+    
+    public int getNioWorkers() { return endpoint.getNioWorkers(); }
+    public void setNioWorkers(int nioWorkers) {
+        endpoint.setNioWorkers(nioWorkers);
+    }
+    
+    public int getAcceptCount() { return endpoint.getBacklog(); }
+    public void setAcceptCount(int acceptCount) {
+        endpoint.setBacklog(acceptCount);
+    }
+    
+    private boolean tcpNoDelay = true;
+    public boolean getTcpNoDelay() { return tcpNoDelay; }
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+    
+    /**
+     * Socket receive buffer size, -1 for the system default.
+     */
+    private int rxBufSize = -1;
+    public int getRxBufSize() { return rxBufSize; }
+    public void setRxBufSize(int rxBufSize) { this.rxBufSize = rxBufSize; }
+    
+    /**
+     * Socket send buffer size, -1 for the system default.
+     */
+    private int txBufSize = -1;
+    public int getTxBufSize() { return txBufSize; }
+    public void setTxBufSize(int txBufSize) { this.txBufSize = txBufSize; }
+    
+    public int getWindowSize() {
+        return getIntProperty(
+            FactoryManager.WINDOW_SIZE, AbstractChannel.DEFAULT_WINDOW_SIZE);
+    }
+    public void setWindowSize(int windowSize) {
+        endpoint.getProperties().put(
+            FactoryManager.WINDOW_SIZE, Integer.toString(windowSize));
+    }
+    
+    public int getMaxPacketSize() {
+        return getIntProperty(
+            FactoryManager.MAX_PACKET_SIZE, AbstractChannel.DEFAULT_PACKET_SIZE);
+    }
+    public void setMaxPacketSize(int maxPacketSize) {
+        if (maxPacketSize <= 0 || maxPacketSize > MAX_MAX_PACKET_SIZE) {
+            throw new IllegalArgumentException(
+                "maxPacketSize must be between 1 and " + MAX_MAX_PACKET_SIZE);
+        }
+        endpoint.getProperties().put(
+            FactoryManager.MAX_PACKET_SIZE, Integer.toString(maxPacketSize));
+    }
+    
+    /**
+     * Whether clients may compress the transport, with zlib, or
+     * zlib@openssh.com (which only starts once the user is
+     * authenticated). Clients that do not ask for compression are not
+     * affected.
+     */
+    private boolean compression = false;
+    public boolean getCompression() { return compression; }
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+    
+    /**
+     * zlib level data sent to clients is compressed at, 1 (fastest) to 9
+     * (smallest), -1 for zlib's default (6).
+     */
+    private int compressionLevel = -1;
+    public int getCompressionLevel() { return compressionLevel; }
+    public void setCompressionLevel(int compressionLevel) {
+        if (compressionLevel != -1 &&
+                (compressionLevel < 1 || compressionLevel > 9)) {
+            throw new IllegalArgumentException(
+                "compressionLevel must be between 1 and 9, or -1");
+        }
+        this.compressionLevel = compressionLevel;
+    }
+    
+    /**
+     * Prefix of the ciphers offered by the "throughput" algorithm preset:
+     * AES (in CTR or CBC mode), which JVMs accelerate with AES-NI, and
+     * runs several times faster than 3DES or Blowfish.
+     */
+    private static final String THROUGHPUT_CIPHER_PREFIX = "aes";
+    
+    /**
+     * The algorithms offered when not listed by the ciphers, macs or
+     * kexAlgorithms attributes, "default" for all of those SSHD supports
+     * (in its order), or "throughput" for only the fastest ciphers (MACs
+     * are not affected, there is little between them).
+     */
+    private String algorithmPreset = "default";
+    public String getAlgorithmPreset() { return algorithmPreset; }
+    public void setAlgorithmPreset(String algorithmPreset) {
+        if (!"default".equals(algorithmPreset) &&
+                !"throughput".equals(algorithmPreset)) {
+            throw new IllegalArgumentException(
+                "algorithmPreset must be \"default\" or \"throughput\"");
+        }
+        this.algorithmPreset = algorithmPreset;
+    }
+    
+    /**
+     * Comma separated ciphers offered to clients, null for those of the
+     * algorithm preset.
+     * 
+     * Clients pick the first algorithm in their own list that is offered
+     * (RFC 4253), so this list, like the macs and kexAlgorithms lists,
+     * mostly decides what may be used, rather than what is.
+     */
+    private String ciphers;
+    public String getCiphers() { return ciphers; }
+    public void setCiphers(String ciphers) { this.ciphers = ciphers; }
+    
+    /**
+     * Comma separated MACs offered to clients, null for all of those SSHD
+     * supports.
+     */
+    private String macs;
+    public String getMacs() { return macs; }
+    public void setMacs(String macs) { this.macs = macs; }
+    
+    /**
+     * Comma separated key exchange algorithms offered to clients, null
+     * for all of those SSHD supports.
+     */
+    private String kexAlgorithms;
+    public String getKexAlgorithms() { return kexAlgorithms; }
+    public void setKexAlgorithms(String kexAlgorithms) {
+        this.kexAlgorithms = kexAlgorithms;
+    }
+    
+    /**
+     * @param attribute the attribute the algorithms were configured with.
+     * @param names comma separated algorithms, null for all available.
+     * @param available the factories of the algorithms SSHD supports.
+     * @return the factories of the named algorithms, in the same order.
+     */
+    private static <T> List<NamedFactory<T>> namedFactories(
+            String attribute, String names, List<NamedFactory<T>> available) {
+        if (names == null) return available;
+        
+        final List<NamedFactory<T>> named = new ArrayList<NamedFactory<T>>();
+        for (String name : names.split(",")) {
+            if (name.trim().length() == 0) continue;
+            final NamedFactory<T> factory =
+                NamedFactory.Utils.get(available, name.trim());
+            if (factory == null) {
+                throw new IllegalArgumentException(
+                    attribute + ": " + name.trim() + " is not supported " +
+                    "(supported: " + NamedFactory.Utils.getNames(available) +
+                    ")");
+            }
+            named.add(factory);
+        }
+        if (named.isEmpty()) {
+            throw new IllegalArgumentException(
+                attribute + ": no algorithms listed");
+        }
+        
+        return named;
+    }
+    
+    private int getIntProperty(String name, int defaultValue) {
+        final String value = endpoint.getProperties().get(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+    
+    /**
+     * Orders cookies by path length, from longest to shortest, so that
+     * the most specific cookie of each name is matched first.
+     */
+    static final Comparator<HttpCookie> COOKIE_PATH_ORDER =
+        new Comparator<HttpCookie>() {
+            public int compare(HttpCookie l, HttpCookie r) {
+                String lPath = l.getPath();
+                if (lPath == null) lPath = "";
+                String rPath = r.getPath();
+                if (rPath == null) rPath = "";
+                
+                final int lLen = lPath.length();
+                final int rLen = rPath.length();
+                
+                final int diff = rLen - lLen;
+                
+                if (diff != 0) {
+                    return diff;
+                } else {
+                    return rPath.compareTo(lPath);
+                }
+            }
+        };
+    
     private Collection<HttpCookie> getCookiesFrom(
             Session sshSession, String normalizedPath) {
+        return matchCookies(
+            sshSession.getAttribute(COOKIES_KEY), normalizedPath);
+    }
+    
+    /**
+     * @param cookiesByPath cookies, in {@link #COOKIE_PATH_ORDER}.
+     * @param normalizedPath the request path.
+     * @return the most specific unexpired cookie of each name that
+     *         applies to the path.
+     */
+    static Collection<HttpCookie> matchCookies(
+            Set<HttpCookie> cookiesByPath, String normalizedPath) {
         Map<String,HttpCookie> cookies = new HashMap<String,HttpCookie>();
-        Set<HttpCookie> cookiesByPath = sshSession.getAttribute(COOKIES_KEY);
         
         for (HttpCookie cookie : cookiesByPath) {
             String cookieName = cookie.getName();
@@ -226,9 +776,145 @@ public class SftpProtocol implements ProtocolHandler {
         }
     }
     
+    /**
+     * Runs a task on the servlet dispatch executor. Requests submitted
+     * by the task are serviced on the task's thread.
+     * 
+     * @param task the task, typically one that streams a request body
+     *        or response.
+     * @throws java.util.concurrent.RejectedExecutionException if the
+     *         executor's queue is full.
+     */
+    private void dispatch(final Runnable task) {
+        executor.execute(new Runnable() {
+            public void run() {
+                DISPATCHED.set(Boolean.TRUE);
+                try {
+                    task.run();
+                } finally {
+                    DISPATCHED.remove();
+                }
+            }
+        });
+    }
+    
+    /**
+     * Runs a streaming transfer on the servlet dispatch executor, once
+     * the transfer scheduler admits it. Waits for up to
+     * transferAdmissionTimeout milliseconds while the session's user, or
+     * the connector, is at its concurrent transfer limit.
+     * 
+     * The transfer's ticket is released when the transfer completes, or
+     * when its session closes, whichever is first.
+     * 
+     * @param session the current SSH session.
+     * @param method the method of the transfer's request.
+     * @param path the path of the transfer's request.
+     * @param transfer the task that streams the request body or response.
+     * @throws InterruptedIOException if interrupted while waiting to be
+     *         admitted.
+     * @throws RejectedExecutionException if the transfer was not admitted
+     *         in time, or the executor's queue is full.
+     */
+    void dispatchTransfer(
+            final Session session, final String method, final String path,
+            final Runnable transfer) throws InterruptedIOException {
+        final long admitting = System.nanoTime();
+        final DispatchScheduler.Ticket ticket = admit(
+            TRANSFER, session, path, transferAdmissionTimeout);
+        final Set<DispatchScheduler.Ticket> sessionTickets =
+            session.getAttribute(TICKETS_KEY);
+        if (sessionTickets != null) {
+            synchronized (sessionTickets) {
+                sessionTickets.add(ticket);
+            }
+        }
+        final long admitted = System.nanoTime();
+        final ServletRequestTracer.Operation operation = currentOperation();
+        try {
+            dispatch(new Runnable() {
+                public void run() {
+                    final long started = System.nanoTime();
+                    final FlightRecorder.Event event =
+                        FlightRecorder.TRANSFER.begin();
+                    if (tracer != null) tracer.attach(operation);
+                    try {
+                        transfer.run();
+                    } finally {
+                        if (tracer != null) tracer.detach();
+                        release(ticket, sessionTickets);
+                        event.
+                            set(0, method).
+                            set(1, path).
+                            set(2, session.getUsername()).
+                            set(3, admitted - admitting).
+                            set(4, started - admitted).
+                            commit();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            release(ticket, sessionTickets);
+            throw e;
+        }
+    }
+    
+    private static void release(
+            DispatchScheduler.Ticket ticket,
+            Set<DispatchScheduler.Ticket> sessionTickets) {
+        ticket.release();
+        if (sessionTickets != null) {
+            synchronized (sessionTickets) {
+                sessionTickets.remove(ticket);
+            }
+        }
+    }
+    
+    /**
+     * Waits for an operation to be admitted by the scheduler.
+     * 
+     * @param timeout the longest time to wait, in milliseconds.
+     * @throws InterruptedIOException if interrupted while waiting.
+     * @throws RejectedExecutionException if not admitted in time.
+     */
+    private DispatchScheduler.Ticket admit(
+            DispatchScheduler.OperationClass operationClass, Session session,
+            String path, long timeout) throws InterruptedIOException {
+        final DispatchScheduler.Ticket ticket;
+        try {
+            ticket = scheduler.tryAdmit(
+                operationClass, session.getUsername(), timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                "Interrupted while waiting to be scheduled");
+        }
+        if (ticket == null) {
+            throw new RejectedExecutionException(
+                path + " not admitted within " + timeout + "ms, " +
+                session.getUsername() + " or the connector is at the " +
+                "concurrent " + operationClass.name().toLowerCase() +
+                " limit");
+        }
+        
+        return ticket;
+    }
+    
     /**
      * Submit a request to be serviced by Coyote.
      * 
+     * The request is serviced on the dispatch executor, the calling
+     * thread waits (for up to metadataAdmissionTimeout milliseconds) for
+     * it to be admitted as a metadata operation, and for it to complete.
+     * Requests that may work through a whole tree are admitted as
+     * transfers instead (see {@link #operationClass}).
+     * Requests made from a dispatched transfer are serviced in-line,
+     * since the transfer has already been admitted, as are requests made
+     * without a session (e.g., the authenticator's realm lookup, on an
+     * NIO thread that must never wait for admission).
+     * 
+     * @throws RejectedExecutionException if the request was not admitted
+     *         in time, or the executor's queue is full.
      * @param path request path.
      * @param method request method.
      * @param session the current SSH session.
@@ -238,15 +924,111 @@ public class SftpProtocol implements ProtocolHandler {
      * @return response objects (containing header information).
      */
     Response service(
+            final String path, final String method, final Session session,
+            final Map<String,String> headers,
+            final InputBuffer inputBuffer, final OutputBuffer outputBuffer) {
+        final ServletRequestTracer.Operation operation = currentOperation();
+        if (DISPATCHED.get() != null || session == null) {
+            return doService(
+                path, method, session, headers, inputBuffer, outputBuffer,
+                operation);
+        }
+        
+        final DispatchScheduler.OperationClass operationClass =
+            operationClass(method, headers);
+        final DispatchScheduler.Ticket ticket;
+        try {
+            ticket = admit(
+                operationClass, session, path,
+                operationClass == TRANSFER ?
+                    transferAdmissionTimeout : metadataAdmissionTimeout);
+        } catch (InterruptedIOException e) {
+            throw new RuntimeException(
+                "Interrupted while requesting " + path, e);
+        }
+        if (executor == null) {
+            try {
+                return doService(
+                    path, method, session, headers, inputBuffer, outputBuffer,
+                    operation);
+            } finally {
+                ticket.release();
+            }
+        }
+        
+        final FutureTask<Response> serviced = new FutureTask<Response>(
+            new Callable<Response>() {
+                public Response call() {
+                    try {
+                        return doService(
+                            path, method, session, headers,
+                            inputBuffer, outputBuffer, operation);
+                    } finally {
+                        ticket.release();
+                    }
+                }
+            }
+        );
+        try {
+            dispatch(serviced);
+        } catch (RuntimeException e) {
+            ticket.release();
+            throw e;
+        }
+        try {
+            return serviced.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(
+                "Interrupted while requesting " + path, e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new RuntimeException(
+                "An error occurred requesting " + path, cause);
+        }
+    }
+    
+    /**
+     * Classifies a request for the scheduler. MOVEs, COPYs, and DELETEs and
+     * PROPFINDs of Depth: infinity may work through an entire tree, and
+     * so are admitted as transfers, rather than holding one of the
+     * metadata operations' permits for as long.
+     */
+    static DispatchScheduler.OperationClass operationClass(
+            String method, Map<String,String> headers) {
+        if ("MOVE".equals(method) || "COPY".equals(method)) return TRANSFER;
+        if ("DELETE".equals(method) || "PROPFIND".equals(method)) {
+            final String depth = headers != null ? headers.get("Depth") : null;
+            if ("infinity".equalsIgnoreCase(depth)) return TRANSFER;
+        }
+        
+        return METADATA;
+    }
+    
+    private ServletRequestTracer.Operation currentOperation() {
+        return tracer != null ? tracer.currentOperation() : null;
+    }
+    
+    private Response doService(
             String path, String method, Session session,
             Map<String,String> headers,
-            InputBuffer inputBuffer, OutputBuffer outputBuffer) {
+            InputBuffer inputBuffer, OutputBuffer outputBuffer,
+            ServletRequestTracer.Operation operation) {
         final Request request = new Request();
         request.setInputBuffer(inputBuffer);
         
         final Response response = new Response();
         if (outputBuffer == null) outputBuffer = new VoidOutputFilter();
         response.setOutputBuffer(outputBuffer);
+        if (outputBuffer instanceof ActionHook) {
+            // e.g., to pass the servlet's flushes on
+            response.setHook((ActionHook)outputBuffer);
+        }
         
         final RequestInfo rp = request.getRequestProcessor();
         rp.setStage(org.apache.coyote.Constants.STAGE_PREPARE);
@@ -313,12 +1095,41 @@ public class SftpProtocol implements ProtocolHandler {
         response.setRequest(request);
         
         rp.setStage(org.apache.coyote.Constants.STAGE_SERVICE);
+        request.setStartTime(System.currentTimeMillis());
+        // Requests made without a session (e.g., the authenticator's
+        // realm lookup) are not the clients', and are not counted
+        if (session != null) rp.setGlobalProcessor(global);
+        if (tracer != null) tracer.requestStarted(operation);
+        final FlightRecorder.Event event = FlightRecorder.SERVICE.begin();
+        final long startNanos = System.nanoTime();
+        boolean failed = true;
         try {
             adapter.service(request, response);
+            failed = false;
         } catch (Exception e) {
             throw new RuntimeException(
                 "An error occurred requesting " + path,
                 e);
+        } finally {
+            if (session != null) updateCounters(request, response, failed);
+            event.
+                set(0, method).
+                set(1, normalizedPath).
+                set(2, failed ? 500 : response.getStatus()).
+                set(3, response.getContentWritten()).
+                set(4, (long)request.getBytesRead()).
+                commit();
+            if (tracer != null) {
+                tracer.requestCompleted(
+                    operation, method, normalizedPath,
+                    failed ? 500 : response.getStatus(),
+                    System.nanoTime() - startNanos);
+            }
+            if (transferLog != null && session != null) {
+                logTransfer(
+                    session, request, response, failed,
+                    System.nanoTime() - startNanos);
+            }
         }
         if (session != null) {
             for (String cookieHeader : extractCookieHeaders(response)) {
@@ -339,7 +1150,87 @@ public class SftpProtocol implements ProtocolHandler {
         return response;
     }
     
-    private String getName() {
+    /**
+     * Records a completed request in the global request processor,
+     * the equivalent of (the package private) RequestInfo.updateCounters().
+     */
+    private void updateCounters(
+            Request request, Response response, boolean failed) {
+        final RequestInfo rp = request.getRequestProcessor();
+        final long time = System.currentTimeMillis() - request.getStartTime();
+        rp.setBytesReceived(request.getBytesRead());
+        rp.setBytesSent(response.getContentWritten());
+        rp.setRequestCount(1);
+        rp.setErrorCount(failed || response.getStatus() >= 400 ? 1 : 0);
+        rp.setProcessingTime(time);
+        rp.setMaxTime(time);
+        rp.setMaxRequestUri(request.requestURI().toString());
+        // Folds the request's counters into the global totals
+        rp.setGlobalProcessor(null);
+        statistics.requestServiced(request.method().toString());
+    }
+    
+    /**
+     * Queues a completed download, upload or deletion to be written to
+     * the transfer log, other requests are not logged.
+     */
+    private void logTransfer(
+            Session session, Request request, Response response,
+            boolean failed, long nanos) {
+        final String method = request.method().toString();
+        final char direction;
+        final long bytes;
+        if ("GET".equals(method)) {
+            direction = 'o';
+            bytes = response.getContentWritten();
+        } else if ("PUT".equals(method)) {
+            direction = 'i';
+            bytes = request.getBytesRead();
+        } else if ("DELETE".equals(method)) {
+            direction = 'd';
+            bytes = 0;
+        } else {
+            return;
+        }
+        final int status = failed ? 500 : response.getStatus();
+        final long contentLength = response.getContentLengthLong();
+        final boolean complete = !failed && status < 400 &&
+            (direction != 'o' || contentLength < 0 || bytes >= contentLength);
+        final String username = session.getUsername();
+        transferLog.log(
+            TimeUnit.NANOSECONDS.toMillis(nanos),
+            request.remoteAddr().isNull() ?
+                null : request.remoteAddr().toString(),
+            bytes, request.requestURI().toString(), direction,
+            anonymousUsername.equals(username), username, complete, status);
+    }
+    
+    private void startTransferLog() {
+        if (!transferLogEnabled || transferLog != null) return;
+        
+        File directory = new File(transferLogDirectory);
+        if (!directory.isAbsolute()) {
+            directory = new File(
+                System.getProperty("catalina.base"), transferLogDirectory);
+        }
+        final TransferLog transferLog = new TransferLog(
+            directory,
+            transferLogPrefix != null ?
+                transferLogPrefix : getEndpointName() + "_xferlog.",
+            transferLogRotatable);
+        transferLog.start(getEndpointName() + "-xferlog");
+        this.transferLog = transferLog;
+    }
+    
+    private void stopTransferLog() throws InterruptedException {
+        final TransferLog transferLog = this.transferLog;
+        if (transferLog != null) {
+            this.transferLog = null;
+            transferLog.stop();
+        }
+    }
+    
+    private String getEndpointName() {
         final StringBuilder name = new StringBuilder("sftp");
         name.append('-');
         final String host = getHost();
@@ -348,7 +1239,162 @@ public class SftpProtocol implements ProtocolHandler {
             name.append('-');
         }
         name.append(getPort());
-        return ObjectName.quote(name.toString());
+        return name.toString();
+    }
+    
+    private String getName() {
+        return ObjectName.quote(getEndpointName());
+    }
+    
+    /**
+     * Creates the internal dispatch executor. Tomcat's own executor is
+     * used so that it has the same semantics as the HTTP connectors'
+     * pools, and is visible in JMX (as type=Executor).
+     */
+    private void createExecutor() throws LifecycleException {
+        internalExecutor = new StandardThreadExecutor();
+        if (adapter != null) internalExecutor.setDomain(adapter.getDomain());
+        internalExecutor.setName(getEndpointName() + "-exec");
+        internalExecutor.setNamePrefix(getEndpointName() + "-exec-");
+        internalExecutor.setMinSpareThreads(minSpareThreads);
+        internalExecutor.setMaxThreads(maxThreads);
+        internalExecutor.setMaxQueueSize(maxQueueSize);
+        internalExecutor.init();
+        internalExecutor.start();
+        executor = internalExecutor;
+    }
+    
+    /**
+     * Creates the scheduler, admitting no more operations at once than
+     * the executor has threads for. A transfer holds its thread for as
+     * long as it streams, so one queued behind other transfers could
+     * leave SSH sessions waiting on each other. If the executor is too
+     * small, the transfer and metadata operation limits are reduced in
+     * proportion.
+     */
+    private void createScheduler() {
+        int metadataOperations = maxMetadataOperations;
+        int transfers = maxTransfers;
+        final int admitted = metadataOperations + transfers;
+        if (!(executor instanceof ResizableExecutor)) {
+            log.warn(
+                "Unable to determine the number of threads of the executor " +
+                "of " + getName() + ", it should have at least " +
+                admitted + " threads (maxMetadataOperations + maxTransfers)");
+        } else {
+            final int threads = ((ResizableExecutor)executor).getMaxThreads();
+            if (threads < admitted) {
+                transfers = Math.max(
+                    1, (int)((long)threads * maxTransfers / admitted));
+                metadataOperations = Math.max(1, threads - transfers);
+                log.warn(
+                    "The executor of " + getName() + " has " + threads +
+                    " threads, fewer than maxMetadataOperations + " +
+                    "maxTransfers (" + admitted + "), admitting at most " +
+                    metadataOperations + " metadata operations and " +
+                    transfers + " transfers at once");
+            }
+        }
+        scheduler = new DispatchScheduler(
+            metadataOperations, maxMetadataOperationsPerUser,
+            transfers, maxTransfersPerUser);
+        statistics.schedulerCreated(scheduler);
+    }
+    
+    private void shutdownExecutor() throws LifecycleException {
+        if (internalExecutor != null) {
+            executor = null;
+            internalExecutor.stop();
+            internalExecutor.destroy();
+            internalExecutor = null;
+        }
+    }
+    
+    private void registerMBeans() {
+        final String domain = adapter != null ? adapter.getDomain() : null;
+        if (domain == null) return;
+        
+        // The name being registered, should registration fail
+        String name = null;
+        try {
+            name = domain + ":type=GlobalRequestProcessor,name=" + getName();
+            globalName = new ObjectName(name);
+            Registry.getRegistry(null, null).
+                registerComponent(global, globalName, null);
+            name = domain + ":type=SftpStatistics,name=" + getName();
+            statisticsName = new ObjectName(name);
+            Registry.getRegistry(null, null).
+                registerComponent(statistics, statisticsName, null);
+            for (LatencyHistogram latency : statistics.getLatencies()) {
+                name = domain + ":type=SftpLatency,name=" + getName() +
+                    ",operation=" + latency.getName();
+                final ObjectName latencyName = new ObjectName(name);
+                Registry.getRegistry(null, null).
+                    registerComponent(latency, latencyName, null);
+                latencyNames.add(latencyName);
+            }
+        } catch (Exception e) {
+            log.error(
+                sm.getString(
+                    "abstractProtocolHandler.mbeanRegistrationFailed",
+                    name, getName()),
+                e
+            );
+        }
+    }
+    
+    private void unregisterMBeans() {
+        if (globalName != null) {
+            Registry.getRegistry(null, null).unregisterComponent(globalName);
+            globalName = null;
+        }
+        if (statisticsName != null) {
+            Registry.getRegistry(null, null).
+                unregisterComponent(statisticsName);
+            statisticsName = null;
+        }
+        for (ObjectName latencyName : latencyNames) {
+            Registry.getRegistry(null, null).unregisterComponent(latencyName);
+        }
+        latencyNames.clear();
+    }
+    
+    /**
+     * Periodically logs the latency histograms, on the endpoint's
+     * scheduler (which only lives as long as the endpoint is started).
+     */
+    private void scheduleLatencyLog() {
+        if (latencyLogInterval <= 0) return;
+        
+        latencyLogger = endpoint.getScheduledExecutorService().
+            scheduleWithFixedDelay(
+                new Runnable() {
+                    private long lastCount = 0;
+                    
+                    public void run() {
+                        long count = 0;
+                        final StringBuilder summary = new StringBuilder(
+                            "SFTP latencies (ms) for " + getName());
+                        for (LatencyHistogram latency :
+                                statistics.getLatencies()) {
+                            count += latency.getCount();
+                            summary.append("; ").append(latency);
+                        }
+                        if (count != lastCount) {
+                            lastCount = count;
+                            log.info(summary);
+                        }
+                    }
+                },
+                latencyLogInterval, latencyLogInterval, TimeUnit.SECONDS
+            );
+    }
+    
+    private void cancelLatencyLog() {
+        if (latencyLogger != null) {
+            latencyLogger.cancel(false);
+            latencyLogger = null;
+        }
     }
     
     // @Override - ProtocolHandler
@@ -356,6 +1402,51 @@ public class SftpProtocol implements ProtocolHandler {
         if (log.isInfoEnabled()) {
             log.info(sm.getString("abstractProtocolHandler.init", getName()));
         }
+        registerMBeans();
+        uriDecoder = new UriDecoder(URIEncoding);
+        if (traceRequests) {
+            tracer = new ServletRequestTracer(
+                statistics, slowOperationThreshold);
+        }
+        final DefaultSocketSessionConfig socketConfig =
+            new DefaultSocketSessionConfig();
+        socketConfig.setTcpNoDelay(tcpNoDelay);
+        socketConfig.setReceiveBufferSize(rxBufSize);
+        socketConfig.setSendBufferSize(txBufSize);
+        endpoint.setSessionConfig(socketConfig);
+        List<NamedFactory<Cipher>> cipherFactories =
+            SftpProtocol.<Cipher>namedFactories(
+                "ciphers", ciphers, endpoint.getCipherFactories());
+        if (ciphers == null && "throughput".equals(algorithmPreset)) {
+            final List<NamedFactory<Cipher>> fastest =
+                new ArrayList<NamedFactory<Cipher>>();
+            for (NamedFactory<Cipher> factory : cipherFactories) {
+                if (factory.getName().startsWith(THROUGHPUT_CIPHER_PREFIX)) {
+                    fastest.add(factory);
+                }
+            }
+            cipherFactories = fastest;
+        }
+        endpoint.setCipherFactories(cipherFactories);
+        endpoint.setMacFactories(
+            SftpProtocol.<Mac>namedFactories(
+                "macs", macs, endpoint.getMacFactories()));
+        endpoint.setKeyExchangeFactories(
+            SftpProtocol.<KeyExchange>namedFactories(
+                "kexAlgorithms", kexAlgorithms,
+                endpoint.getKeyExchangeFactories()));
+        if (compression) {
+            final List<NamedFactory<Compression>> compressionFactories =
+                new ArrayList<NamedFactory<Compression>>();
+            compressionFactories.add(new CompressionNone.Factory());
+            compressionFactories.add(
+                new LeveledCompressionFactory(
+                    new CompressionDelayedZlib.Factory(), compressionLevel));
+            compressionFactories.add(
+                new LeveledCompressionFactory(
+                    new CompressionZlib.Factory(), compressionLevel));
+            endpoint.setCompressionFactories(compressionFactories);
+        }
         final String confDir = System.getProperty("catalina.base") + "/conf/";
         final String host = getHost();
         final String hostKeyFileBasePath =
@@ -371,11 +1462,57 @@ public class SftpProtocol implements ProtocolHandler {
                 new SimpleGeneratorHostKeyProvider(hostKeyFileBasePath + ".ser")
             );
         }
+        endpoint.setSessionFactory(new SessionFactory() {
+            @Override
+            protected AbstractSession doCreateSession(IoSession ioSession)
+                    throws Exception {
+                final AbstractSession session =
+                    super.doCreateSession(ioSession);
+                final String remoteAddress =
+                    String.valueOf(ioSession.getRemoteAddress());
+                statistics.sessionOpened();
+                FlightRecorder.SESSION_OPENED.begin().
+                    set(0, remoteAddress).
+                    commit();
+                session.setAttribute(OPENED_NANOS_KEY, System.nanoTime());
+                session.setAttribute(
+                    TICKETS_KEY, new HashSet<DispatchScheduler.Ticket>());
+                session.addListener(new SessionListener() {
+                    public void sessionCreated(Session session) {
+                        // no-op
+                    }
+                    
+                    public void sessionClosed(Session session) {
+                        // Transfers the session's thread never got to
+                        // close must not hold their permits forever
+                        final Set<DispatchScheduler.Ticket> tickets =
+                            session.getAttribute(TICKETS_KEY);
+                        synchronized (tickets) {
+                            for (DispatchScheduler.Ticket ticket : tickets) {
+                                ticket.release();
+                            }
+                            tickets.clear();
+                        }
+                        statistics.sessionClosed();
+                        FlightRecorder.SESSION_CLOSED.begin().
+                            set(0, remoteAddress).
+                            set(1, session.getUsername()).
+                            set(2, System.nanoTime() -
+                                session.getAttribute(OPENED_NANOS_KEY)).
+                            commit();
+                    }
+                });
+                return session;
+            }
+        });
         endpoint.setPasswordAuthenticator(new PasswordAuthenticator() {
             // @Override
             public boolean authenticate(
                     String username, String password, ServerSession session) {
+                final FlightRecorder.Event event =
+                    FlightRecorder.AUTHENTICATION.begin();
                 final boolean authenticated;
+                long realmNanos = 0;
                 
                 if (anonymousUsername.equals(username)) {
                     authenticated = true;
@@ -402,12 +1539,19 @@ public class SftpProtocol implements ProtocolHandler {
                         isNullRealm = realm instanceof JAASRealm &&
                             ((JAASRealm)realm).getUserClassNames() == null;
                     }
+                    final long realmStart = System.nanoTime();
                     authenticated = isNullRealm ||
                         realm.authenticate(username, password) != null;
+                    realmNanos = System.nanoTime() - realmStart;
                     if (authenticated) {
                         session.setAttribute(PASSWORD_KEY, password);
                     }
                 }
+                event.
+                    set(0, username).
+                    set(1, authenticated).
+                    set(2, realmNanos).
+                    commit();
                 
                 return authenticated;
             }
@@ -441,29 +1585,7 @@ public class SftpProtocol implements ProtocolHandler {
                 session.setAttribute(SESSIONS_KEY,
                     new HashSet<org.apache.catalina.Session>());
                 session.setAttribute(COOKIES_KEY,
-                    new TreeSet<HttpCookie>(
-                        // Compares by path length from longest to shortest
-                        new Comparator<HttpCookie>() {
-                            public int compare(HttpCookie l, HttpCookie r) {
-                                String lPath = l.getPath();
-                                if (lPath == null) lPath = "";
-                                String rPath = r.getPath();
-                                if (rPath == null) rPath = "";
-                                
-                                final int lLen = lPath.length();
-                                final int rLen = rPath.length();
-                                
-                                final int diff = rLen - lLen;
-                                
-                                if (diff != 0) {
-                                    return diff;
-                                } else {
-                                    return rPath.compareTo(lPath);
-                                }
-                            }
-                        }
-                    )
-                );
+                    new TreeSet<HttpCookie>(COOKIE_PATH_ORDER));
                 session.addListener(new SessionListener() {
                     public void sessionCreated(Session session) {
                         // no-op
@@ -487,13 +1609,28 @@ public class SftpProtocol implements ProtocolHandler {
                     }
                 });
                 return new SftpServletFileSystemView(
-                    SftpProtocol.this, session, URIEncoding);
+                    SftpProtocol.this, session, uriDecoder);
             }
         });
         endpoint.setSubsystemFactories(
             Collections.<NamedFactory<Command>>singletonList(
-            new SftpSubsystem.Factory()));
-        endpoint.setCommandFactory(new ServletScpCommand.Factory());
+            new ServletSftpSubsystem.Factory(sftpListener)));
+        // Keeps up to MAX_POOLED_BUFFER_BYTES of idle buffers
+        bufferPool = new BufferPool(
+            transferBufferSize,
+            Math.max(1, MAX_POOLED_BUFFER_BYTES / transferBufferSize));
+        // Each upload stored at once is a transfer, those beyond the
+        // user's limit would only wait to be admitted, and then fail
+        final int parallelUploads = Math.max(1, Math.min(
+            scpParallelUploads, Math.min(maxTransfersPerUser, maxTransfers)));
+        if (parallelUploads < scpParallelUploads) {
+            log.warn(
+                "scpParallelUploads of " + getName() + " (" +
+                scpParallelUploads + ") exceeds maxTransfersPerUser, " +
+                "storing at most " + parallelUploads + " files at once");
+        }
+        endpoint.setCommandFactory(
+            new ServletScpCommand.Factory(bufferPool, parallelUploads));
     }
     
     // @Override - ProtocolHandler
@@ -502,7 +1639,11 @@ public class SftpProtocol implements ProtocolHandler {
             log.info(sm.getString("abstractProtocolHandler.start", getName()));
         }
         try {
+            if (executor == null) createExecutor();
+            if (scheduler == null) createScheduler();
+            startTransferLog();
             endpoint.start();
+            scheduleLatencyLog();
         } catch (Exception e) {
             log.error(
                 sm.getString("abstractProtocolHandler.startError", getName()),
@@ -518,6 +1659,7 @@ public class SftpProtocol implements ProtocolHandler {
             log.info(sm.getString("abstractProtocolHandler.pause", getName()));
         }
         try {
+            cancelLatencyLog();
             endpoint.stop();
         } catch (Exception e) {
             log.error(
@@ -535,6 +1677,7 @@ public class SftpProtocol implements ProtocolHandler {
         }
         try {
             endpoint.start();
+            scheduleLatencyLog();
         } catch (Exception e) {
             log.error(
                 sm.getString("abstractProtocolHandler.resumeError", getName()),
@@ -550,7 +1693,10 @@ public class SftpProtocol implements ProtocolHandler {
             log.info(sm.getString("abstractProtocolHandler.stop", getName()));
         }
         try {
+            cancelLatencyLog();
             endpoint.stop();
+            shutdownExecutor();
+            stopTransferLog();
         } catch (Exception e) {
             log.error(
                 sm.getString("abstractProtocolHandler.stopError", getName()),
@@ -567,7 +1713,11 @@ public class SftpProtocol implements ProtocolHandler {
                 sm.getString("abstractProtocolHandler.destroy", getName()));
         }
         try {
+            cancelLatencyLog();
             endpoint.stop(true);
+            shutdownExecutor();
+            stopTransferLog();
+            unregisterMBeans();
         } catch (Exception e) {
             log.error(
                 sm.getString("abstractProtocolHandler.destroyError", getName()),
@@ -17,12 +17,17 @@
  */
 package my.edu.clhs.tomcat.coyote;
 
+import static javax.servlet.http.HttpServletResponse.SC_BAD_REQUEST;
 import static javax.servlet.http.HttpServletResponse.SC_CREATED;
+import static javax.servlet.http.HttpServletResponse.SC_FORBIDDEN;
 import static javax.servlet.http.HttpServletResponse.SC_FOUND;
 import static javax.servlet.http.HttpServletResponse.SC_MOVED_PERMANENTLY;
 import static javax.servlet.http.HttpServletResponse.SC_NOT_FOUND;
+import static javax.servlet.http.HttpServletResponse.SC_NOT_IMPLEMENTED;
 import static javax.servlet.http.HttpServletResponse.SC_NO_CONTENT;
 import static javax.servlet.http.HttpServletResponse.SC_OK;
+import static javax.servlet.http.HttpServletResponse.SC_PARTIAL_CONTENT;
+import static javax.servlet.http.HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE;
 import static javax.servlet.http.HttpServletResponse.SC_TEMPORARY_REDIRECT;
 
 import java.io.ByteArrayInputStream;
@@ -30,20 +35,36 @@ import java.io.File;
 import java.io.IOError;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 
+import my.edu.clhs.sshd.server.BlockDigest;
+import my.edu.clhs.sshd.server.ChunkPipe;
+import my.edu.clhs.sshd.server.DispatchingFileSystemView;
+import my.edu.clhs.sshd.server.UploadingFileSystemView;
+
+import org.apache.coyote.ActionCode;
+import org.apache.coyote.ActionHook;
 import org.apache.coyote.InputBuffer;
 import org.apache.coyote.OutputBuffer;
 import org.apache.coyote.Request;
@@ -51,29 +72,68 @@ import org.apache.coyote.Response;
 import org.apache.coyote.http11.Constants;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
+import org.apache.mina.util.Base64;
 import org.apache.sshd.common.Session;
-import org.apache.sshd.server.FileSystemView;
 import org.apache.sshd.server.SshFile;
 import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.http.MimeHeaders;
 import org.xml.sax.SAXException;
 
-class SftpServletFileSystemView implements FileSystemView {
+class SftpServletFileSystemView
+        implements UploadingFileSystemView, DispatchingFileSystemView {
     public static final String DEFAULT_FILE_OWNER = "nobody";
     public static final String HELP_FILENAME = "WHERE_ARE_MY_FILES.txt";
     
     private static final int SC_MULTI_STATUS = 207;
+    /**
+     * Number of transfer buffers handed to, or from, a servlet before the
+     * writer waits for the reader.
+     */
+    private static final int PIPE_CAPACITY = 4;
+    /**
+     * Number of directories remembered as not worth snapshotting.
+     */
+    private static final int MAX_UNSNAPSHOTTABLE = 1024;
     private static final Log log =
         LogFactory.getLog(SftpServletFileSystemView.class);
     
     private final SftpProtocol protocol;
     private final Session session;
-    private final String uriEncoding;
+    private final UriDecoder uriDecoder;
+    /**
+     * The tree last listed with a Depth: infinity PROPFIND, null if there
+     * is none (or it was made stale).
+     */
+    private volatile TreeSnapshot treeSnapshot;
+    /**
+     * Directories whose trees are too large to snapshot (or were empty),
+     * the least recently listed forgotten first.
+     */
+    private final Map<String,Boolean> unsnapshottable =
+        Collections.synchronizedMap(
+            new LinkedHashMap<String,Boolean>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+                
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String,Boolean> eldest) {
+                    return size() > MAX_UNSNAPSHOTTABLE;
+                }
+            }
+        );
+    /**
+     * The directory whose Depth: infinity PROPFIND response only described
+     * the directory itself, which it does when either the directory is
+     * empty, or the servlet ignores Depth: infinity (as if it were 0).
+     */
+    private volatile String rootOnlyTree;
+    private volatile boolean infiniteDepthRefused = false;
     
     SftpServletFileSystemView(
-            SftpProtocol sftpProtocol, Session session, String uriEncoding) {
+            SftpProtocol sftpProtocol, Session session, UriDecoder uriDecoder) {
         protocol = sftpProtocol;
         this.session = session;
-        this.uriEncoding = uriEncoding;
+        this.uriDecoder = uriDecoder;
     }
     
     private static final byte[] PROPFIND_ALLPROP_BODY;
@@ -93,6 +153,17 @@ class SftpServletFileSystemView implements FileSystemView {
     
     private InputStream propFindResponseXmlBody(String absolutePath, int depth)
             throws DavProcessingException {
+        return propFindResponseXmlBody(
+            absolutePath, Integer.toString(depth), Long.MAX_VALUE);
+    }
+    
+    /**
+     * @param depth the Depth header, e.g., "infinity".
+     * @param maxBytes the largest response accepted.
+     */
+    private InputStream propFindResponseXmlBody(
+            String absolutePath, String depth, final long maxBytes)
+            throws DavProcessingException {
         InputBuffer propFindBuf = new InputBuffer() {
             private boolean read = false;
             
@@ -116,9 +187,12 @@ class SftpServletFileSystemView implements FileSystemView {
             
             public int doWrite(ByteChunk chunk, Response response)
                     throws IOException {
-                webDavChunk.append(chunk);
                 int len = chunk.getLength();
                 bytesWritten += len;
+                // The rest of a response that is too large is discarded
+                if (bytesWritten <= maxBytes) {
+                    webDavChunk.append(chunk);
+                }
                 return len;
             }
             
@@ -127,7 +201,7 @@ class SftpServletFileSystemView implements FileSystemView {
             }
         };
         Map<String,String> propFindHeaders = new HashMap<String,String>();
-        propFindHeaders.put("Depth", Integer.toString(depth));
+        propFindHeaders.put("Depth", depth);
         Response response = protocol.service(
             absolutePath, "PROPFIND", session, propFindHeaders,
             propFindBuf, webDavBuf);
@@ -139,7 +213,10 @@ class SftpServletFileSystemView implements FileSystemView {
         // (including Spring MVC) to return 207.
         // SC_NOT_FOUND is technically also valid, but for our purposes
         // we'd like to process it as if it's an invalid request.
-        if (status == SC_MULTI_STATUS || status == SC_OK) {
+        if ((status == SC_MULTI_STATUS || status == SC_OK) &&
+                webDavBuf.getBytesWritten() > maxBytes) {
+            throw new DavResponseTooLargeException(absolutePath, maxBytes);
+        } else if (status == SC_MULTI_STATUS || status == SC_OK) {
             content = new ByteArrayInputStream(
                 webDavChunk.getBuffer(),
                 webDavChunk.getOffset(),
@@ -155,12 +232,16 @@ class SftpServletFileSystemView implements FileSystemView {
             final int redirectPort = redirectUri.getPort();
             if (redirectHost.equals(host == null ? "localhost" : host) &&
                     (redirectPort == -1 || redirectPort == port)) {
-                content = propFindResponseXmlBody(redirectUri.getPath(), depth);
+                content = propFindResponseXmlBody(
+                    redirectUri.getPath(), depth, maxBytes);
             } else {
                 throw new DavUnsupportedException(absolutePath, status);
             }
         } else if (status == SC_NOT_FOUND) {
             content = null;
+        } else if (status == SC_FORBIDDEN && "infinity".equals(depth) &&
+                webDavChunk.toString().contains("propfind-finite-depth")) {
+            throw new DavInfiniteDepthRefusedException(absolutePath, status);
         } else {
             throw new DavUnsupportedException(absolutePath, status);
         }
@@ -168,18 +249,27 @@ class SftpServletFileSystemView implements FileSystemView {
         return content;
     }
     
-    private List<? extends SshFile> xmlToFiles(
+    List<? extends SshFile> xmlToFiles(
             String absolutePath, InputStream multiStatusXml,
             String pathToDiscard) throws DavProcessingException {
         SAXParserFactory factory = SAXParserFactory.newInstance();
         factory.setNamespaceAware(true);
         factory.setValidating(true);
         WebDavSaxHandler handler =
-            new WebDavSaxHandler(this, pathToDiscard, uriEncoding);
+            new WebDavSaxHandler(this, pathToDiscard, uriDecoder);
         
+        final FlightRecorder.Event event =
+            FlightRecorder.PROPFIND_PARSE.begin();
         try {
+            // The response is always buffered in a ByteArrayInputStream
+            final long bytes = multiStatusXml.available();
             SAXParser parser = factory.newSAXParser();
             parser.parse(multiStatusXml, handler);
+            event.
+                set(0, absolutePath).
+                set(1, handler.getFiles().size()).
+                set(2, bytes).
+                commit();
         } catch (SAXException e) {
             throw new InvalidDavXmlException(absolutePath, e);
         } catch (ParserConfigurationException e) {
@@ -191,17 +281,151 @@ class SftpServletFileSystemView implements FileSystemView {
         return handler.getFiles();
     }
     
+    /**
+     * Services a request made in this session. Should the connector be
+     * too busy to take it, only the SFTP request that made it fails.
+     * 
+     * (Requests made where no IOException may be thrown, e.g., to get a
+     * file, let the RejectedExecutionException through, which the SFTP
+     * subsystem reports as a failure of the request.)
+     * 
+     * @throws IOException if the connector rejected the request.
+     */
+    private Response service(
+            String absolutePath, String method, Map<String,String> headers,
+            InputBuffer inputBuffer, OutputBuffer outputBuffer)
+            throws IOException {
+        try {
+            return protocol.service(
+                absolutePath, method, session, headers,
+                inputBuffer, outputBuffer);
+        } catch (RejectedExecutionException e) {
+            throw new IOException(
+                "Server busy, unable to request " + absolutePath, e);
+        }
+    }
+    
+    /**
+     * @return the absolute, normalized form of an SFTP path.
+     */
+    static String absolutePath(String path) {
+        // Do not use File#getCanonicalPath(), as it resolves symlinks
+        return URI.create(
+            new File(
+                "/", (path == null || path.equals(".")) ? "/" : path
+            ).getAbsolutePath()
+        ).normalize().getPath();
+    }
+    
+    /**
+     * @return the unexpired snapshot of the tree the path is in, null if
+     *         there is none.
+     */
+    private TreeSnapshot snapshotCovering(String absolutePath) {
+        final TreeSnapshot snapshot = treeSnapshot;
+        if (snapshot == null || !snapshot.covers(absolutePath)) {
+            return null;
+        } else if (snapshot.isExpired()) {
+            treeSnapshot = null;
+            return null;
+        }
+        
+        return snapshot;
+    }
+    
+    /**
+     * Snapshots the tree under a directory with a single Depth: infinity
+     * PROPFIND, when enabled, replacing the previous snapshot.
+     * 
+     * @return the snapshot, null if the tree is too large, the server
+     *         refuses Depth: infinity (in which case it is not asked
+     *         again), or the PROPFIND otherwise failed (in which case it
+     *         is retried on a later listing).
+     */
+    private TreeSnapshot snapshotTree(String absolutePath) {
+        if (!protocol.getTreeSnapshots() || infiniteDepthRefused ||
+                unsnapshottable.get(absolutePath) != null) {
+            return null;
+        }
+        try {
+            InputStream responseXml = propFindResponseXmlBody(
+                absolutePath, "infinity", protocol.getTreeSnapshotMaxBytes());
+            if (responseXml == null) return null;
+            
+            List<? extends SshFile> files =
+                xmlToFiles(absolutePath, responseXml, null);
+            if (files.size() == 1) {
+                // Told apart by the Depth: 1 listing that follows
+                rootOnlyTree = absolutePath;
+                unsnapshottable.put(absolutePath, Boolean.TRUE);
+                return null;
+            }
+            if (files.size() <= protocol.getTreeSnapshotMaxEntries()) {
+                final TreeSnapshot snapshot = new TreeSnapshot(
+                    absolutePath, files,
+                    TimeUnit.SECONDS.toNanos(protocol.getTreeSnapshotTtl()));
+                treeSnapshot = snapshot;
+                return snapshot;
+            }
+            log.debug(
+                "Tree of " + absolutePath + " has more than " +
+                protocol.getTreeSnapshotMaxEntries() + " entries, " +
+                "not snapshotting it.");
+            unsnapshottable.put(absolutePath, Boolean.TRUE);
+        } catch (DavResponseTooLargeException e) {
+            log.debug("Tree too large to snapshot.", e);
+            unsnapshottable.put(absolutePath, Boolean.TRUE);
+        } catch (DavInfiniteDepthRefusedException e) {
+            refuseInfiniteDepth(e);
+        } catch (DavUnsupportedException e) {
+            if (e.getStatusCode() == SC_BAD_REQUEST ||
+                    e.getStatusCode() == SC_NOT_IMPLEMENTED) {
+                refuseInfiniteDepth(e);
+            } else {
+                log.debug("Depth: infinity PROPFIND failed.", e);
+            }
+        } catch (DavProcessingException e) {
+            // e.g., a single invalid response, retried on a later listing
+            log.debug("Depth: infinity PROPFIND failed.", e);
+        }
+        
+        return null;
+    }
+    
+    private void refuseInfiniteDepth(DavProcessingException e) {
+        log.debug(
+            "Depth: infinity PROPFIND refused, falling back to " +
+            "Depth: 1 for the rest of the session.",
+            e
+        );
+        infiniteDepthRefused = true;
+    }
+    
+    /**
+     * Discards the tree snapshot if the resource at the path is in it.
+     */
+    private void invalidateSnapshot(String absolutePath) {
+        final TreeSnapshot snapshot = treeSnapshot;
+        if (snapshot != null && snapshot.overlaps(absolutePath)) {
+            treeSnapshot = null;
+        }
+    }
+    
     // @Override
     public SshFile getFile(String path) {
         SshFile sshFile = null;
-        // Do not use File#getCanonicalPath(), as it resolves symlinks
-        final String absolutePath =
-            URI.create(
-                new File(
-                    "/", (path == null || path.equals(".")) ? "/" : path
-                ).getAbsolutePath()
-            ).normalize().getPath();
+        final String absolutePath = absolutePath(path);
         
+        final TreeSnapshot snapshot = snapshotCovering(absolutePath);
+        if (snapshot != null) {
+            sshFile = snapshot.getFile(absolutePath);
+            // The snapshot lists every resource in the tree
+            return sshFile != null ? sshFile :
+                new WebDAVServletResourceSshFile.Builder(this).
+                    path(absolutePath).
+                    doesExist(false).
+                    build();
+        }
         try {
             // If DAV is supported use DAV response
             InputStream responseXml = propFindResponseXmlBody(absolutePath, 0);
@@ -270,15 +494,174 @@ class SftpServletFileSystemView implements FileSystemView {
     }
     
     public boolean deleteFile(String absolutePath) {
-        Response response = protocol.service(
-            absolutePath, "DELETE", session, null, null, null);
+        Response response;
+        try {
+            response = service(absolutePath, "DELETE", null, null, null);
+        } catch (IOException e) {
+            log.debug("Unable to delete " + absolutePath, e);
+            return false;
+        }
+        invalidateSnapshot(absolutePath);
         
-        return response.getStatus() == SC_NO_CONTENT;
+        return isDeleted(response.getStatus());
+    }
+    
+    /**
+     * @return whether a DELETE response status reports that the resource
+     *         (with all its members) was deleted.
+     */
+    private static boolean isDeleted(int status) {
+        return status == SC_NO_CONTENT || status == SC_OK;
+    }
+    
+    /**
+     * Deletes a resource, and all members of a collection, with a single
+     * WebDAV DELETE (Depth: infinity), instead of one request per member.
+     *
+     * @return the paths that could not be deleted, with their status
+     *         (e.g., "423 Locked"), as reported in a 207 (Multi-Status)
+     *         response; empty if the whole tree was deleted.
+     * @throws IOException if the DELETE failed altogether.
+     */
+    public Map<String,String> deleteTree(String absolutePath)
+            throws IOException {
+        final ByteChunk multiStatusChunk = new ByteChunk();
+        OutputBuffer multiStatusBuf = new OutputBuffer() {
+            private long bytesWritten = 0;
+            
+            public int doWrite(ByteChunk chunk, Response response)
+                    throws IOException {
+                // Only a multistatus body is of interest
+                if (response.getStatus() == SC_MULTI_STATUS) {
+                    multiStatusChunk.append(chunk);
+                }
+                int len = chunk.getLength();
+                bytesWritten += len;
+                return len;
+            }
+            
+            public long getBytesWritten() {
+                return bytesWritten;
+            }
+        };
+        Map<String,String> headers = new HashMap<String,String>();
+        headers.put("Depth", "infinity");
+        Response response = service(
+            absolutePath, "DELETE", headers, null, multiStatusBuf);
+        int status = response.getStatus();
+        invalidateSnapshot(absolutePath);
+        
+        if (isDeleted(status)) {
+            return Collections.emptyMap();
+        } else if (status != SC_MULTI_STATUS) {
+            throw new IOException(absolutePath + " (" + status + ")");
+        }
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        DavStatusSaxHandler handler = new DavStatusSaxHandler(uriDecoder);
+        try {
+            factory.newSAXParser().parse(
+                new ByteArrayInputStream(
+                    multiStatusChunk.getBuffer(),
+                    multiStatusChunk.getOffset(),
+                    multiStatusChunk.getLength()),
+                handler);
+        } catch (SAXException e) {
+            throw new IOException(
+                absolutePath + " (" + status + " with invalid DAV XML)", e);
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+        final Map<String,String> failures = handler.getStatuses();
+        // A 207 is only sent when something could not be deleted
+        if (failures.isEmpty()) {
+            throw new IOException(
+                absolutePath + " (" + status + " without failures)");
+        }
+        
+        return failures;
+    }
+    
+    /**
+     * @return the absolute URI of a path, as used in the Destination
+     *         header.
+     */
+    private String destinationUri(String absolutePath) {
+        final String host = protocol.getHost();
+        try {
+            return new URI(
+                "sftp", null, host == null ? "localhost" : host,
+                protocol.getPort(), absolutePath, null, null
+            ).toASCIIString();
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException(absolutePath, e);
+        }
+    }
+    
+    /**
+     * Makes a WebDAV MOVE or COPY request.
+     * 
+     * @param depth the Depth header, null for the default (infinity).
+     * @return whether the resource was moved or copied.
+     */
+    private boolean moveOrCopy(
+            String method, String absolutePath, String destinationPath,
+            String depth, boolean overwrite) {
+        Map<String,String> headers = new HashMap<String,String>();
+        headers.put("Destination", destinationUri(destinationPath));
+        headers.put("Overwrite", overwrite ? "T" : "F");
+        if (depth != null) headers.put("Depth", depth);
+        Response response;
+        try {
+            response = service(absolutePath, method, headers, null, null);
+        } catch (IOException e) {
+            log.debug("Unable to " + method + " " + absolutePath, e);
+            return false;
+        }
+        int status = response.getStatus();
+        invalidateSnapshot(absolutePath);
+        invalidateSnapshot(destinationPath);
+        
+        return status == SC_CREATED || status == SC_NO_CONTENT;
+    }
+    
+    /**
+     * Moves a resource with a WebDAV MOVE, entirely on the server.
+     * 
+     * @param overwrite whether an existing destination is replaced.
+     * @return whether the resource was moved.
+     */
+    public boolean moveFile(
+            String absolutePath, String destinationPath, boolean overwrite) {
+        return moveOrCopy(
+            "MOVE", absolutePath, destinationPath, null, overwrite);
+    }
+    
+    /**
+     * Copies a resource with a WebDAV COPY, entirely on the server.
+     * 
+     * @param recursive whether the members of a collection are copied
+     *        (Depth: infinity), or only the collection itself (Depth: 0).
+     * @param overwrite whether an existing destination is replaced.
+     * @return whether the resource was copied.
+     */
+    public boolean copyFile(
+            String absolutePath, String destinationPath,
+            boolean recursive, boolean overwrite) {
+        return moveOrCopy(
+            "COPY", absolutePath, destinationPath,
+            recursive ? "infinity" : "0", overwrite);
     }
     
     public boolean createDirectory(String absolutePath) {
-        Response response = protocol.service(
-            absolutePath, "MKCOL", session, null, null, null);
+        Response response;
+        try {
+            response = service(absolutePath, "MKCOL", null, null, null);
+        } catch (IOException e) {
+            log.debug("Unable to create " + absolutePath, e);
+            return false;
+        }
+        invalidateSnapshot(absolutePath);
         
         return response.getStatus() == SC_CREATED;
     }
@@ -286,6 +669,16 @@ class SftpServletFileSystemView implements FileSystemView {
     public List<SshFile> getDirectoryContents(String absolutePath) {
         List<SshFile> directoryContents;
         
+        TreeSnapshot snapshot = snapshotCovering(absolutePath);
+        directoryContents = snapshot == null ?
+            null : snapshot.getDirectoryContents(absolutePath);
+        if (directoryContents == null) {
+            // Including directories at the frontier of the last snapshot
+            snapshot = snapshotTree(absolutePath);
+            directoryContents = snapshot == null ?
+                null : snapshot.getDirectoryContents(absolutePath);
+        }
+        if (directoryContents != null) return directoryContents;
         try {
             InputStream responseXml = propFindResponseXmlBody(absolutePath, 1);
             if (responseXml != null) {
@@ -295,6 +688,14 @@ class SftpServletFileSystemView implements FileSystemView {
             } else {
                 directoryContents = Collections.emptyList();
             }
+            if (absolutePath.equals(rootOnlyTree)) {
+                rootOnlyTree = null;
+                if (!directoryContents.isEmpty()) {
+                    // Depth: infinity was answered as Depth: 0
+                    refuseInfiniteDepth(new DavInfiniteDepthRefusedException(
+                        absolutePath, SC_MULTI_STATUS));
+                }
+            }
         } catch (DavProcessingException e) {
             log.debug(
                 "PROPFIND failed while getting directory contents, " +
@@ -311,80 +712,496 @@ class SftpServletFileSystemView implements FileSystemView {
         return directoryContents;
     }
     
-    public OutputStream getFileOutputStream(final String absolutePath)
+    /**
+     * Runs a streaming request on the protocol's dispatch executor, once
+     * the transfer is admitted by its scheduler.
+     */
+    private void dispatch(
+            String method, String absolutePath, Runnable transfer)
+            throws IOException {
+        try {
+            protocol.dispatchTransfer(session, method, absolutePath, transfer);
+        } catch (RejectedExecutionException e) {
+            throw new IOException(
+                "Too many concurrent transfers, unable to request " +
+                absolutePath, e);
+        }
+    }
+    
+    public OutputStream getFileOutputStream(String absolutePath)
             throws IOException {
-        final PipedOutputStream os = new PipedOutputStream();
-        final PipedInputStream is = new PipedInputStream(os);
+        return getFileOutputStream(absolutePath, -1);
+    }
+    
+    // @Override - DispatchingFileSystemView
+    public void dispatch(String name, Runnable task) throws IOException {
+        dispatch("EXEC", name, task);
+    }
+    
+    /**
+     * The contents of a PUT request, read from a stream. Chunks handed
+     * over through a {@link ChunkPipe} are read by the servlet as they
+     * are, other streams are read through a pooled buffer.
+     * 
+     * If the protocol digests uploads, the SHA-256 digest of the contents
+     * is added in a Digest trailer (announced in the Trailer header), once
+     * all of the contents have been read by the servlet.
+     */
+    private class UploadInputBuffer implements InputBuffer {
+        private final InputStream contents;
+        private final long length;
+        private final MessageDigest digest;
+        private final Map<String,String> headers =
+            new HashMap<String,String>();
+        private byte[] buffer;
+        private long bytesRead = 0;
+        private boolean ended = false;
         
-        new Thread(new Runnable() {
-            public void run() {
+        /**
+         * @param length the length of the upload, -1 if unknown.
+         */
+        UploadInputBuffer(InputStream contents, long length)
+                throws IOException {
+            this.contents = contents;
+            this.length = length;
+            if (length >= 0) {
+                headers.put("Content-Length", Long.toString(length));
+            }
+            if (protocol.getDigestUploads()) {
                 try {
-                    InputBuffer inputBuffer = new InputBuffer() {
-                        public int doRead(ByteChunk chunk, Request request)
-                                throws IOException {
-                            byte[] buffer = new byte[8192];
-                            int len = is.read(buffer);
-                            chunk.setBytes(buffer, 0, len);
-                            
-                            return len;
-                        }
-                    };
-                    protocol.service(
-                        absolutePath, "PUT", session, null, inputBuffer, null);
-                } finally {
+                    digest = MessageDigest.getInstance("SHA-256");
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IOException(e);
+                }
+                headers.put("Trailer", "Digest");
+            } else {
+                digest = null;
+            }
+        }
+        
+        public int doRead(ByteChunk chunk, Request request)
+                throws IOException {
+            final byte[] bytes;
+            final int len;
+            if (contents instanceof ChunkPipe.Source) {
+                // The servlet reads the handed over buffer itself, it is
+                // recycled on the next read
+                final ChunkPipe.Source source = (ChunkPipe.Source)contents;
+                len = source.nextChunk();
+                bytes = source.chunk();
+            } else {
+                if (buffer == null) buffer = protocol.getBufferPool().take();
+                len = contents.read(buffer);
+                bytes = buffer;
+            }
+            if (len > 0) {
+                bytesRead += len;
+                if (digest != null) digest.update(bytes, 0, len);
+                chunk.setBytes(bytes, 0, len);
+            } else if (digest != null && !ended &&
+                    (length < 0 || bytesRead == length)) {
+                ended = true;
+                // Only complete uploads have a digest, as when a chunked
+                // request's trailer is read
+                request.getMimeHeaders().
+                    setValue("Digest").
+                    setString("SHA-256=" + new String(
+                        Base64.encodeBase64(digest.digest()), "US-ASCII"));
+            }
+            
+            return len;
+        }
+        
+        /**
+         * Closes the contents, which fails further writes to a
+         * {@link ChunkPipe}, should the servlet not have read all of it.
+         */
+        void close() {
+            try {
+                contents.close();
+            } catch (IOException e) {
+                log.warn("Unable to close upload contents", e);
+            }
+            protocol.getBufferPool().give(buffer);
+            buffer = null;
+        }
+    }
+    
+    /**
+     * Streams an upload to the servlet in a PUT request, with a
+     * Content-Length if the length of the upload is known, see
+     * {@link UploadInputBuffer}.
+     * 
+     * @param length the length of the upload, -1 if unknown.
+     */
+    public OutputStream getFileOutputStream(
+            final String absolutePath, long length) throws IOException {
+        final long opened = System.nanoTime();
+        final ChunkPipe pipe =
+            new ChunkPipe(protocol.getBufferPool(), PIPE_CAPACITY);
+        final UploadInputBuffer inputBuffer =
+            new UploadInputBuffer(pipe.getSource(), length);
+        invalidateSnapshot(absolutePath);
+        
+        try {
+            dispatch("PUT", absolutePath, new Runnable() {
+                public void run() {
                     try {
-                        os.close();
-                        is.close();
-                    } catch (IOException e) {
-                        throw new IOError(e);
+                        protocol.service(
+                            absolutePath, "PUT", session,
+                            inputBuffer.headers, inputBuffer, null);
+                        protocol.getStatistics().uploadLatency.record(
+                            System.nanoTime() - opened);
+                    } finally {
+                        inputBuffer.close();
+                        invalidateSnapshot(absolutePath);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            inputBuffer.close();
+            throw e;
+        }
+        
+        return pipe.getSink();
+    }
+    
+    // @Override - UploadingFileSystemView
+    public Future<?> upload(
+            final String path, InputStream contents, long length)
+            throws IOException {
+        final long opened = System.nanoTime();
+        final String absolutePath = absolutePath(path);
+        final UploadInputBuffer inputBuffer =
+            new UploadInputBuffer(contents, length);
+        invalidateSnapshot(absolutePath);
+        final FutureTask<Void> uploading = new FutureTask<Void>(
+            new Callable<Void>() {
+                public Void call() throws IOException {
+                    final int status;
+                    try {
+                        status = protocol.service(
+                            absolutePath, "PUT", session,
+                            inputBuffer.headers, inputBuffer, null).
+                            getStatus();
+                        protocol.getStatistics().uploadLatency.record(
+                            System.nanoTime() - opened);
+                    } finally {
+                        inputBuffer.close();
+                        invalidateSnapshot(absolutePath);
+                    }
+                    if (status < 200 || status > 299) {
+                        throw new IOException(
+                            path + ": upload failed (" + status + ")");
                     }
+                    return null;
                 }
             }
-        }).start();
+        );
+        try {
+            dispatch("PUT", absolutePath, uploading);
+        } catch (IOException e) {
+            inputBuffer.close();
+            throw e;
+        } catch (RuntimeException e) {
+            inputBuffer.close();
+            throw e;
+        }
         
-        return os;
+        return uploading;
     }
     
     public InputStream getFileInputStream(final String absolutePath)
             throws IOException {
-        PipedInputStream is = new PipedInputStream();
-        final OutputStream pos = new PipedOutputStream(is);
+        final long opened = System.nanoTime();
+        final ChunkPipe pipe =
+            new ChunkPipe(protocol.getBufferPool(), PIPE_CAPACITY);
+        final ChunkPipe.Sink sink = pipe.getSink();
         
-        new Thread(new Runnable() {
+        dispatch(Constants.GET, absolutePath, new Runnable() {
             public void run() {
-                OutputBuffer outputBuffer = new OutputBuffer() {
-                    private long bytesWritten = 0;
-                    
-                    public int doWrite(
-                            ByteChunk chunk, Response response)
-                            throws IOException {
-                        pos.write(chunk.getBuffer(),
-                            chunk.getStart(), chunk.getLength());
-                        int len = chunk.getLength();
-                        bytesWritten += len;
-                        return len;
-                    }
-                    
-                    public long getBytesWritten() {
-                        return bytesWritten;
-                    }
-                };
-                
                 try {
                     protocol.service(
                         absolutePath, Constants.GET, session,
-                        null, null, outputBuffer);
+                        null, null, new PipeOutputBuffer(sink, opened));
                 } finally {
                     try {
-                        pos.close();
+                        sink.close();
                     } catch (IOException e) {
-                        log.error("Unable to close PipedOutputStream", e);
-                        // do nothing
+                        // the reader has gone away
                     }
                 }
             }
-        }).start();
+        });
+        
+        return pipe.getSource();
+    }
+    
+    /**
+     * Writes a response body into a {@link ChunkPipe}, which only hands
+     * its buffers over once full, or when the servlet flushes the
+     * response (the protocol passes flushes on to output buffers that are
+     * also {@link ActionHook}s).
+     */
+    private class PipeOutputBuffer implements OutputBuffer, ActionHook {
+        private final ChunkPipe.Sink sink;
+        private final long opened;
+        private long bytesWritten = 0;
+        
+        PipeOutputBuffer(ChunkPipe.Sink sink, long opened) {
+            this.sink = sink;
+            this.opened = opened;
+        }
+        
+        public int doWrite(ByteChunk chunk, Response response)
+                throws IOException {
+            if (bytesWritten == 0 && chunk.getLength() > 0) {
+                protocol.getStatistics().downloadFirstByteLatency.
+                    record(System.nanoTime() - opened);
+            }
+            sink.write(chunk.getBuffer(), chunk.getStart(), chunk.getLength());
+            int len = chunk.getLength();
+            bytesWritten += len;
+            return len;
+        }
+        
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+        
+        public void action(ActionCode actionCode, Object param) {
+            if (actionCode == ActionCode.CLIENT_FLUSH) {
+                try {
+                    sink.flush();
+                } catch (IOException e) {
+                    // The reader has gone away, later writes fail too
+                    log.debug("Unable to flush download", e);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Writes the body of a successful response straight to a stream,
+     * remembering any error writing to it (which the servlet may not
+     * report).
+     */
+    private class StreamOutputBuffer implements OutputBuffer {
+        private final OutputStream out;
+        private final long opened;
+        private long bytesWritten = 0;
+        private IOException error;
+        
+        StreamOutputBuffer(OutputStream out, long opened) {
+            this.out = out;
+            this.opened = opened;
+        }
+        
+        public int doWrite(ByteChunk chunk, Response response)
+                throws IOException {
+            // Error pages are not written
+            if (response.getStatus() == SC_OK && error == null) {
+                if (bytesWritten == 0 && chunk.getLength() > 0) {
+                    protocol.getStatistics().downloadFirstByteLatency.
+                        record(System.nanoTime() - opened);
+                }
+                try {
+                    out.write(
+                        chunk.getBuffer(), chunk.getStart(),
+                        chunk.getLength());
+                } catch (IOException e) {
+                    error = e;
+                    throw e;
+                }
+                bytesWritten += chunk.getLength();
+            }
+            return chunk.getLength();
+        }
+        
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+    }
+    
+    /**
+     * Downloads a resource straight to a stream, rather than through a
+     * pipe, see {@link my.edu.clhs.sshd.server.StreamableSshFile}. The
+     * request is serviced on the dispatch executor, as a transfer.
+     * 
+     * @return the number of bytes written.
+     */
+    public long transferFile(final String absolutePath, OutputStream out)
+            throws IOException {
+        final StreamOutputBuffer outputBuffer =
+            new StreamOutputBuffer(out, System.nanoTime());
+        final FutureTask<Response> transferring = new FutureTask<Response>(
+            new Callable<Response>() {
+                public Response call() {
+                    return protocol.service(
+                        absolutePath, Constants.GET, session, null,
+                        null, outputBuffer);
+                }
+            }
+        );
+        dispatch(Constants.GET, absolutePath, transferring);
+        final int status;
+        try {
+            status = transferring.get().getStatus();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                "Interrupted while reading " + absolutePath);
+        } catch (ExecutionException e) {
+            throw new IOException(
+                "Unable to read " + absolutePath, e.getCause());
+        }
+        if (outputBuffer.error != null) throw outputBuffer.error;
+        if (status != SC_OK) {
+            throw new IOException(
+                "Unable to read " + absolutePath + " (" + status + ")");
+        }
+        
+        return outputBuffer.getBytesWritten();
+    }
+    
+    /**
+     * @return the name of a MessageDigest algorithm in the Digest header
+     *         (RFC 3230).
+     */
+    private static String digestHeaderAlgorithm(String algorithm) {
+        return "SHA-1".equals(algorithm) ? "SHA" : algorithm;
+    }
+    
+    /**
+     * Looks for the digest of a resource in the headers of its HEAD
+     * response: a Digest (RFC 3230) or Content-MD5 header, or, if the
+     * protocol's etagDigests is set, an ETag that is a hex encoded digest
+     * (as some stores use the MD5 of the contents as the ETag).
+     * 
+     * @return the digest, null if the servlet did not report it.
+     */
+    private byte[] reportedDigest(String absolutePath, String algorithm)
+            throws IOException {
+        final String headerAlgorithm = digestHeaderAlgorithm(algorithm);
+        Map<String,String> headers = new HashMap<String,String>();
+        headers.put("Want-Digest", headerAlgorithm);
+        Response response = service(
+            absolutePath, Constants.HEAD, headers, null, null);
+        if (response.getStatus() != SC_OK) return null;
+        MimeHeaders responseHeaders = response.getMimeHeaders();
+        
+        final String digestHeader = responseHeaders.getHeader("Digest");
+        if (digestHeader != null) {
+            for (String instance : digestHeader.split(",")) {
+                final int equals = instance.indexOf('=');
+                if (equals > 0 && instance.substring(0, equals).trim().
+                        equalsIgnoreCase(headerAlgorithm)) {
+                    return Base64.decodeBase64(
+                        instance.substring(equals + 1).trim().
+                        getBytes("US-ASCII"));
+                }
+            }
+        }
+        final String contentMd5 = responseHeaders.getHeader("Content-MD5");
+        if (contentMd5 != null && "MD5".equals(algorithm)) {
+            return Base64.decodeBase64(contentMd5.trim().getBytes("US-ASCII"));
+        }
+        if (!protocol.getEtagDigests()) return null;
+        final String etag = responseHeaders.getHeader("ETag");
+        final int digestLength =
+            new BlockDigest(algorithm, 0, 0).getDigestLength();
+        if (etag != null && etag.length() == 2 * digestLength + 2 &&
+                etag.matches("\"[0-9a-fA-F]*\"")) {
+            final byte[] digest = new byte[digestLength];
+            for (int i = 0; i < digestLength; i++) {
+                digest[i] = (byte)Integer.parseInt(
+                    etag.substring(1 + 2 * i, 3 + 2 * i), 16);
+            }
+            return digest;
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Digests a range of a resource, see
+     * {@link my.edu.clhs.sshd.server.DigestibleSshFile}. The digest of
+     * the whole resource is taken from its headers if the servlet
+     * reports it, otherwise the resource is streamed (with a ranged GET)
+     * through the digest on the dispatch executor, as a transfer.
+     */
+    public byte[] digestFile(
+            final String absolutePath, String algorithm, final long offset,
+            long length, int blockSize) throws IOException {
+        if (offset == 0 && length == 0 && blockSize == 0) {
+            final byte[] digest = reportedDigest(absolutePath, algorithm);
+            if (digest != null) return digest;
+        }
+        
+        final BlockDigest digest =
+            new BlockDigest(algorithm, length, blockSize);
+        final Map<String,String> headers = new HashMap<String,String>();
+        if (offset > 0 || length > 0) {
+            headers.put(
+                "Range",
+                "bytes=" + offset + "-" +
+                (length > 0 ? Long.toString(offset + length - 1) : ""));
+        }
+        final OutputBuffer outputBuffer = new OutputBuffer() {
+            private long bytesWritten = 0;
+            
+            public int doWrite(ByteChunk chunk, Response response)
+                    throws IOException {
+                final int status = response.getStatus();
+                int skip = 0;
+                if (status != SC_OK && status != SC_PARTIAL_CONTENT) {
+                    // e.g., an error page
+                    skip = chunk.getLength();
+                } else if (status == SC_OK && bytesWritten < offset) {
+                    // Servlets that ignore Range send the whole resource
+                    skip = (int)Math.min(
+                        offset - bytesWritten, chunk.getLength());
+                }
+                digest.update(
+                    chunk.getBuffer(), chunk.getStart() + skip,
+                    chunk.getLength() - skip);
+                int len = chunk.getLength();
+                bytesWritten += len;
+                return len;
+            }
+            
+            public long getBytesWritten() {
+                return bytesWritten;
+            }
+        };
+        final FutureTask<Response> digesting = new FutureTask<Response>(
+            new Callable<Response>() {
+                public Response call() {
+                    return protocol.service(
+                        absolutePath, Constants.GET, session, headers,
+                        null, outputBuffer);
+                }
+            }
+        );
+        dispatch(Constants.GET, absolutePath, digesting);
+        final int status;
+        try {
+            status = digesting.get().getStatus();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                "Interrupted while digesting " + absolutePath);
+        } catch (ExecutionException e) {
+            throw new IOException(
+                "Unable to digest " + absolutePath, e.getCause());
+        }
+        // 416 if the range is beyond the end of the resource
+        if (status != SC_OK && status != SC_PARTIAL_CONTENT &&
+                status != SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+            throw new IOException(
+                "Unable to digest " + absolutePath + " (" + status + ")");
+        }
         
-        return is;
+        return digest.finish();
     }
 }
\ No newline at end of file
@@ -0,0 +1,327 @@
+/*
+ * SftpStatistics.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.tomcat.coyote;
+
+import static my.edu.clhs.tomcat.coyote.DispatchScheduler.OperationClass.METADATA;
+import static my.edu.clhs.tomcat.coyote.DispatchScheduler.OperationClass.TRANSFER;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.coyote.RequestGroupInfo;
+import org.apache.sshd.server.sftp.SftpSubsystem;
+
+/**
+ * Per-connector statistics, registered in JMX (as type=SftpStatistics)
+ * alongside the connector's GlobalRequestProcessor.
+ *
+ * Request totals are those of the GlobalRequestProcessor, repeated here
+ * so that all SFTP statistics can be monitored from a single MBean.
+ *
+ * Latencies of SFTP requests, download time-to-first-byte and upload
+ * completion times are recorded in {@link LatencyHistogram}s, which are
+ * registered separately. When servlet request tracing is enabled, the
+ * number of servlet requests made for each type of SFTP operation (the
+ * fan-out) is also recorded.
+ *
+ * The admission statistics of metadata operations and transfers are
+ * those of the connector's {@link DispatchScheduler}, all zero until the
+ * connector is started.
+ *
+ * @author Jack Leow
+ */
+public class SftpStatistics {
+    private final RequestGroupInfo global;
+    private final AtomicInteger activeSessions = new AtomicInteger();
+    private final AtomicInteger openHandles = new AtomicInteger();
+    private final AtomicLong getCount = new AtomicLong();
+    private final AtomicLong putCount = new AtomicLong();
+    private final AtomicLong propfindCount = new AtomicLong();
+    private final AtomicLong headCount = new AtomicLong();
+    private final AtomicLong deleteCount = new AtomicLong();
+    private final AtomicLong mkcolCount = new AtomicLong();
+    private final AtomicLong moveCount = new AtomicLong();
+    private final AtomicLong copyCount = new AtomicLong();
+    private final AtomicLong otherCount = new AtomicLong();
+
+    final LatencyHistogram openLatency = new LatencyHistogram("open");
+    final LatencyHistogram readLatency = new LatencyHistogram("read");
+    final LatencyHistogram writeLatency = new LatencyHistogram("write");
+    final LatencyHistogram statLatency = new LatencyHistogram("stat");
+    final LatencyHistogram readdirLatency = new LatencyHistogram("readdir");
+    final LatencyHistogram removeLatency = new LatencyHistogram("remove");
+    final LatencyHistogram mkdirLatency = new LatencyHistogram("mkdir");
+    /** From opening a file for download to its first byte being ready. */
+    final LatencyHistogram downloadFirstByteLatency =
+        new LatencyHistogram("downloadFirstByte");
+    /** From opening a file for upload to the servlet's response. */
+    final LatencyHistogram uploadLatency = new LatencyHistogram("upload");
+    private final ConcurrentMap<String,AtomicLong[]> fanOuts =
+        new ConcurrentHashMap<String,AtomicLong[]>();
+    private final AtomicLong slowOperationCount = new AtomicLong();
+    private final List<LatencyHistogram> latencies =
+        Collections.unmodifiableList(Arrays.asList(
+            openLatency, readLatency, writeLatency, statLatency,
+            readdirLatency, removeLatency, mkdirLatency,
+            downloadFirstByteLatency, uploadLatency
+        ));
+    private volatile DispatchScheduler scheduler;
+
+    SftpStatistics(RequestGroupInfo global) {
+        this.global = global;
+    }
+
+    /** Reports the admission statistics of scheduler from now on. */
+    void schedulerCreated(DispatchScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    private DispatchScheduler.Lane lane(
+            DispatchScheduler.OperationClass operationClass) {
+        final DispatchScheduler scheduler = this.scheduler;
+        return scheduler != null ? scheduler.getLane(operationClass) : null;
+    }
+
+    void sessionOpened() {
+        activeSessions.incrementAndGet();
+    }
+
+    void sessionClosed() {
+        activeSessions.decrementAndGet();
+    }
+
+    void handleOpened() {
+        openHandles.incrementAndGet();
+    }
+
+    void handleClosed() {
+        openHandles.decrementAndGet();
+    }
+
+    void requestProcessed(int type, long nanos) {
+        final LatencyHistogram latency;
+        switch (type) {
+        case SftpSubsystem.SSH_FXP_OPEN:
+        case SftpSubsystem.SSH_FXP_OPENDIR:
+            latency = openLatency;
+            break;
+        case SftpSubsystem.SSH_FXP_READ:
+            latency = readLatency;
+            break;
+        case SftpSubsystem.SSH_FXP_WRITE:
+            latency = writeLatency;
+            break;
+        case SftpSubsystem.SSH_FXP_STAT:
+        case SftpSubsystem.SSH_FXP_LSTAT:
+        case SftpSubsystem.SSH_FXP_FSTAT:
+            latency = statLatency;
+            break;
+        case SftpSubsystem.SSH_FXP_READDIR:
+            latency = readdirLatency;
+            break;
+        case SftpSubsystem.SSH_FXP_REMOVE:
+        case SftpSubsystem.SSH_FXP_RMDIR:
+            latency = removeLatency;
+            break;
+        case SftpSubsystem.SSH_FXP_MKDIR:
+            latency = mkdirLatency;
+            break;
+        default:
+            latency = null;
+        }
+        if (latency != null) latency.record(nanos);
+    }
+
+    List<LatencyHistogram> getLatencies() { return latencies; }
+
+    /**
+     * Records a traced SFTP operation.
+     *
+     * @param operation the operation name.
+     * @param requestCount the number of servlet requests it made.
+     * @param slow whether it exceeded the slow operation threshold.
+     */
+    void operationTraced(String operation, int requestCount, boolean slow) {
+        AtomicLong[] fanOut = fanOuts.get(operation);
+        if (fanOut == null) {
+            final AtomicLong[] newFanOut = {
+                new AtomicLong(), new AtomicLong(), new AtomicLong()
+            };
+            fanOut = fanOuts.putIfAbsent(operation, newFanOut);
+            if (fanOut == null) fanOut = newFanOut;
+        }
+        fanOut[0].incrementAndGet();
+        fanOut[1].addAndGet(requestCount);
+        long max;
+        while (requestCount > (max = fanOut[2].get()) &&
+                !fanOut[2].compareAndSet(max, requestCount));
+        if (slow) slowOperationCount.incrementAndGet();
+    }
+
+    /**
+     * Servlet requests made per traced SFTP operation, e.g.,
+     * "open: n=10 mean=2.00 max=3; stat: n=20 mean=1.00 max=1".
+     */
+    public String getFanOut() {
+        final StringBuilder summary = new StringBuilder();
+        for (Map.Entry<String,AtomicLong[]> fanOut :
+                new TreeMap<String,AtomicLong[]>(fanOuts).entrySet()) {
+            final long operations = fanOut.getValue()[0].get();
+            if (summary.length() > 0) summary.append("; ");
+            summary.append(String.format(
+                "%s: n=%d mean=%.2f max=%d",
+                fanOut.getKey(), operations,
+                operations == 0 ? 0.0 :
+                    (double)fanOut.getValue()[1].get() / operations,
+                fanOut.getValue()[2].get()));
+        }
+        return summary.toString();
+    }
+
+    /** Traced SFTP operations that exceeded the slow operation threshold. */
+    public long getSlowOperationCount() { return slowOperationCount.get(); }
+
+    void requestServiced(String method) {
+        final AtomicLong count;
+        if ("GET".equals(method)) {
+            count = getCount;
+        } else if ("PUT".equals(method)) {
+            count = putCount;
+        } else if ("PROPFIND".equals(method)) {
+            count = propfindCount;
+        } else if ("HEAD".equals(method)) {
+            count = headCount;
+        } else if ("DELETE".equals(method)) {
+            count = deleteCount;
+        } else if ("MKCOL".equals(method)) {
+            count = mkcolCount;
+        } else if ("MOVE".equals(method)) {
+            count = moveCount;
+        } else if ("COPY".equals(method)) {
+            count = copyCount;
+        } else {
+            count = otherCount;
+        }
+        count.incrementAndGet();
+    }
+
+    public int getActiveSessions() { return activeSessions.get(); }
+
+    public int getOpenHandles() { return openHandles.get(); }
+
+    public int getRequestCount() { return global.getRequestCount(); }
+
+    public int getErrorCount() { return global.getErrorCount(); }
+
+    public long getBytesSent() { return global.getBytesSent(); }
+
+    public long getBytesReceived() { return global.getBytesReceived(); }
+
+    public long getMaxTime() { return global.getMaxTime(); }
+
+    public long getProcessingTime() { return global.getProcessingTime(); }
+
+    public long getGetCount() { return getCount.get(); }
+
+    public long getPutCount() { return putCount.get(); }
+
+    public long getPropfindCount() { return propfindCount.get(); }
+
+    public long getHeadCount() { return headCount.get(); }
+
+    public long getDeleteCount() { return deleteCount.get(); }
+
+    public long getMkcolCount() { return mkcolCount.get(); }
+
+    public long getMoveCount() { return moveCount.get(); }
+
+    public long getCopyCount() { return copyCount.get(); }
+
+    /**
+     * Requests made with other methods (e.g., the request made to look up
+     * the realm during authentication).
+     */
+    public long getOtherCount() { return otherCount.get(); }
+
+    /** Metadata operations currently admitted. */
+    public int getMetadataActiveCount() {
+        final DispatchScheduler.Lane lane = lane(METADATA);
+        return lane != null ? lane.getActiveCount() : 0;
+    }
+
+    /** Metadata operations currently waiting to be admitted. */
+    public int getMetadataQueueLength() {
+        final DispatchScheduler.Lane lane = lane(METADATA);
+        return lane != null ? lane.getQueuedCount() : 0;
+    }
+
+    /** Metadata operations admitted since the connector was started. */
+    public long getMetadataAdmittedCount() {
+        final DispatchScheduler.Lane lane = lane(METADATA);
+        return lane != null ? lane.getAdmittedCount() : 0;
+    }
+
+    /** Average wait of metadata operations for admission, in ms. */
+    public double getMetadataAverageQueueTime() {
+        final DispatchScheduler.Lane lane = lane(METADATA);
+        return lane != null ? lane.getAverageQueueTime() : 0.0;
+    }
+
+    /** Longest wait of a metadata operation for admission, in ms. */
+    public long getMetadataMaxQueueTime() {
+        final DispatchScheduler.Lane lane = lane(METADATA);
+        return lane != null ? lane.getMaxQueueTime() : 0;
+    }
+
+    /** Transfers currently admitted. */
+    public int getTransferActiveCount() {
+        final DispatchScheduler.Lane lane = lane(TRANSFER);
+        return lane != null ? lane.getActiveCount() : 0;
+    }
+
+    /** Transfers currently waiting to be admitted. */
+    public int getTransferQueueLength() {
+        final DispatchScheduler.Lane lane = lane(TRANSFER);
+        return lane != null ? lane.getQueuedCount() : 0;
+    }
+
+    /** Transfers admitted since the connector was started. */
+    public long getTransferAdmittedCount() {
+        final DispatchScheduler.Lane lane = lane(TRANSFER);
+        return lane != null ? lane.getAdmittedCount() : 0;
+    }
+
+    /** Average wait of transfers for admission, in milliseconds. */
+    public double getTransferAverageQueueTime() {
+        final DispatchScheduler.Lane lane = lane(TRANSFER);
+        return lane != null ? lane.getAverageQueueTime() : 0.0;
+    }
+
+    /** Longest wait of a transfer for admission, in milliseconds. */
+    public long getTransferMaxQueueTime() {
+        final DispatchScheduler.Lane lane = lane(TRANSFER);
+        return lane != null ? lane.getMaxQueueTime() : 0;
+    }
+}
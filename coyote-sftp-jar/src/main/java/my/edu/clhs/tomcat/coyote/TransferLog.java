@@ -0,0 +1,297 @@
+/*
+ * TransferLog.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.tomcat.coyote;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Log of completed transfers, in the format of the wu-ftpd xferlog (as
+ * also written by ProFTPD and vsftpd), so that existing tools can report
+ * on it. Each line is:
+ *
+ * <pre>
+ * current-time transfer-time remote-host bytes path b _ direction
+ *     access-mode username sftp 0 * completion-status status-code
+ * </pre>
+ *
+ * where the transfer time is in seconds, the direction is o (download),
+ * i (upload) or d (delete), the access mode is a (anonymous) or r (real
+ * user), the completion status is c (complete) or i (incomplete), and the
+ * status code is the servlet response's.
+ *
+ * Transfer threads only append entries to a lock-free queue, a single
+ * writer thread drains it in batches. Should the writer fall behind by
+ * more than the queue's capacity, entries are dropped (and the number
+ * dropped logged) rather than blocking transfers.
+ *
+ * @author Jack Leow
+ */
+class TransferLog {
+    private static final Log log = LogFactory.getLog(TransferLog.class);
+    private static final int MAX_QUEUED = 65536;
+    private static final int BATCH_SIZE = 512;
+    private static final long WRITE_INTERVAL_NANOS =
+        TimeUnit.MILLISECONDS.toNanos(200);
+
+    private static class Entry {
+        final long time;
+        final long millis;
+        final String remoteAddr;
+        final long bytes;
+        final String path;
+        final char direction;
+        final boolean anonymous;
+        final String username;
+        final boolean complete;
+        final int status;
+
+        Entry(long time, long millis, String remoteAddr, long bytes,
+                String path, char direction, boolean anonymous,
+                String username, boolean complete, int status) {
+            this.time = time;
+            this.millis = millis;
+            this.remoteAddr = remoteAddr;
+            this.bytes = bytes;
+            this.path = path;
+            this.direction = direction;
+            this.anonymous = anonymous;
+            this.username = username;
+            this.complete = complete;
+            this.status = status;
+        }
+    }
+
+    private final File directory;
+    private final String prefix;
+    private final boolean rotatable;
+    private final ConcurrentLinkedQueue<Entry> queue =
+        new ConcurrentLinkedQueue<Entry>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean running;
+    private Thread writerThread;
+
+    // Only used by the writer thread
+    private final SimpleDateFormat timeFormat =
+        new SimpleDateFormat("EEE MMM dd HH:mm:ss yyyy", Locale.US);
+    private final SimpleDateFormat fileDateFormat =
+        new SimpleDateFormat("yyyy-MM-dd");
+    private final StringBuilder line = new StringBuilder(256);
+    private Writer writer;
+    private long nextRotation = Long.MAX_VALUE;
+    private long droppedReported = 0;
+    private boolean failing = false;
+
+    /**
+     * @param directory the directory the log is written to.
+     * @param prefix the log file name, or its prefix (before the date) if
+     *        rotatable.
+     * @param rotatable whether a new file is started every day.
+     */
+    TransferLog(File directory, String prefix, boolean rotatable) {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.rotatable = rotatable;
+    }
+
+    /**
+     * Starts the writer thread.
+     *
+     * @param name the thread's name.
+     */
+    synchronized void start(String name) {
+        if (running) return;
+        running = true;
+        writerThread = new Thread(name) {
+            @Override
+            public void run() {
+                try {
+                    while (running) {
+                        LockSupport.parkNanos(WRITE_INTERVAL_NANOS);
+                        drain();
+                    }
+                    drain();
+                } finally {
+                    close();
+                }
+            }
+        };
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Stops the writer thread, after it has written the queued entries.
+     */
+    synchronized void stop() throws InterruptedException {
+        if (!running) return;
+        running = false;
+        LockSupport.unpark(writerThread);
+        writerThread.join();
+        writerThread = null;
+    }
+
+    /**
+     * Queues a transfer to be logged, never blocks.
+     *
+     * @param millis the duration of the transfer, in milliseconds.
+     * @param remoteAddr the client's address, null if unknown.
+     * @param bytes the number of bytes transferred.
+     * @param path the path transferred.
+     * @param direction o (download), i (upload) or d (delete).
+     * @param anonymous whether the user logged in anonymously.
+     * @param username the user.
+     * @param complete whether all of the file was transferred.
+     * @param status the servlet response status.
+     */
+    void log(
+            long millis, String remoteAddr, long bytes, String path,
+            char direction, boolean anonymous, String username,
+            boolean complete, int status) {
+        if (queued.incrementAndGet() > MAX_QUEUED) {
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        queue.offer(new Entry(
+            System.currentTimeMillis(), millis, remoteAddr, bytes, path,
+            direction, anonymous, username, complete, status));
+    }
+
+    private void drain() {
+        for (int written = 0; ; ) {
+            final Entry entry = queue.poll();
+            if (entry == null || written == BATCH_SIZE) {
+                flush();
+                if (entry == null) break;
+                written = 0;
+            }
+            queued.decrementAndGet();
+            write(entry);
+            ++written;
+        }
+        final long droppedNow = dropped.get();
+        if (droppedNow != droppedReported) {
+            log.warn(
+                (droppedNow - droppedReported) + " transfer log entries " +
+                "dropped, the transfer log is not keeping up");
+            droppedReported = droppedNow;
+        }
+    }
+
+    private void write(Entry entry) {
+        try {
+            if (writer == null || entry.time >= nextRotation) {
+                open(entry.time);
+            }
+            line.setLength(0);
+            line.append(timeFormat.format(new Date(entry.time))).
+                append(' ').append((entry.millis + 500) / 1000).
+                append(' ').
+                append(entry.remoteAddr != null ? entry.remoteAddr : "-").
+                append(' ').append(entry.bytes).
+                append(' ');
+            // Fields are whitespace separated, as with wu-ftpd, spaces in
+            // paths are replaced with underscores
+            for (int i = 0; i < entry.path.length(); i++) {
+                final char c = entry.path.charAt(i);
+                line.append(Character.isWhitespace(c) ? '_' : c);
+            }
+            line.append(" b _ ").append(entry.direction).
+                append(' ').append(entry.anonymous ? 'a' : 'r').
+                append(' ').append(entry.username).
+                append(" sftp 0 * ").append(entry.complete ? 'c' : 'i').
+                append(' ').append(entry.status).
+                append('\n');
+            writer.append(line);
+            failing = false;
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void flush() {
+        if (writer == null) return;
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(IOException e) {
+        // Only logs the first of a run of failures, e.g., a full disk
+        if (!failing) {
+            log.error("Unable to write to transfer log", e);
+            failing = true;
+        }
+    }
+
+    private void open(long time) throws IOException {
+        close();
+        final String name;
+        if (rotatable) {
+            final Calendar midnight = Calendar.getInstance();
+            midnight.setTimeInMillis(time);
+            name = prefix + fileDateFormat.format(midnight.getTime());
+            midnight.set(Calendar.HOUR_OF_DAY, 0);
+            midnight.set(Calendar.MINUTE, 0);
+            midnight.set(Calendar.SECOND, 0);
+            midnight.set(Calendar.MILLISECOND, 0);
+            midnight.add(Calendar.DAY_OF_MONTH, 1);
+            nextRotation = midnight.getTimeInMillis();
+        } else {
+            name = prefix;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        writer = new BufferedWriter(
+            new OutputStreamWriter(
+                new FileOutputStream(new File(directory, name), true),
+                "UTF-8"),
+            32768);
+    }
+
+    private void close() {
+        if (writer == null) return;
+        try {
+            writer.close();
+        } catch (IOException e) {
+            fail(e);
+        }
+        writer = null;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * TreeSnapshot.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.tomcat.coyote;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.sshd.server.SshFile;
+
+/**
+ * In-memory copy of a tree of resources, as listed by a single
+ * Depth: infinity PROPFIND, from which the stat and readdir requests of
+ * tree walkers (e.g., lftp mirror, rsync over sshfs) are answered
+ * without a request per directory.
+ *
+ * Servers may list fewer levels than requested (e.g., Tomcat's
+ * WebdavServlet stops at its maxDepth, 3 by default), so the contents of
+ * the directories at the deepest level listed are not known. They are
+ * the snapshot's frontier, which it does not cover.
+ *
+ * @author Jack Leow
+ */
+class TreeSnapshot {
+    private final String root;
+    private final long expiresNanos;
+    /**
+     * In the order listed, which directory contents are also in.
+     */
+    private final Map<String,SshFile> files =
+        new LinkedHashMap<String,SshFile>();
+    private final Map<String,List<SshFile>> directoryContents =
+        new HashMap<String,List<SshFile>>();
+    /**
+     * Directories whose contents were not listed.
+     */
+    private final List<String> frontier = new ArrayList<String>();
+
+    /**
+     * @param root the absolute path of the PROPFIND request.
+     * @param listed the resources listed in its response.
+     * @param ttlNanos how long the snapshot may be used for.
+     */
+    TreeSnapshot(String root, List<? extends SshFile> listed, long ttlNanos) {
+        this.root = root;
+        expiresNanos = System.nanoTime() + ttlNanos;
+        int maxDepth = 0;
+        for (SshFile file : listed) {
+            final String path = file.getAbsolutePath();
+            if (!contains(root, path) || files.containsKey(path)) continue;
+            files.put(path, file);
+            maxDepth = Math.max(maxDepth, depth(path));
+        }
+        for (SshFile file : files.values()) {
+            final String path = file.getAbsolutePath();
+            if (file.isDirectory()) {
+                if (depth(path) == maxDepth) {
+                    frontier.add(path);
+                } else if (!directoryContents.containsKey(path)) {
+                    directoryContents.put(path, new ArrayList<SshFile>());
+                }
+            }
+            if (!path.equals(root)) {
+                final String parent = parent(path);
+                List<SshFile> contents = directoryContents.get(parent);
+                if (contents == null) {
+                    contents = new ArrayList<SshFile>();
+                    directoryContents.put(parent, contents);
+                }
+                contents.add(file);
+            }
+        }
+    }
+
+    /**
+     * @return whether descendant is ancestor, or below it.
+     */
+    private static boolean contains(String ancestor, String descendant) {
+        return descendant.equals(ancestor) || descendant.startsWith(
+            ancestor.endsWith("/") ? ancestor : ancestor + "/");
+    }
+
+    private static String parent(String path) {
+        final int slash = path.lastIndexOf('/');
+        return slash == 0 ? "/" : path.substring(0, slash);
+    }
+
+    /**
+     * @return the number of levels a path is below the root.
+     */
+    private int depth(String path) {
+        int depth = 0;
+        for (int i = root.length(); i < path.length(); i++) {
+            if (path.charAt(i) == '/') ++depth;
+        }
+        // "/" is followed by a name, but is not itself a level
+        return root.equals("/") && path.length() > 1 ? depth + 1 : depth;
+    }
+
+    int size() {
+        return files.size();
+    }
+
+    boolean isExpired() {
+        return System.nanoTime() - expiresNanos > 0;
+    }
+
+    /**
+     * @return whether the snapshot knows of every resource at the path,
+     *         that is, whether it is in the tree, outside the frontier.
+     */
+    boolean covers(String absolutePath) {
+        if (!contains(root, absolutePath)) return false;
+        for (String unlisted : frontier) {
+            if (!absolutePath.equals(unlisted) &&
+                    contains(unlisted, absolutePath)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the resource at the path (or one of its ancestors
+     *         or descendants) is in the snapshot, i.e., whether changing
+     *         it makes the snapshot stale.
+     */
+    boolean overlaps(String absolutePath) {
+        return contains(root, absolutePath) || contains(absolutePath, root);
+    }
+
+    /**
+     * @return the file, null if it does not exist. Only valid for paths
+     *         the snapshot {@link #covers(String) covers}.
+     */
+    SshFile getFile(String absolutePath) {
+        return files.get(absolutePath);
+    }
+
+    /**
+     * @return the contents of the directory, null if it is not a
+     *         directory whose contents were listed.
+     */
+    List<SshFile> getDirectoryContents(String absolutePath) {
+        final List<SshFile> contents = directoryContents.get(absolutePath);
+        return contents == null ? null : Collections.unmodifiableList(contents);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * UriDecoder.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.tomcat.coyote;
+
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Percent-decoder for URI paths (such as DAV:href values).
+ *
+ * Unlike {@link java.net.URLDecoder}, "+" is not treated as a space, the
+ * charset is resolved once (instead of on every call), and the input is
+ * read directly from a character array, such as the ones delivered by a
+ * SAX parser.
+ *
+ * @author Jack Leow
+ */
+final class UriDecoder {
+    private static final String FALLBACK_URI_ENCODING = "iso-8859-1";
+    private static final Log log = LogFactory.getLog(UriDecoder.class);
+
+    private final Charset charset;
+
+    UriDecoder(String uriEncoding) {
+        Charset charset;
+        try {
+            charset = Charset.forName(uriEncoding);
+        } catch (IllegalCharsetNameException e) {
+            charset = fallbackCharset(uriEncoding);
+        } catch (UnsupportedCharsetException e) {
+            charset = fallbackCharset(uriEncoding);
+        }
+        this.charset = charset;
+    }
+
+    private static Charset fallbackCharset(String uriEncoding) {
+        log.warn(
+            "\"URIEncoding\" (" + uriEncoding +
+            ") not supported. Falling back to " + FALLBACK_URI_ENCODING
+        );
+        return Charset.forName(FALLBACK_URI_ENCODING);
+    }
+
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+        return -1;
+    }
+
+    /**
+     * Decodes the percent-encoded characters in the given range.
+     *
+     * @param ch the characters to decode.
+     * @param offset the start of the range.
+     * @param length the length of the range.
+     * @return the decoded string.
+     * @throws IllegalArgumentException if an escape sequence is malformed.
+     */
+    String decode(char[] ch, int offset, int length) {
+        final int end = offset + length;
+        int i = offset;
+        while (i < end && ch[i] != '%') i++;
+        if (i == end) {
+            // Nothing to decode
+            return new String(ch, offset, length);
+        }
+
+        final StringBuilder decoded = new StringBuilder(length);
+        decoded.append(ch, offset, i - offset);
+        byte[] bytes = null;
+        while (i < end) {
+            if (ch[i] != '%') {
+                decoded.append(ch[i++]);
+                continue;
+            }
+            // Consecutive escapes are decoded together, as they may
+            // represent a single multi-byte character.
+            if (bytes == null) bytes = new byte[(end - i) / 3];
+            int byteCount = 0;
+            while (i < end && ch[i] == '%') {
+                if (i + 2 >= end) {
+                    throw new IllegalArgumentException(
+                        "Incomplete trailing escape (%) pattern");
+                }
+                final int hi = hexValue(ch[i + 1]);
+                final int lo = hexValue(ch[i + 2]);
+                if (hi < 0 || lo < 0) {
+                    throw new IllegalArgumentException(
+                        "Illegal hex characters in escape (%) pattern");
+                }
+                bytes[byteCount++] = (byte)((hi << 4) | lo);
+                i += 3;
+            }
+            decoded.append(new String(bytes, 0, byteCount, charset));
+        }
+
+        return decoded.toString();
+    }
+}
@@ -18,15 +18,10 @@
 package my.edu.clhs.tomcat.coyote;
 
 import java.io.File;
-import java.io.IOError;
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
-import org.apache.juli.logging.Log;
-import org.apache.juli.logging.LogFactory;
 import org.xml.sax.Attributes;
 import org.xml.sax.Locator;
 import org.xml.sax.SAXException;
@@ -41,24 +36,41 @@ import org.xml.sax.helpers.DefaultHandler;
  */
 class WebDavSaxHandler extends DefaultHandler {
     private static final String NAMESPACE_URI = "DAV:";
-    private static final String FALLBACK_URI_ENCODING = "iso-8859-1";
-    private static final Log log = LogFactory.getLog(WebDavSaxHandler.class);
     
     private final SftpServletFileSystemView fileSystemView;
     private final String pathToDiscard;
-    private final String uriEncoding;
+    private final UriDecoder uriDecoder;
     
     public WebDavSaxHandler(
             SftpServletFileSystemView fileSystemView, String pathToDiscard,
-            String uriEncoding) {
+            UriDecoder uriDecoder) {
         this.fileSystemView = fileSystemView;
         this.pathToDiscard = pathToDiscard;
-        this.uriEncoding = uriEncoding;
+        this.uriDecoder = uriDecoder;
     }
     
     private List<WebDAVServletResourceSshFile> files;
     private WebDAVServletResourceSshFile.Builder fileBuilder;
-    private StringBuilder charBuffer;
+    private final StringBuilder charBuffer = new StringBuilder();
+    /**
+     * Raw (still percent-encoded) DAV:href characters, reused across
+     * responses. SAX may deliver an href in more than one chunk, so the
+     * chunks are gathered here before decoding.
+     */
+    private char[] hrefChars = new char[256];
+    private int hrefLength;
+    
+    private void appendHref(char[] ch, int start, int length) {
+        final int required = hrefLength + length;
+        if (required > hrefChars.length) {
+            final char[] grown =
+                new char[Math.max(required, hrefChars.length * 2)];
+            System.arraycopy(hrefChars, 0, grown, 0, hrefLength);
+            hrefChars = grown;
+        }
+        System.arraycopy(ch, start, hrefChars, hrefLength, length);
+        hrefLength = required;
+    }
     
     private boolean shouldDiscard(String path) {
         return pathToDiscard != null &&
@@ -118,7 +130,7 @@ class WebDavSaxHandler extends DefaultHandler {
                     String qName, Attributes attributes) {
                 if (NAMESPACE_URI.equals(uri)) {
                     if ("href".equals(localName)) {
-                        context.charBuffer = new StringBuilder();
+                        context.hrefLength = 0;
                         return HREF;
                     } else if ("propstat".equals(localName)) {
                         return PROPSTAT;
@@ -141,32 +153,14 @@ class WebDavSaxHandler extends DefaultHandler {
             }
         },
         HREF {
-            private final String PLUS_URLENCODED = "%2B";
             @Override
             State endElement(
                     WebDavSaxHandler context, String uri, String localName,
                     String qName) {
                 if (NAMESPACE_URI.equals(uri) &&
                         "href".equals(localName)) {
-                    String href = context.charBuffer.toString().
-                        replace("+", PLUS_URLENCODED);
-                    try {
-                        href = URLDecoder.decode(href, context.uriEncoding);
-                    } catch (UnsupportedEncodingException e) {
-                        log.warn(
-                            "\"URIEncoding\" (" + context.uriEncoding +
-                            ") not supported. Falling back to " +
-                            FALLBACK_URI_ENCODING
-                        );
-                        try {
-                            href = URLDecoder.decode(
-                                href, FALLBACK_URI_ENCODING
-                            );
-                        } catch (UnsupportedEncodingException e1) {
-                            // This should never happen
-                            throw new IOError(e1);
-                        }
-                    }
+                    final String href = context.uriDecoder.decode(
+                        context.hrefChars, 0, context.hrefLength);
                     if (context.shouldDiscard(href)) {
                         return DISCARD;
                     }
@@ -180,7 +174,7 @@ class WebDavSaxHandler extends DefaultHandler {
             State characters(
                     WebDavSaxHandler context, char[] ch, int start,
                     int length) {
-                context.charBuffer.append(ch, start, length);
+                context.appendHref(ch, start, length);
                 return this;
             }
         },
@@ -257,13 +251,13 @@ class WebDavSaxHandler extends DefaultHandler {
                     String qName, Attributes attributes) {
                 if (NAMESPACE_URI.equals(uri)) {
                     if ("getcontentlength".equals(localName)) {
-                        context.charBuffer = new StringBuilder();
+                        context.charBuffer.setLength(0);
                         return GETCONTENTLENGTH;
                     } else if ("getlastmodified".equals(localName)) {
-                        context.charBuffer = new StringBuilder();
+                        context.charBuffer.setLength(0);
                         return GETLASTMODIFIED;
                     } else if ("resourcetype".equals(localName)) {
-                        context.charBuffer = new StringBuilder();
+                        context.charBuffer.setLength(0);
                         return RESOURCETYPE;
                     } else if ("prop".equals(localName)) {
                         // We should not see the start of another prop
@@ -398,15 +392,17 @@ class WebDavSaxHandler extends DefaultHandler {
         
         State characters(
                 WebDavSaxHandler context, char[] ch, int start, int length) {
-            if ("".equals(new String(ch, start, length).trim())) {
-                return this;
-            } else {
-                throw new IllegalStateException(
-                    String.format(
-                        "State (%s) does not expect characters", this
-                    )
-                );
+            for (int i = start; i < start + length; i++) {
+                // Same definition of whitespace as String#trim()
+                if (ch[i] > ' ') {
+                    throw new IllegalStateException(
+                        String.format(
+                            "State (%s) does not expect characters", this
+                        )
+                    );
+                }
             }
+            return this;
         }
     }
     
@@ -0,0 +1,115 @@
+/*
+ * BlockDigestTest.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.sshd.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * @author Jack Leow
+ */
+public class BlockDigestTest {
+    private static final byte[] DATA = new byte[1000];
+    static {
+        for (int i = 0; i < DATA.length; ++i) DATA[i] = (byte)(i * 31);
+    }
+
+    private static byte[] md5(byte[] bytes, int from, int to)
+            throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance("MD5").digest(
+            Arrays.copyOfRange(bytes, from, to));
+    }
+
+    /** Feeds DATA to the digest in chunks of the given size. */
+    private static void feed(BlockDigest digest, int chunkSize) {
+        for (int offset = 0; offset < DATA.length; offset += chunkSize) {
+            digest.update(
+                DATA, offset, Math.min(chunkSize, DATA.length - offset));
+        }
+    }
+
+    @Test
+    public void testWholeFile() throws NoSuchAlgorithmException {
+        final BlockDigest digest = new BlockDigest("MD5", 0, 0);
+        feed(digest, 64);
+        assertFalse(digest.isComplete());
+        assertArrayEquals(md5(DATA, 0, DATA.length), digest.finish());
+    }
+
+    @Test
+    public void testRange() throws NoSuchAlgorithmException {
+        final BlockDigest digest = new BlockDigest("MD5", 300, 0);
+        feed(digest, 128);
+        assertTrue(digest.isComplete());
+        assertArrayEquals(md5(DATA, 0, 300), digest.finish());
+    }
+
+    @Test
+    public void testBlocks() throws NoSuchAlgorithmException {
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int from = 0; from < DATA.length; from += 256) {
+            final byte[] block =
+                md5(DATA, from, Math.min(from + 256, DATA.length));
+            expected.write(block, 0, block.length);
+        }
+        // chunks that straddle block boundaries
+        for (int chunkSize : new int[] {1, 100, 256, 1000}) {
+            final BlockDigest digest = new BlockDigest("MD5", 0, 256);
+            feed(digest, chunkSize);
+            assertArrayEquals(
+                "chunk size " + chunkSize,
+                expected.toByteArray(), digest.finish());
+        }
+    }
+
+    @Test
+    public void testBlocksEndingOnBoundary() throws NoSuchAlgorithmException {
+        final BlockDigest digest = new BlockDigest("MD5", 500, 250);
+        feed(digest, 64);
+        final byte[] result = digest.finish();
+        assertEquals(2 * digest.getDigestLength(), result.length);
+        assertArrayEquals(
+            md5(DATA, 250, 500), Arrays.copyOfRange(result, 16, 32));
+    }
+
+    @Test
+    public void testEmptyRange() throws NoSuchAlgorithmException {
+        assertArrayEquals(
+            md5(DATA, 0, 0), new BlockDigest("MD5", 0, 0).finish());
+        assertEquals(0, new BlockDigest("MD5", 0, 256).finish().length);
+    }
+
+    @Test
+    public void testDigestLength() {
+        assertEquals(20, new BlockDigest("SHA-1", 0, 0).getDigestLength());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testUnknownAlgorithm() {
+        new BlockDigest("no-such-digest", 0, 0);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * BufferPoolTest.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.sshd.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ * @author Jack Leow
+ */
+public class BufferPoolTest {
+    private final BufferPool pool = new BufferPool(8, 2);
+
+    @Test
+    public void testAllocatesWhenEmpty() {
+        final byte[] first = pool.take();
+        assertEquals(8, first.length);
+        assertNotSame(first, pool.take());
+    }
+
+    @Test
+    public void testReuse() {
+        final byte[] buffer = pool.take();
+        pool.give(buffer);
+        assertSame(buffer, pool.take());
+    }
+
+    @Test
+    public void testKeepsAtMostMaxPooled() {
+        final byte[] a = pool.take(), b = pool.take(), c = pool.take();
+        pool.give(a);
+        pool.give(b);
+        pool.give(c);
+        assertSame(a, pool.take());
+        assertSame(b, pool.take());
+        final byte[] d = pool.take();
+        assertNotSame(c, d);
+        assertEquals(8, d.length);
+    }
+
+    @Test
+    public void testIgnoresForeignBuffers() {
+        pool.give(null);
+        pool.give(new byte[4]);
+        assertEquals(8, pool.take().length);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidBufferSize() {
+        new BufferPool(0, 1);
+    }
+}
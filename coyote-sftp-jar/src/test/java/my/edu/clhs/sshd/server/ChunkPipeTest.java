@@ -0,0 +1,188 @@
+/*
+ * ChunkPipeTest.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.sshd.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * @author Jack Leow
+ */
+public class ChunkPipeTest {
+    /** Counts the buffers given back to it. */
+    private static class CountingPool extends BufferPool {
+        final AtomicInteger given = new AtomicInteger();
+
+        CountingPool(int bufferSize) {
+            super(bufferSize, 16);
+        }
+
+        @Override
+        public void give(byte[] buffer) {
+            given.incrementAndGet();
+            super.give(buffer);
+        }
+    }
+
+    private final CountingPool pool = new CountingPool(16);
+    private final ChunkPipe pipe = new ChunkPipe(pool, 2);
+
+    private static byte[] data(int length) {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; ++i) data[i] = (byte)(i * 7);
+        return data;
+    }
+
+    @Test
+    public void testTransfersAcrossThreads() throws Exception {
+        final byte[] data = data(10000);
+        final AtomicReference<Throwable> failure =
+            new AtomicReference<Throwable>();
+        final Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    final ChunkPipe.Sink sink = pipe.getSink();
+                    int offset = 0;
+                    for (int length = 1; offset < data.length; ++length) {
+                        length = Math.min(length, data.length - offset);
+                        sink.write(data, offset, length);
+                        offset += length;
+                    }
+                    sink.close();
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        };
+        writer.start();
+        final ByteArrayOutputStream read = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[37];
+        for (int n; (n = pipe.getSource().read(buffer, 0, 37)) >= 0;) {
+            read.write(buffer, 0, n);
+        }
+        writer.join(10000);
+        assertEquals(null, failure.get());
+        assertArrayEquals(data, read.toByteArray());
+        assertEquals(-1, pipe.getSource().read());
+    }
+
+    @Test
+    public void testFlushHandsOverPartialBuffer() throws IOException {
+        pipe.getSink().write(data(5), 0, 5);
+        assertEquals(0, pipe.getSource().available());
+        pipe.getSink().flush();
+        assertEquals(5, pipe.getSource().nextChunk());
+        assertArrayEquals(
+            data(5), Arrays.copyOf(pipe.getSource().chunk(), 5));
+        pipe.getSink().close();
+        assertEquals(-1, pipe.getSource().nextChunk());
+    }
+
+    @Test
+    public void testHandOffDoesNotCopy() throws IOException {
+        final byte[] buffer = pool.take();
+        pipe.getSink().write(1);
+        pipe.getSink().handOff(buffer, 3);
+        pipe.getSink().close();
+
+        final ChunkPipe.Source source = pipe.getSource();
+        assertEquals(1, source.nextChunk());
+        assertEquals(3, source.nextChunk());
+        assertSame(buffer, source.chunk());
+        assertEquals(-1, source.nextChunk());
+    }
+
+    @Test
+    public void testEmptyHandOffReturnsBuffer() throws IOException {
+        final byte[] buffer = pool.take();
+        pipe.getSink().handOff(buffer, 0);
+        assertEquals(1, pool.given.get());
+        assertSame(buffer, pool.take());
+    }
+
+    @Test
+    public void testSkip() throws IOException {
+        pipe.getSink().write(data(30), 0, 30);
+        pipe.getSink().close();
+        final ChunkPipe.Source source = pipe.getSource();
+        assertEquals(20, source.skip(20));
+        assertEquals(data(30)[20] & 0xff, source.read());
+        assertEquals(9, source.skip(100));
+        assertEquals(-1, source.read());
+    }
+
+    @Test
+    public void testClosingSourceFailsBlockedWriter() throws Exception {
+        final AtomicReference<IOException> failure =
+            new AtomicReference<IOException>();
+        final Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    // two full buffers fill the pipe, the third blocks
+                    pipe.getSink().write(data(48), 0, 48);
+                } catch (IOException e) {
+                    failure.set(e);
+                }
+            }
+        };
+        writer.start();
+        while (writer.getState() != Thread.State.WAITING) {
+            if (!writer.isAlive()) fail("writer did not block");
+            Thread.sleep(1);
+        }
+        pipe.getSource().close();
+        writer.join(10000);
+        assertFalse(writer.isAlive());
+        assertNotNull(failure.get());
+        // the two queued buffers, and the one being handed over
+        assertEquals(3, pool.given.get());
+    }
+
+    @Test
+    public void testWriteAfterSourceClosed() throws IOException {
+        pipe.getSource().close();
+        try {
+            pipe.getSink().write(data(16), 0, 16);
+            fail("write after close");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("closed"));
+        }
+    }
+
+    @Test(expected=IOException.class)
+    public void testReadAfterSourceClosed() throws IOException {
+        pipe.getSink().write(data(16), 0, 16);
+        pipe.getSource().close();
+        pipe.getSource().read();
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * ServletCopyCommandTest.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.sshd.server.command;
+
+import static my.edu.clhs.sshd.server.command.ServletCopyCommand.splitArguments;
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+
+/**
+ * @author Jack Leow
+ */
+public class ServletCopyCommandTest {
+    private static void assertSplit(String command, String... expected) {
+        assertArrayEquals(command, expected, splitArguments(command));
+    }
+
+    @Test
+    public void testWhitespace() {
+        assertSplit("cp -r a b", "cp", "-r", "a", "b");
+        assertSplit("  cp\ta \n b  ", "cp", "a", "b");
+        assertSplit("");
+        assertSplit("   ");
+    }
+
+    @Test
+    public void testSingleQuotes() {
+        assertSplit("cp 'a b' 'c\\d'", "cp", "a b", "c\\d");
+        assertSplit("cp 'it\"s'", "cp", "it\"s");
+    }
+
+    @Test
+    public void testDoubleQuotes() {
+        assertSplit("cp \"a b\" \"c\\\"d\"", "cp", "a b", "c\"d");
+        assertSplit("cp \"it's\"", "cp", "it's");
+    }
+
+    @Test
+    public void testEmptyQuotedArgument() {
+        assertSplit("cp '' \"\" x", "cp", "", "", "x");
+    }
+
+    @Test
+    public void testAdjacentQuotesJoin() {
+        assertSplit("cp a' b'\"c d\"e", "cp", "a bc de");
+    }
+
+    @Test
+    public void testBackslash() {
+        assertSplit("cp a\\ b c\\'d", "cp", "a b", "c'd");
+        // a trailing backslash is kept as is
+        assertSplit("cp a\\", "cp", "a\\");
+    }
+
+    @Test
+    public void testUnterminatedQuote() {
+        assertSplit("cp 'a b", "cp", "a b");
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * DavStatusSaxHandlerTest.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.tomcat.coyote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+/**
+ * @author Jack Leow
+ */
+public class DavStatusSaxHandlerTest {
+    private static Map<String,String> parse(String xml)
+            throws IOException, ParserConfigurationException, SAXException {
+        final SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        final DavStatusSaxHandler handler =
+            new DavStatusSaxHandler(new UriDecoder("UTF-8"));
+        factory.newSAXParser().parse(
+            new ByteArrayInputStream(xml.getBytes("UTF-8")), handler);
+        return handler.getStatuses();
+    }
+
+    private static String multistatus(String responses) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+            "<D:multistatus xmlns:D=\"DAV:\">" + responses +
+            "</D:multistatus>";
+    }
+
+    private static String response(String status, String... hrefs) {
+        final StringBuilder response = new StringBuilder("<D:response>");
+        for (String href : hrefs) {
+            response.append("<D:href>").append(href).append("</D:href>");
+        }
+        return response.append("<D:status>").append(status).
+            append("</D:status></D:response>").toString();
+    }
+
+    @Test
+    public void testStatuses() throws Exception {
+        final Map<String,String> statuses = parse(multistatus(
+            response("HTTP/1.1 423 Locked", "/dir/locked.txt") +
+            response("HTTP/1.1 403 Forbidden", "/dir/sub/")));
+        assertEquals(
+            Arrays.asList("/dir/locked.txt", "/dir/sub/"),
+            Arrays.asList(statuses.keySet().toArray()));
+        assertEquals("423 Locked", statuses.get("/dir/locked.txt"));
+        assertEquals("403 Forbidden", statuses.get("/dir/sub/"));
+    }
+
+    @Test
+    public void testHrefsShareStatus() throws Exception {
+        final Map<String,String> statuses = parse(multistatus(
+            response("HTTP/1.1 424 Failed Dependency", "/a", "/b")));
+        assertEquals("424 Failed Dependency", statuses.get("/a"));
+        assertEquals("424 Failed Dependency", statuses.get("/b"));
+    }
+
+    @Test
+    public void testDecodesHrefs() throws Exception {
+        final Map<String,String> statuses = parse(multistatus(
+            response("HTTP/1.1 423 Locked",
+                "http://example.com:8080/caf%C3%A9/a%20b") +
+            response("HTTP/1.1 423 Locked", "http://example.com") +
+            response("HTTP/1.1 423 Locked", " /x%2Fy ")));
+        assertEquals(
+            Arrays.asList("/caf\u00e9/a b", "/", "/x/y"),
+            Arrays.asList(statuses.keySet().toArray()));
+    }
+
+    @Test
+    public void testIgnoresPropstatResponses() throws Exception {
+        final Map<String,String> statuses = parse(multistatus(
+            "<D:response><D:href>/p</D:href><D:propstat><D:prop/>" +
+            "<D:status>HTTP/1.1 200 OK</D:status></D:propstat>" +
+            "</D:response>" +
+            "<D:responsedescription>partly failed</D:responsedescription>" +
+            response("HTTP/1.1 423 Locked", "/q")));
+        assertEquals(1, statuses.size());
+        assertEquals("423 Locked", statuses.get("/q"));
+    }
+
+    @Test
+    public void testIgnoresUnknownElements() throws Exception {
+        final Map<String,String> statuses = parse(multistatus(
+            "<D:response xmlns:X=\"urn:x\"><D:href>/r</D:href>" +
+            "<X:href>/not-this</X:href>" +
+            "<D:status>HTTP/1.1 507 Insufficient Storage</D:status>" +
+            "<D:error><D:lock-token-submitted/></D:error></D:response>"));
+        assertEquals(1, statuses.size());
+        assertEquals("507 Insufficient Storage", statuses.get("/r"));
+    }
+
+    @Test
+    public void testEmptyMultistatus() throws Exception {
+        assertTrue(parse(multistatus("")).isEmpty());
+    }
+
+    @Test(expected=SAXException.class)
+    public void testNotMultistatus() throws Exception {
+        parse("<D:error xmlns:D=\"DAV:\"><D:propfind-finite-depth/>" +
+            "</D:error>");
+    }
+
+    @Test(expected=SAXException.class)
+    public void testWrongNamespace() throws Exception {
+        parse("<multistatus xmlns=\"urn:not-dav\"/>");
+    }
+
+    @Test(expected=SAXException.class)
+    public void testUnexpectedResponseElement() throws Exception {
+        parse(multistatus("<D:href>/a</D:href>"));
+    }
+
+    @Test(expected=SAXException.class)
+    public void testMalformedHref() throws Exception {
+        parse(multistatus(response("HTTP/1.1 423 Locked", "/bad%zz")));
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * DispatchSchedulerTest.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.tomcat.coyote;
+
+import static my.edu.clhs.tomcat.coyote.DispatchScheduler.OperationClass.METADATA;
+import static my.edu.clhs.tomcat.coyote.DispatchScheduler.OperationClass.TRANSFER;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * @author Jack Leow
+ */
+public class DispatchSchedulerTest {
+    // metadata: 4 in total, 2 per user; transfers: 2 in total, 1 per user
+    private final DispatchScheduler scheduler =
+        new DispatchScheduler(4, 2, 2, 1);
+
+    @Test
+    public void testPerUserLimit() throws InterruptedException {
+        assertNotNull(scheduler.tryAdmit(TRANSFER, "alice", 0));
+        assertNull(scheduler.tryAdmit(TRANSFER, "alice", 0));
+        assertNotNull(scheduler.tryAdmit(TRANSFER, "bob", 0));
+    }
+
+    @Test
+    public void testLaneLimit() throws InterruptedException {
+        assertNotNull(scheduler.tryAdmit(TRANSFER, "alice", 0));
+        assertNotNull(scheduler.tryAdmit(TRANSFER, "bob", 0));
+        assertNull(scheduler.tryAdmit(TRANSFER, "carol", 0));
+    }
+
+    @Test
+    public void testLanesAreIndependent() throws InterruptedException {
+        assertNotNull(scheduler.tryAdmit(TRANSFER, "alice", 0));
+        assertNotNull(scheduler.tryAdmit(METADATA, "alice", 0));
+        assertNotNull(scheduler.tryAdmit(METADATA, "alice", 0));
+        assertNull(scheduler.tryAdmit(METADATA, "alice", 0));
+    }
+
+    @Test
+    public void testPerUserLimitCappedByLaneLimit()
+            throws InterruptedException {
+        final DispatchScheduler scheduler = new DispatchScheduler(1, 5, 1, 5);
+        assertNotNull(scheduler.tryAdmit(METADATA, "alice", 0));
+        assertNull(scheduler.tryAdmit(METADATA, "bob", 0));
+    }
+
+    @Test
+    public void testNullUserSharesOneLimit() throws InterruptedException {
+        assertNotNull(scheduler.tryAdmit(TRANSFER, null, 0));
+        assertNull(scheduler.tryAdmit(TRANSFER, null, 0));
+    }
+
+    @Test
+    public void testTimeout() throws InterruptedException {
+        assertNotNull(scheduler.tryAdmit(TRANSFER, "alice", 0));
+        final long start = System.nanoTime();
+        assertNull(scheduler.tryAdmit(TRANSFER, "alice", 50));
+        assertTrue(System.nanoTime() - start >=
+            TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(0, scheduler.getLane(TRANSFER).getQueuedCount());
+    }
+
+    @Test
+    public void testReleaseAdmitsWaiter() throws InterruptedException {
+        final DispatchScheduler.Ticket ticket =
+            scheduler.tryAdmit(TRANSFER, "alice", 0);
+        final CountDownLatch waiting = new CountDownLatch(1);
+        final AtomicReference<DispatchScheduler.Ticket> admitted =
+            new AtomicReference<DispatchScheduler.Ticket>();
+        final Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                waiting.countDown();
+                try {
+                    admitted.set(scheduler.tryAdmit(TRANSFER, "alice", 10000));
+                } catch (InterruptedException e) {
+                    // admitted stays null
+                }
+            }
+        };
+        waiter.start();
+        waiting.await();
+        while (scheduler.getLane(TRANSFER).getQueuedCount() == 0) {
+            Thread.sleep(1);
+        }
+        ticket.release();
+        waiter.join(10000);
+        assertNotNull(admitted.get());
+    }
+
+    @Test
+    public void testReleaseIsIdempotent() throws InterruptedException {
+        final DispatchScheduler.Ticket ticket =
+            scheduler.tryAdmit(TRANSFER, "alice", 0);
+        ticket.release();
+        ticket.release();
+        assertEquals(0, scheduler.getLane(TRANSFER).getActiveCount());
+        assertNotNull(scheduler.tryAdmit(TRANSFER, "alice", 0));
+        // a second release must not have handed out an extra permit
+        assertNull(scheduler.tryAdmit(TRANSFER, "alice", 0));
+        assertNotNull(scheduler.tryAdmit(TRANSFER, "bob", 0));
+        assertNull(scheduler.tryAdmit(TRANSFER, "carol", 0));
+    }
+
+    @Test
+    public void testUserPermitsRenewedAfterRelease()
+            throws InterruptedException {
+        for (int i = 0; i < 3; ++i) {
+            final DispatchScheduler.Ticket ticket =
+                scheduler.tryAdmit(TRANSFER, "alice", 0);
+            assertNotNull(ticket);
+            ticket.release();
+        }
+        // a rejected attempt must not leave a permit claimed either
+        final DispatchScheduler.Ticket ticket =
+            scheduler.tryAdmit(TRANSFER, "alice", 0);
+        assertNull(scheduler.tryAdmit(TRANSFER, "alice", 0));
+        ticket.release();
+        assertNotNull(scheduler.tryAdmit(TRANSFER, "alice", 0));
+    }
+
+    @Test
+    public void testStatistics() throws InterruptedException {
+        final DispatchScheduler.Lane lane = scheduler.getLane(METADATA);
+        assertEquals(0, lane.getAdmittedCount());
+        assertEquals(0.0, lane.getAverageQueueTime(), 0.0);
+
+        final DispatchScheduler.Ticket first =
+            scheduler.tryAdmit(METADATA, "alice", 0);
+        scheduler.tryAdmit(METADATA, "alice", 0);
+        scheduler.tryAdmit(METADATA, "alice", 0);
+        assertEquals(2, lane.getActiveCount());
+        assertEquals(2, lane.getAdmittedCount());
+        first.release();
+        assertEquals(1, lane.getActiveCount());
+        assertEquals(0, lane.getQueuedCount());
+        assertEquals(0, scheduler.getLane(TRANSFER).getAdmittedCount());
+        assertTrue(lane.getMaxQueueTime() >= 0);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * HttpDateParserTest.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.tomcat.coyote;
+
+import static org.junit.Assert.assertEquals;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.junit.Test;
+
+/**
+ * Checks {@link HttpDateParser} against the formatters it replaces.
+ *
+ * @author Jack Leow
+ */
+public class HttpDateParserTest {
+    private static DateFormat rfc1123() {
+        final DateFormat format = new SimpleDateFormat(
+            "EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+
+    private static void assertParsedAsRfc1123(String date)
+            throws ParseException {
+        assertEquals(
+            date, rfc1123().parse(date).getTime(),
+            HttpDateParser.parse(date));
+    }
+
+    private static void assertParsedAsIso8601(String date) {
+        assertEquals(
+            date, DatatypeConverter.parseDateTime(date).getTimeInMillis(),
+            HttpDateParser.parse(date));
+    }
+
+    @Test
+    public void testRfc1123MatchesSimpleDateFormat() throws ParseException {
+        final DateFormat format = rfc1123();
+        final Random random = new Random(1994);
+        for (int i = 0; i < 10000; i++) {
+            // 1583 to 2200
+            final long millis = -12212553600000L +
+                (long)(random.nextDouble() * 19469376000000L);
+            assertParsedAsRfc1123(format.format(millis));
+        }
+    }
+
+    @Test
+    public void testRfc1123Examples() throws ParseException {
+        assertEquals(
+            784111777000L,
+            HttpDateParser.parse("Sun, 06 Nov 1994 08:49:37 GMT"));
+        assertParsedAsRfc1123("Thu, 01 Jan 1970 00:00:00 GMT");
+        assertParsedAsRfc1123("Wed, 29 Feb 2012 23:59:59 GMT");
+        assertParsedAsRfc1123("Fri, 31 Dec 9999 23:59:59 GMT");
+    }
+
+    @Test
+    public void testRfc1123OutOfRangeFieldsAreParsedLeniently()
+            throws ParseException {
+        assertParsedAsRfc1123("Fri, 29 Feb 2013 10:00:00 GMT");
+        assertParsedAsRfc1123("Sun, 31 Apr 2013 10:00:00 GMT");
+        assertParsedAsRfc1123("Mon, 32 Jan 2013 10:00:00 GMT");
+        assertParsedAsRfc1123("Sun, 00 Jan 2013 10:00:00 GMT");
+        assertParsedAsRfc1123("Mon, 01 Jan 2013 24:00:00 GMT");
+        assertParsedAsRfc1123("Mon, 01 Jan 2013 10:60:00 GMT");
+        assertParsedAsRfc1123("Mon, 01 Jan 2013 10:00:60 GMT");
+    }
+
+    @Test
+    public void testRfc1123BeforeGregorianCalendar() throws ParseException {
+        assertParsedAsRfc1123("Mon, 01 Jan 1500 00:00:00 GMT");
+    }
+
+    @Test
+    public void testRfc1123OtherTimeZones() throws ParseException {
+        assertParsedAsRfc1123("Sun, 06 Nov 1994 08:49:37 PST");
+        assertParsedAsRfc1123("Sun, 06 Nov 1994 08:49:37 UTC");
+    }
+
+    @Test
+    public void testIso8601MatchesDatatypeConverter() {
+        assertParsedAsIso8601("2012-07-15T18:28:00Z");
+        assertParsedAsIso8601("2012-07-15T11:28:00.000-07:00");
+        assertParsedAsIso8601("2012-07-15T11:28:00.5+05:30");
+        assertParsedAsIso8601("2012-07-15T11:28:00.123456Z");
+        assertParsedAsIso8601("2012-02-29T00:00:00Z");
+    }
+
+    @Test
+    public void testIso8601OutOfRangeFields() {
+        assertParsedAsIso8601("2012-07-15T24:00:00Z");
+        assertParsedAsIso8601("2012-07-15T11:28:00+14:00");
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testIso8601InvalidDay() {
+        HttpDateParser.parse("2013-02-30T00:00:00Z");
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testIso8601InvalidMonth() {
+        HttpDateParser.parse("2013-13-01T00:00:00Z");
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testUnparseable() {
+        HttpDateParser.parse("yesterday");
+    }
+
+    @Test
+    public void testCachedDate() {
+        final String date = "Tue, 15 Nov 1994 12:45:26 GMT";
+        assertEquals(HttpDateParser.parse(date), HttpDateParser.parse(date));
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * LatencyHistogramTest.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.tomcat.coyote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author Jack Leow
+ */
+public class LatencyHistogramTest {
+    private final LatencyHistogram histogram = new LatencyHistogram("test");
+
+    private static long micros(long micros) {
+        return micros * 1000;
+    }
+
+    @Test
+    public void testEmpty() {
+        assertEquals(0, histogram.getCount());
+        assertEquals(0.0, histogram.getMean(), 0.0);
+        assertEquals(0.0, histogram.getMax(), 0.0);
+        assertEquals(0.0, histogram.getP50(), 0.0);
+        assertEquals(0.0, histogram.getP999(), 0.0);
+    }
+
+    @Test
+    public void testSmallValuesAreExact() {
+        for (long i = 0; i < 16; ++i) histogram.record(micros(i));
+        assertEquals(16, histogram.getCount());
+        assertEquals(0.007, histogram.getP50(), 1e-9);
+        assertEquals(0.015, histogram.getP99(), 1e-9);
+        assertEquals(0.015, histogram.getMax(), 1e-9);
+        assertEquals(0.0075, histogram.getMean(), 1e-9);
+    }
+
+    @Test
+    public void testPercentilesWithinBucketPrecision() {
+        for (long i = 1; i <= 100000; ++i) histogram.record(micros(i));
+        assertEquals(50.0, histogram.getP50(), 50.0 / 16);
+        assertEquals(99.0, histogram.getP99(), 99.0 / 16);
+        assertEquals(99.9, histogram.getP999(), 99.9 / 16);
+        assertEquals(100.0, histogram.getMax(), 0.0);
+        assertEquals(50.0005, histogram.getMean(), 1e-9);
+    }
+
+    @Test
+    public void testPercentilesNeverExceedMax() {
+        histogram.record(micros(1000));
+        assertEquals(1.0, histogram.getP50(), 0.0);
+        assertEquals(1.0, histogram.getValueAtPercentile(100), 0.0);
+    }
+
+    @Test
+    public void testLowestPercentile() {
+        histogram.record(micros(3));
+        histogram.record(micros(5000));
+        assertEquals(0.003, histogram.getValueAtPercentile(0), 1e-9);
+    }
+
+    @Test
+    public void testSubMicrosecondAndNegativeValues() {
+        histogram.record(999);
+        histogram.record(-micros(5));
+        assertEquals(2, histogram.getCount());
+        assertEquals(0.0, histogram.getMax(), 0.0);
+        assertEquals(0.0, histogram.getP99(), 0.0);
+    }
+
+    @Test
+    public void testValuesBeyondLargestBucket() {
+        final long huge = 1L << 50;
+        histogram.record(micros(huge));
+        histogram.record(micros(huge + 12345));
+        assertEquals((huge + 12345) / 1000.0, histogram.getMax(), 0.0);
+        final double p50 = histogram.getP50();
+        assertTrue(p50 >= (1L << 40) / 1000.0);
+        assertTrue(p50 <= histogram.getMax());
+    }
+
+    @Test
+    public void testToString() {
+        histogram.record(micros(2000));
+        assertEquals(
+            "test: n=1 p50=2.00 p99=2.00 p999=2.00 max=2.00",
+            histogram.toString());
+    }
+}
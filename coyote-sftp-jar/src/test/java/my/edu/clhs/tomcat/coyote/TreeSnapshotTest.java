@@ -0,0 +1,177 @@
+/*
+ * TreeSnapshotTest.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.tomcat.coyote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.sshd.server.SshFile;
+import org.junit.Test;
+
+/**
+ * @author Jack Leow
+ */
+public class TreeSnapshotTest {
+    private static final long TTL = TimeUnit.MINUTES.toNanos(1);
+
+    /**
+     * @param path the absolute path, with a trailing "/" for directories.
+     */
+    private static SshFile file(String path) {
+        final boolean directory = path.length() > 1 && path.endsWith("/");
+        final String absolutePath =
+            directory ? path.substring(0, path.length() - 1) : path;
+        return (SshFile)Proxy.newProxyInstance(
+            SshFile.class.getClassLoader(), new Class<?>[] {SshFile.class},
+            new InvocationHandler() {
+                // @Override - Interface
+                public Object invoke(
+                        Object proxy, Method method, Object[] args) {
+                    if (method.getName().equals("getAbsolutePath")) {
+                        return absolutePath;
+                    } else if (method.getName().equals("isDirectory")) {
+                        return directory || absolutePath.equals("/");
+                    } else if (method.getName().equals("toString")) {
+                        return absolutePath;
+                    } else if (method.getName().equals("equals")) {
+                        return proxy == args[0];
+                    } else if (method.getName().equals("hashCode")) {
+                        return System.identityHashCode(proxy);
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            });
+    }
+
+    private static List<SshFile> files(String... paths) {
+        final List<SshFile> files = new ArrayList<SshFile>();
+        for (String path : paths) files.add(file(path));
+        return files;
+    }
+
+    private static List<String> paths(List<SshFile> files) {
+        if (files == null) return null;
+        final List<String> paths = new ArrayList<String>();
+        for (SshFile file : files) paths.add(file.getAbsolutePath());
+        return paths;
+    }
+
+    private final TreeSnapshot snapshot = new TreeSnapshot("/tree", files(
+        "/tree/", "/tree/a/", "/tree/a/b/", "/tree/a/g", "/tree/f",
+        "/tree/e/", "/tree/e/x/"), TTL);
+
+    @Test
+    public void testDirectoryContents() {
+        assertEquals(7, snapshot.size());
+        assertEquals(
+            Arrays.asList("/tree/a", "/tree/f", "/tree/e"),
+            paths(snapshot.getDirectoryContents("/tree")));
+        assertEquals(
+            Arrays.asList("/tree/a/b", "/tree/a/g"),
+            paths(snapshot.getDirectoryContents("/tree/a")));
+        assertNull(snapshot.getDirectoryContents("/tree/f"));
+    }
+
+    @Test
+    public void testFrontierContentsUnknown() {
+        assertNull(snapshot.getDirectoryContents("/tree/a/b"));
+        assertTrue(snapshot.covers("/tree/a/b"));
+        assertFalse(snapshot.covers("/tree/a/b/c"));
+        assertEquals(
+            "/tree/a/b", snapshot.getFile("/tree/a/b").getAbsolutePath());
+    }
+
+    @Test
+    public void testCovers() {
+        assertTrue(snapshot.covers("/tree"));
+        assertTrue(snapshot.covers("/tree/a/g"));
+        // known not to exist
+        assertTrue(snapshot.covers("/tree/missing"));
+        assertNull(snapshot.getFile("/tree/missing"));
+        assertFalse(snapshot.covers("/"));
+        assertFalse(snapshot.covers("/treetop"));
+    }
+
+    @Test
+    public void testOverlaps() {
+        assertTrue(snapshot.overlaps("/tree/a/b/c"));
+        assertTrue(snapshot.overlaps("/tree"));
+        assertTrue(snapshot.overlaps("/"));
+        assertFalse(snapshot.overlaps("/treetop"));
+        assertFalse(snapshot.overlaps("/other/tree"));
+    }
+
+    @Test
+    public void testIgnoresUnrelatedAndDuplicateEntries() {
+        final List<SshFile> listed = files(
+            "/tree/", "/tree/a", "/elsewhere", "/treetop/");
+        final SshFile first = listed.get(1);
+        listed.add(file("/tree/a"));
+        final TreeSnapshot snapshot = new TreeSnapshot("/tree", listed, TTL);
+        assertEquals(2, snapshot.size());
+        assertSame(first, snapshot.getFile("/tree/a"));
+        assertEquals(
+            Arrays.asList("/tree/a"),
+            paths(snapshot.getDirectoryContents("/tree")));
+    }
+
+    @Test
+    public void testEmptyDirectoryAboveFrontier() {
+        final TreeSnapshot snapshot = new TreeSnapshot("/tree", files(
+            "/tree/", "/tree/empty/", "/tree/d/", "/tree/d/f"), TTL);
+        assertEquals(
+            0, snapshot.getDirectoryContents("/tree/empty").size());
+        assertTrue(snapshot.covers("/tree/empty/anything"));
+    }
+
+    @Test
+    public void testRootOfFileSystem() {
+        final TreeSnapshot snapshot = new TreeSnapshot("/", files(
+            "/", "/a/", "/a/b", "/c/", "/c/d/"), TTL);
+        assertEquals(
+            Arrays.asList("/a", "/c"),
+            paths(snapshot.getDirectoryContents("/")));
+        assertEquals(
+            Arrays.asList("/a/b"),
+            paths(snapshot.getDirectoryContents("/a")));
+        assertNull(snapshot.getDirectoryContents("/c/d"));
+        assertFalse(snapshot.covers("/c/d/e"));
+    }
+
+    @Test(expected=UnsupportedOperationException.class)
+    public void testContentsAreReadOnly() {
+        snapshot.getDirectoryContents("/tree").clear();
+    }
+
+    @Test
+    public void testExpiry() {
+        assertFalse(snapshot.isExpired());
+        assertTrue(new TreeSnapshot("/tree", files("/tree/"), -1).isExpired());
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * UriDecoderTest.java
+ *
+ * Copyright 2013 Jack Leow
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package my.edu.clhs.tomcat.coyote;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+
+import org.junit.Test;
+
+/**
+ * @author Jack Leow
+ */
+public class UriDecoderTest {
+    private final UriDecoder utf8 = new UriDecoder("UTF-8");
+
+    private String decode(UriDecoder decoder, String s) {
+        return decoder.decode(s.toCharArray(), 0, s.length());
+    }
+
+    @Test
+    public void testMatchesUrlDecoder() throws UnsupportedEncodingException {
+        final String[] paths = {
+            "/", "/plain/path.txt", "/with%20space", "/%2F%25%3F",
+            "/caf%C3%A9/na%C3%AFve", "/%E6%97%A5%E6%9C%AC%E8%AA%9E",
+            "/%f0%9f%98%80", "%41%42%43", "/mixed%20%C3%A9x%20y"
+        };
+        for (String path : paths) {
+            assertEquals(
+                path, URLDecoder.decode(path, "UTF-8"), decode(utf8, path));
+        }
+    }
+
+    @Test
+    public void testPlusIsNotASpace() {
+        assertEquals("/a+b", decode(utf8, "/a+b"));
+        assertEquals("/a+ b", decode(utf8, "/a+%20b"));
+    }
+
+    @Test
+    public void testRange() {
+        final char[] ch = "xx/a%20b.txtyy".toCharArray();
+        assertEquals("/a b.txt", utf8.decode(ch, 2, 10));
+        assertEquals("/a", utf8.decode(ch, 2, 2));
+    }
+
+    @Test
+    public void testCharset() {
+        assertEquals(
+            "/caf\u00e9", decode(new UriDecoder("ISO-8859-1"), "/caf%E9"));
+    }
+
+    @Test
+    public void testUnsupportedCharsetFallsBackToIso88591() {
+        assertEquals(
+            "/caf\u00e9",
+            decode(new UriDecoder("no-such-charset"), "/caf%E9"));
+        assertEquals(
+            "/caf\u00e9", decode(new UriDecoder("bad name!"), "/caf%E9"));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testIncompleteEscape() {
+        decode(utf8, "/a%2");
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testIllegalHexCharacters() {
+        decode(utf8, "/a%zzb");
+    }
+}